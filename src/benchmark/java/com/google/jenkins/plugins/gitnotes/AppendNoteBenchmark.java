@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.TaskListener;
+
+/**
+ * Measures appending one note to the HEAD commit of a local repository
+ * whose notes ref already annotates many commits, through
+ * {@link GitClient#appendNote} (CLI git) and in-process through
+ * {@link NotesUpdate}. The notes ref is reset before each append, so every
+ * invocation rewrites the same fan-out path of the same tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AppendNoteBenchmark {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+
+  /**
+   * Number of commits the notes ref annotates before the append.
+   */
+  @Param({"10000", "100000", "1000000"})
+  public int existingNotes;
+
+  private File workspace;
+  private Repository repo;
+  private GitClient gitClient;
+  private ObjectId notesTip;
+  private Map<String, List<String>> notes;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    workspace = Files.createTempDir();
+    repo = BenchmarkRepositories.createWorkspace(workspace);
+    notesTip = BenchmarkRepositories.writeNotesTree(repo, NOTES_REF,
+        existingNotes);
+    gitClient = Git.with(TaskListener.NULL, new EnvVars())
+        .in(workspace).using("git").getClient();
+
+    List<String> note = new ArrayList<String>();
+    note.add(BenchmarkRepositories.NOTE);
+    notes = new HashMap<String, List<String>>();
+    notes.put(repo.resolve("HEAD").name(), note);
+  }
+
+  @Setup(Level.Invocation)
+  public void resetNotesRef() throws Exception {
+    BenchmarkRepositories.resetRef(repo, NOTES_REF, notesTip);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    repo.close();
+    Util.deleteRecursive(workspace);
+  }
+
+  @Benchmark
+  public void gitClientAppendNote() throws Exception {
+    gitClient.appendNote(BenchmarkRepositories.NOTE, NOTES_REF);
+  }
+
+  @Benchmark
+  public void jgitAppendNotes() throws Exception {
+    NotesUpdate.appendNotes(repo, NOTES_REF, notes);
+  }
+}
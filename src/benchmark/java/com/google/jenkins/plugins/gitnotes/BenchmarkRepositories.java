@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Repositories the benchmarks publish to and from.
+ */
+final class BenchmarkRepositories {
+  static final String NOTE = "{\"timestamp\":\"1430000000\","
+      + "\"v\":0,\"agent\":\"Jenkins(1.626) GitNotesJobLogger\","
+      + "\"url\":\"http://jenkins/job/benchmark/1/\",\"status\":\"success\"}";
+  static final String COMPACT_NOTE = "{\"t\":1430000000,\"v\":1,"
+      + "\"u\":\"http://jenkins/job/benchmark/1/\",\"s\":\"success\"}";
+
+  private BenchmarkRepositories() {
+  }
+
+  /**
+   * Creates an empty bare repository.
+   */
+  static Repository createBare(File dir) throws IOException {
+    Repository repo = new FileRepositoryBuilder().setGitDir(dir).build();
+    repo.create(true);
+    return repo;
+  }
+
+  /**
+   * Creates a non-bare repository with a single commit.
+   */
+  static Repository createWorkspace(File dir) throws GitAPIException {
+    Git git = Git.init().setDirectory(dir).call();
+    git.commit().setMessage("benchmark").call();
+    return git.getRepository();
+  }
+
+  /**
+   * Returns a made-up, distinct commit id for each {@code i}.
+   */
+  static ObjectId fakeCommit(int i) {
+    return ObjectId.fromRaw(new int[] {i, i * 31, i * 961, 7, 11});
+  }
+
+  /**
+   * Points {@code notesRef} at a single notes commit annotating
+   * {@code count} made-up commits, all with the same note.
+   *
+   * @return the notes commit.
+   */
+  static ObjectId writeNotesTree(Repository repo, String notesRef,
+      int count) throws IOException {
+    ObjectInserter inserter = repo.newObjectInserter();
+    try {
+      ObjectId blob = inserter.insert(Constants.OBJ_BLOB,
+          (NOTE + "\n").getBytes(Constants.CHARSET));
+      NoteMap map = NoteMap.newEmptyMap();
+      for (int i = 0; i < count; i++) {
+        map.set(fakeCommit(i), blob);
+      }
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(map.writeTree(inserter));
+      PersonIdent ident = new PersonIdent("benchmark", "benchmark@example.com");
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("Notes for " + count + " commits\n");
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+      resetRef(repo, notesRef, commitId);
+      return commitId;
+    } finally {
+      inserter.release();
+    }
+  }
+
+  /**
+   * Force-updates {@code ref} to {@code target}.
+   */
+  static void resetRef(Repository repo, String ref, ObjectId target)
+      throws IOException {
+    RefUpdate update = repo.updateRef(ref);
+    update.setNewObjectId(target);
+    RefUpdate.Result result = update.forceUpdate();
+    if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED
+        && result != RefUpdate.Result.NO_CHANGE) {
+      throw new IOException("Failed to reset " + ref + ": " + result);
+    }
+  }
+}
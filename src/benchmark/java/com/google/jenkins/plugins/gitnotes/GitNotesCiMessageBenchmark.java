@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Compares building and serializing a finish message through a Gson tree,
+ * the way {@link GitNotesCiMessage} used to, with its streaming
+ * serialization. Run with {@code -prof gc} to see the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class GitNotesCiMessageBenchmark {
+  private static final String URL =
+      "http://jenkins.example.com/job/some-project/1234/";
+
+  private final StringBuilder payload = new StringBuilder(256);
+
+  @Benchmark
+  public String gsonTree() {
+    JsonObject message = new JsonObject();
+    message.addProperty(GitNotesCiMessage.METADATA_TIMESTAMP,
+        String.format("%010d", System.currentTimeMillis() / 1000));
+    message.addProperty(GitNotesCiMessage.METADATA_VERSION,
+        GitNotesCiMessage.DEFAULT_VERSION);
+    message.addProperty(GitNotesCiMessage.METADATA_AGENT,
+        GitNotesCiMessage.AGENT);
+    message.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
+    message.addProperty(GitNotesCiMessage.METADATA_URL, URL);
+    message.addProperty(GitNotesCiMessage.METADATA_STATUS,
+        GitNotesCiMessage.STATUS_SUCCESS);
+    return message.toString();
+  }
+
+  @Benchmark
+  public String streamingToString() {
+    return new GitNotesCiMessage().addVersion(0).addUrl(URL)
+        .addStatus(GitNotesCiMessage.STATUS_SUCCESS).toString();
+  }
+
+  @Benchmark
+  public int streamingIntoPayload() {
+    payload.setLength(0);
+    new GitNotesCiMessage().addVersion(0).addUrl(URL)
+        .addStatus(GitNotesCiMessage.STATUS_SUCCESS).appendTo(payload);
+    return payload.length();
+  }
+}
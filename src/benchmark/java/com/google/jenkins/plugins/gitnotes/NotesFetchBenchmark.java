@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.TaskListener;
+
+/**
+ * Measures fetching a large notes ref into a cold workspace, in full and
+ * tip-only, through CLI git against a local {@code file://} bare remote.
+ * Notes are written in either {@link GitNotesCiMessage} encoding. Besides
+ * the latency reported by JMH, the average size of the fetched objects is
+ * printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class NotesFetchBenchmark {
+  private static final int NOTES_PER_COMMIT = 100;
+
+  /**
+   * Number of notes commits in the remote's history.
+   */
+  @Param({"1000"})
+  public int notesCommits;
+
+  @Param({"false", "true"})
+  public boolean tipOnly;
+
+  /**
+   * The {@link GitNotesCiMessage} version of the notes.
+   */
+  @Param({"0", "1"})
+  public int noteVersion;
+
+  private File root;
+  private URIish remoteURI;
+  private File workspace;
+  private GitClient gitClient;
+  private long fetches;
+  private long fetchedBytes;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    root = Files.createTempDir();
+    File remoteDir = new File(root, "remote.git");
+    Repository remote = BenchmarkRepositories.createBare(remoteDir);
+    try {
+      int annotated = 0;
+      for (int i = 0; i < notesCommits; i++) {
+        Map<String, List<String>> notes =
+            new LinkedHashMap<String, List<String>>();
+        for (int j = 0; j < NOTES_PER_COMMIT; j++) {
+          List<String> note = new ArrayList<String>();
+          note.add(noteVersion == GitNotesCiMessage.COMPACT_VERSION
+              ? BenchmarkRepositories.COMPACT_NOTE
+              : BenchmarkRepositories.NOTE);
+          notes.put(
+              BenchmarkRepositories.fakeCommit(annotated++).name(), note);
+        }
+        NotesUpdate.appendNotes(remote, GitNotesJobLogger.GIT_NOTES_REFS,
+            notes);
+      }
+    } finally {
+      remote.close();
+    }
+    remoteURI = new URIish(remoteDir.toURI().toURL());
+  }
+
+  @Setup(Level.Invocation)
+  public void newWorkspace() throws Exception {
+    workspace = Files.createTempDir();
+    org.eclipse.jgit.api.Git.init().setDirectory(workspace).call()
+        .getRepository().close();
+    gitClient = Git.with(TaskListener.NULL, new EnvVars())
+        .in(workspace).using("git").getClient();
+  }
+
+  @TearDown(Level.Invocation)
+  public void recordFetchedBytes() throws Exception {
+    fetches++;
+    fetchedBytes += size(new File(workspace, ".git/objects"));
+    Util.deleteRecursive(workspace);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    System.out.printf(
+        "%nnotesCommits=%d tipOnly=%s noteVersion=%d: %d bytes per fetch%n",
+        notesCommits, tipOnly, noteVersion,
+        fetches == 0 ? 0 : fetchedBytes / fetches);
+    Util.deleteRecursive(root);
+  }
+
+  @Benchmark
+  public void coldFetch() throws Exception {
+    GitNotesRemote.fetchForAppend(gitClient, remoteURI,
+        GitNotesJobLogger.GIT_NOTES_REFS, tipOnly, null, TaskListener.NULL);
+  }
+
+  private static long size(File file) {
+    if (file.isFile()) {
+      return file.length();
+    }
+    long total = 0;
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        total += size(child);
+      }
+    }
+    return total;
+  }
+}
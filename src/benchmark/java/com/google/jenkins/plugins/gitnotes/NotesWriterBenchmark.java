@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.TaskListener;
+
+/**
+ * Compares publishing one note through the {@link GitClient} commands
+ * (CLI git) with the in-process {@link JGitNotesWriter}, against a local
+ * {@code file://} bare remote.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class NotesWriterBenchmark {
+  private static final PublishRetryPolicy RETRY_POLICY =
+      new PublishRetryPolicy(0, 0L);
+
+  /**
+   * Whether the remote notes-ref state is cached between publishes, which
+   * lets both writers skip the fetch.
+   */
+  @Param({"false", "true"})
+  public boolean warmCache;
+
+  private File root;
+  private URIish remoteURI;
+  private GitClient gitClient;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    root = Files.createTempDir();
+    File remoteDir = new File(root, "remote.git");
+    BenchmarkRepositories.createBare(remoteDir).close();
+    remoteURI = new URIish(remoteDir.toURI().toURL());
+
+    File workspace = new File(root, "workspace");
+    BenchmarkRepositories.createWorkspace(workspace).close();
+
+    gitClient = Git.with(TaskListener.NULL, new EnvVars())
+        .in(workspace).using("git").getClient();
+  }
+
+  @Setup(Level.Invocation)
+  public void forgetRemoteState() {
+    if (!warmCache) {
+      RemoteNotesRefCache.get().clear();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    RemoteNotesRefCache.get().clear();
+    Util.deleteRecursive(root);
+  }
+
+  @Benchmark
+  public void gitClientWriter() throws Exception {
+    GitClientNotesWriter.write(gitClient, remoteURI,
+        GitNotesJobLogger.GIT_NOTES_REFS, BenchmarkRepositories.NOTE,
+        RETRY_POLICY, new PublishTimings(), TaskListener.NULL);
+  }
+
+  @Benchmark
+  public void jgitWriter() throws Exception {
+    JGitNotesWriter.write(gitClient, remoteURI,
+        GitNotesJobLogger.GIT_NOTES_REFS, BenchmarkRepositories.NOTE,
+        RETRY_POLICY, new PublishTimings(), null);
+  }
+}
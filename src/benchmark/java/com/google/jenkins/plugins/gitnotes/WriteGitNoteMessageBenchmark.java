@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.mockito.Matchers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+
+/**
+ * Measures the whole synchronous publish of a build-start note through
+ * {@link GitNotesJobLogger#setUp}, from building the message to pushing it
+ * to a local {@code file://} bare remote. The build, project and SCM are
+ * mocks, but the {@link GitClient} is a real CLI git client on a real
+ * workspace, so only the Jenkins model is faked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WriteGitNoteMessageBenchmark {
+
+  @Param({"GIT_CLIENT", "JGIT"})
+  public GitNotesJobLogger.NotesWriter notesWriter;
+
+  private File root;
+  private GitNotesJobLogger recorder;
+  private FreeStyleBuild build;
+  private Launcher launcher;
+  private BuildListener listener;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    root = Files.createTempDir();
+    File remoteDir = new File(root, "remote.git");
+    BenchmarkRepositories.createBare(remoteDir).close();
+    URIish remoteURI = new URIish(remoteDir.toURI().toURL());
+    File workspace = new File(root, "workspace");
+    BenchmarkRepositories.createWorkspace(workspace).close();
+    GitClient gitClient = Git.with(TaskListener.NULL, new EnvVars())
+        .in(workspace).using("git").getClient();
+
+    RemoteConfig remoteConfig = mock(RemoteConfig.class);
+    when(remoteConfig.getURIs())
+        .thenReturn(Collections.singletonList(remoteURI));
+    GitSCM gitSCM = mock(GitSCM.class);
+    when(gitSCM.getRepositoryByName("origin"))
+        .thenReturn(remoteConfig);
+    when(gitSCM.createClient(
+        Matchers.<TaskListener>anyObject(),
+        Matchers.<EnvVars>anyObject(),
+        Matchers.<Run<?, ?>>anyObject(),
+        Matchers.<FilePath>anyObject()))
+        .thenReturn(gitClient);
+    FreeStyleProject project = mock(FreeStyleProject.class);
+    when(project.getScm()).thenReturn(gitSCM);
+    build = mock(FreeStyleBuild.class);
+    when(build.getProject()).thenReturn(project);
+    when(build.getUrl()).thenReturn("job/benchmark/1/");
+    when(build.getWorkspace()).thenReturn(new FilePath(workspace));
+    launcher = mock(Launcher.class);
+    listener = new StreamBuildListener(ByteStreams.nullOutputStream());
+
+    recorder = new GitNotesJobLogger();
+    recorder.setNotesWriter(notesWriter);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    RemoteNotesRefCache.get().clear();
+    Util.deleteRecursive(root);
+  }
+
+  @Benchmark
+  public void publishStartNote() {
+    recorder.setUp(build, launcher, listener);
+  }
+}
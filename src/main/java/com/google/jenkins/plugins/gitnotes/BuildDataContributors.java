@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.Fingerprinter;
+import hudson.tasks.test.AbstractTestResultAction;
+
+/**
+ * The {@link GitNotesDataContributor}s that come with the plugin. Each
+ * only reads what the build already recorded, so they are cheap.
+ */
+public final class BuildDataContributors {
+  static final String DURATION = "duration";
+  static final String NODE = "node";
+  static final String TESTS = "tests";
+  static final String TEST_FAILURES = "failures";
+  static final String TESTS_SKIPPED = "skipped";
+  static final String ARTIFACTS = "artifacts";
+
+  private BuildDataContributors() {
+  }
+
+  /**
+   * The build's duration in milliseconds.
+   */
+  @Extension
+  public static final class Duration extends GitNotesDataContributor {
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, ?> contribute(Run<?, ?> build,
+        TaskListener listener) {
+      // The duration is only set once the build is complete, which it
+      // isn't yet when the build wrapper records its finish note.
+      long duration = build.getDuration();
+      if (duration <= 0) {
+        duration = Math.max(0L,
+            System.currentTimeMillis() - build.getStartTimeInMillis());
+      }
+      return Collections.singletonMap(DURATION, duration);
+    }
+  }
+
+  /**
+   * The name of the node the build ran on, {@code master} for the
+   * controller.
+   */
+  @Extension
+  public static final class Node extends GitNotesDataContributor {
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, ?> contribute(Run<?, ?> build,
+        TaskListener listener) {
+      if (!(build instanceof AbstractBuild)) {
+        return null;
+      }
+      String node = ((AbstractBuild<?, ?>) build).getBuiltOnStr();
+      return Collections.singletonMap(NODE,
+          node == null || node.isEmpty() ? "master" : node);
+    }
+  }
+
+  /**
+   * The number of tests run, failed and skipped, if the build recorded
+   * test results.
+   */
+  @Extension
+  public static final class Tests extends GitNotesDataContributor {
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, ?> contribute(Run<?, ?> build,
+        TaskListener listener) {
+      AbstractTestResultAction<?> tests =
+          build.getAction(AbstractTestResultAction.class);
+      if (tests == null) {
+        return null;
+      }
+      Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+      counts.put(TESTS, tests.getTotalCount());
+      counts.put(TEST_FAILURES, tests.getFailCount());
+      counts.put(TESTS_SKIPPED, tests.getSkipCount());
+      return counts;
+    }
+  }
+
+  /**
+   * The MD5 digests of the fingerprinted files, as one string of
+   * {@code name:digest} pairs in name order, separated by spaces.
+   */
+  @Extension
+  public static final class Artifacts extends GitNotesDataContributor {
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, ?> contribute(Run<?, ?> build,
+        TaskListener listener) {
+      Fingerprinter.FingerprintAction fingerprints =
+          build.getAction(Fingerprinter.FingerprintAction.class);
+      if (fingerprints == null || fingerprints.getRecords().isEmpty()) {
+        return null;
+      }
+      StringBuilder digests = new StringBuilder();
+      for (Map.Entry<String, String> record : new TreeMap<String, String>(
+          fingerprints.getRecords()).entrySet()) {
+        if (digests.length() > 0) {
+          digests.append(' ');
+        }
+        digests.append(record.getKey()).append(':').append(record.getValue());
+      }
+      return Collections.singletonMap(ARTIFACTS, digests.toString());
+    }
+  }
+}
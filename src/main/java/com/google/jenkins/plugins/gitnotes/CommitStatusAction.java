@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jgit.transport.URIish;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Serves {@link CommitStatusIndex} queries as JSON at
+ * {@code JENKINS_URL/git-notes-status/?remote=URL&commit=SHA1&commit=SHA2},
+ * where commits may also be given comma-separated. Only remotes that
+ * already have a controller-side {@link NotesMirror} are served, so the
+ * endpoint can't be used to make the controller fetch from arbitrary URLs.
+ * Like any root action, it needs the overall read permission; besides,
+ * only the records of builds of jobs the caller can read are served,
+ * unless the caller is an administrator.
+ */
+@Extension
+public final class CommitStatusAction implements RootAction {
+
+  /** {@inheritDoc} */
+  @Override
+  public String getIconFileName() {
+    // Not shown in the side panel.
+    return null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDisplayName() {
+    return "Git Notes Commit Status";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUrlName() {
+    return "git-notes-status";
+  }
+
+  /**
+   * Writes the build records of each requested commit.
+   */
+  public void doIndex(StaplerRequest req, StaplerResponse rsp)
+      throws IOException, InterruptedException {
+    String remote = req.getParameter("remote");
+    List<String> commitIds = new ArrayList<String>();
+    String[] commitParameters = req.getParameterValues("commit");
+    if (commitParameters != null) {
+      for (String parameter : commitParameters) {
+        for (String commitId : parameter.split(",")) {
+          if (!commitId.trim().isEmpty()) {
+            commitIds.add(commitId.trim());
+          }
+        }
+      }
+    }
+    if (remote == null || commitIds.isEmpty()) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "Expected a remote and at least one commit");
+      return;
+    }
+    URIish remoteURI;
+    try {
+      remoteURI = new URIish(remote);
+    } catch (URISyntaxException e) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    if (!NotesMirror.get().exists(remoteURI)) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "No git notes mirror of " + remote);
+      return;
+    }
+    Map<String, List<GitNotesCiMessage>> records;
+    try {
+      records = CommitStatusIndex.get().query(remoteURI, commitIds);
+    } catch (IllegalArgumentException e) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    Jenkins jenkins = Jenkins.getInstance();
+    boolean readAll = jenkins == null
+        || jenkins.hasPermission(Jenkins.ADMINISTER);
+    String rootUrl = jenkins == null ? null : jenkins.getRootUrl();
+    Map<String, Boolean> readable = new HashMap<String, Boolean>();
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, List<GitNotesCiMessage>> entry
+        : records.entrySet()) {
+      JsonArray array = new JsonArray();
+      for (GitNotesCiMessage record : entry.getValue()) {
+        if (readAll || canRead(jenkins,
+            jobFullName(record.getUrl(), rootUrl), readable)) {
+          array.add(toJson(record));
+        }
+      }
+      json.add(entry.getKey(), array);
+    }
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = rsp.getWriter();
+    new GsonBuilder().setPrettyPrinting().create().toJson(json, writer);
+    writer.flush();
+  }
+
+  /**
+   * Returns whether the caller can read the job with the given full name,
+   * remembering the answer for the rest of the request.
+   */
+  private static boolean canRead(Jenkins jenkins, String jobFullName,
+      Map<String, Boolean> readable) {
+    if (jobFullName == null) {
+      return false;
+    }
+    Boolean canRead = readable.get(jobFullName);
+    if (canRead == null) {
+      // Null as well if the caller can't read the job or a folder of it.
+      Job<?, ?> job = jenkins.getItemByFullName(jobFullName, Job.class);
+      canRead = job != null && job.hasPermission(Item.READ);
+      readable.put(jobFullName, canRead);
+    }
+    return canRead;
+  }
+
+  /**
+   * Returns the full name of the job whose build has the given URL, e.g.
+   * {@code folder/job} for {@code ROOT/job/folder/job/job/12/}. The URLs
+   * of matrix configurations give the name of their matrix project.
+   *
+   * @return null for URLs of other Jenkins instances and anything else that
+   *     isn't a build URL.
+   */
+  @VisibleForTesting
+  static String jobFullName(String url, String rootUrl) {
+    if (url == null) {
+      return null;
+    }
+    String path = url;
+    if (!Strings.isNullOrEmpty(rootUrl) && path.startsWith(rootUrl)) {
+      path = path.substring(rootUrl.length());
+    } else if (path.contains("://")) {
+      return null;
+    }
+    StringBuilder fullName = new StringBuilder();
+    String[] segments = path.split("/");
+    for (int i = 0; i + 1 < segments.length
+        && segments[i].equals("job"); i += 2) {
+      if (fullName.length() > 0) {
+        fullName.append('/');
+      }
+      fullName.append(Util.rawDecode(segments[i + 1]));
+    }
+    return fullName.length() == 0 ? null : fullName.toString();
+  }
+
+  private static JsonObject toJson(GitNotesCiMessage record) {
+    JsonObject json = new JsonObject();
+    json.addProperty(GitNotesCiMessage.METADATA_TIMESTAMP,
+        record.getTimestampSeconds());
+    json.addProperty(GitNotesCiMessage.METADATA_VERSION,
+        record.getVersion());
+    if (record.getUrl() != null) {
+      json.addProperty(GitNotesCiMessage.METADATA_URL, record.getUrl());
+    }
+    if (record.getStatus() != null) {
+      json.addProperty(GitNotesCiMessage.METADATA_STATUS,
+          record.getStatus());
+    }
+    for (Map.Entry<String, JsonPrimitive> field
+        : record.getData().entrySet()) {
+      json.add(field.getKey(), field.getValue());
+    }
+    return json;
+  }
+}
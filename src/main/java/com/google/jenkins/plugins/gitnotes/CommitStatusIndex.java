@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Answers which builds ran on a commit, from the notes ref and its shards
+ * in the controller-side {@link NotesMirror} of a remote. Parsed records
+ * are kept in a per-remote LRU cache. When the notes refs move, only the
+ * notes that changed between the old and new notes trees are evicted, so
+ * the cache survives publishes and the trees are never rescanned.
+ */
+public final class CommitStatusIndex {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      CommitStatusIndex.class.getName());
+
+  static final int DEFAULT_CACHE_SIZE = 100000;
+  static final long DEFAULT_REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private static final CommitStatusIndex INSTANCE = new CommitStatusIndex(
+      GitNotesJobLogger.GIT_NOTES_REFS, DEFAULT_CACHE_SIZE,
+      DEFAULT_REFRESH_MILLIS);
+
+  private final String notesRef;
+  private final int cacheSize;
+  private final long refreshMillis;
+  private final ConcurrentMap<String, RemoteIndex> remotes =
+      new ConcurrentHashMap<String, RemoteIndex>();
+
+  @VisibleForTesting
+  CommitStatusIndex(String notesRef, int cacheSize, long refreshMillis) {
+    this.notesRef = notesRef;
+    this.cacheSize = cacheSize;
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * Returns the controller-wide index.
+   */
+  public static CommitStatusIndex get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the records of the builds that ran on each of the given
+   * commits of the remote. The remote's notes are fetched into its mirror
+   * first unless they were fetched recently; if that fails, the notes the
+   * mirror already has are used.
+   *
+   * @param commitIds full SHA-1s of the commits.
+   * @return the records by commit, in the order of {@code commitIds};
+   *     commits without records map to an empty list.
+   * @throws IllegalArgumentException if a commit id isn't a full SHA-1.
+   */
+  public Map<String, List<GitNotesCiMessage>> query(URIish remoteURI,
+      Collection<String> commitIds) throws IOException, InterruptedException {
+    NotesMirror mirror = NotesMirror.get();
+    RemoteIndex index = remoteIndex(remoteURI);
+    if (index.isStale(refreshMillis)) {
+      try {
+        mirror.fetchNotes(remoteURI, notesRef,
+            GitNotesJobLogger.DescriptorImpl.lockTimeoutMillis());
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to fetch git notes of "
+            + remoteURI + ", answering from the mirror", e);
+      }
+      index.markRefreshed();
+    }
+    Repository repo = mirror.open(remoteURI);
+    try {
+      return index.query(repo, commitIds);
+    } finally {
+      repo.close();
+    }
+  }
+
+  /**
+   * Forgets everything about all remotes.
+   */
+  public void clear() {
+    remotes.clear();
+  }
+
+  @VisibleForTesting
+  RemoteIndex remoteIndex(URIish remoteURI) {
+    String key = remoteURI.toString();
+    RemoteIndex index = remotes.get(key);
+    if (index == null) {
+      RemoteIndex created = new RemoteIndex(notesRef, cacheSize);
+      index = remotes.putIfAbsent(key, created);
+      if (index == null) {
+        index = created;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * The cached records of one remote, and the notes ref tips they were
+   * read from.
+   */
+  @VisibleForTesting
+  static final class RemoteIndex {
+    private final String notesRef;
+    private final Map<String, List<GitNotesCiMessage>> cache;
+    private Map<String, ObjectId> tips = new TreeMap<String, ObjectId>();
+    private volatile long lastRefreshMillis;
+
+    RemoteIndex(String notesRef, final int cacheSize) {
+      this.notesRef = notesRef;
+      this.cache = new LinkedHashMap<String, List<GitNotesCiMessage>>(
+          16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, List<GitNotesCiMessage>> eldest) {
+          return size() > cacheSize;
+        }
+      };
+    }
+
+    boolean isStale(long refreshMillis) {
+      return System.currentTimeMillis() - lastRefreshMillis >= refreshMillis;
+    }
+
+    void markRefreshed() {
+      lastRefreshMillis = System.currentTimeMillis();
+    }
+
+    synchronized int cachedCommits() {
+      return cache.size();
+    }
+
+    /**
+     * Brings the cache up to date with the notes refs of {@code repo} and
+     * answers the query from it, reading the notes of commits that aren't
+     * cached.
+     */
+    synchronized Map<String, List<GitNotesCiMessage>> query(Repository repo,
+        Collection<String> commitIds) throws IOException {
+      for (String commitId : commitIds) {
+        if (!ObjectId.isId(commitId)) {
+          throw new IllegalArgumentException("Not a commit id: " + commitId);
+        }
+      }
+      Map<String, ObjectId> newTips = readTips(repo);
+      ObjectReader reader = repo.newObjectReader();
+      RevWalk walk = new RevWalk(reader);
+      try {
+        update(reader, walk, newTips);
+        Map<String, List<GitNotesCiMessage>> result =
+            new LinkedHashMap<String, List<GitNotesCiMessage>>();
+        List<NoteMap> maps = null;
+        for (String commitId : commitIds) {
+          String key = commitId.toLowerCase();
+          List<GitNotesCiMessage> records = cache.get(key);
+          if (records == null) {
+            if (maps == null) {
+              maps = new ArrayList<NoteMap>();
+              for (ObjectId tip : tips.values()) {
+                maps.add(NoteMap.read(reader, walk.parseCommit(tip)));
+              }
+            }
+            records = read(reader, maps, ObjectId.fromString(key));
+            cache.put(key, records);
+          }
+          result.put(commitId, records);
+        }
+        return result;
+      } finally {
+        walk.release();
+        reader.release();
+      }
+    }
+
+    /**
+     * Returns the tips of the notes ref and its shards, the unsharded ref
+     * first and the shards in ref name order.
+     */
+    private Map<String, ObjectId> readTips(Repository repo)
+        throws IOException {
+      Map<String, ObjectId> refTips = new TreeMap<String, ObjectId>();
+      Ref unsharded = repo.getRef(notesRef);
+      if (unsharded != null) {
+        refTips.put(unsharded.getName(), unsharded.getObjectId());
+      }
+      for (Ref shard : repo.getRefDatabase()
+          .getRefs(NotesShards.shardsPrefix(notesRef)).values()) {
+        refTips.put(shard.getName(), shard.getObjectId());
+      }
+      return refTips;
+    }
+
+    /**
+     * Evicts the cached commits whose notes differ between the old and new
+     * tip of each ref. Unchanged subtrees of the notes fan-out are skipped
+     * without being read.
+     */
+    private void update(ObjectReader reader, RevWalk walk,
+        Map<String, ObjectId> newTips) throws IOException {
+      if (newTips.equals(tips)) {
+        return;
+      }
+      if (!cache.isEmpty()) {
+        Set<String> refs = new HashSet<String>(tips.keySet());
+        refs.addAll(newTips.keySet());
+        for (String ref : refs) {
+          ObjectId oldTip = tips.get(ref);
+          ObjectId newTip = newTips.get(ref);
+          if (oldTip == null ? newTip != null : !oldTip.equals(newTip)) {
+            evictChanged(reader, walk, oldTip, newTip);
+          }
+        }
+      }
+      tips = newTips;
+    }
+
+    private void evictChanged(ObjectReader reader, RevWalk walk,
+        ObjectId oldTip, ObjectId newTip) throws IOException {
+      TreeWalk diff = new TreeWalk(reader);
+      try {
+        diff.setRecursive(true);
+        diff.setFilter(TreeFilter.ANY_DIFF);
+        addTree(diff, walk, oldTip);
+        addTree(diff, walk, newTip);
+        while (diff.next()) {
+          // Notes are stored under their commit id split into fan-out
+          // directories, e.g. "ab/cdef...".
+          String path = diff.getPathString().replace("/", "");
+          if (ObjectId.isId(path)) {
+            cache.remove(path);
+          }
+        }
+      } finally {
+        diff.release();
+      }
+    }
+
+    private static void addTree(TreeWalk diff, RevWalk walk, ObjectId tip)
+        throws IOException {
+      if (tip == null) {
+        diff.addTree(new EmptyTreeIterator());
+      } else {
+        diff.addTree(walk.parseCommit(tip).getTree());
+      }
+    }
+
+    private static List<GitNotesCiMessage> read(ObjectReader reader,
+        List<NoteMap> maps, ObjectId commit) throws IOException {
+      List<GitNotesCiMessage> records = new ArrayList<GitNotesCiMessage>();
+      for (NoteMap map : maps) {
+        ObjectId blob = map.get(commit);
+        if (blob != null) {
+          records.addAll(GitNotesCiMessage.parseNote(new String(
+              reader.open(blob).getCachedBytes(), Constants.CHARSET),
+              NotesUrlBase.read(reader, map)));
+        }
+      }
+      return Collections.unmodifiableList(records);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+
+/**
+ * Publishes a note on the workspace's HEAD through the {@link GitClient}
+ * commands: fetch, append and push of the notes ref.
+ */
+final class GitClientNotesWriter {
+
+  private GitClientNotesWriter() {
+  }
+
+  /**
+   * Appends the note to HEAD in the client's repository and pushes the
+   * notes ref to the remote, adding the time of each phase to
+   * {@code timings}.
+   *
+   * @return the number of times the push had to be merged and retried.
+   */
+  static int write(GitClient gitClient, URIish remoteURI, String notesRef,
+      String note, PublishRetryPolicy retryPolicy, PublishTimings timings,
+      TaskListener listener)
+      throws GitException, IOException, InterruptedException {
+    return write(gitClient, remoteURI, notesRef, note, retryPolicy, timings,
+        listener, null);
+  }
+
+  /**
+   * Like {@link #write(GitClient, URIish, String, String,
+   * PublishRetryPolicy, PublishTimings, TaskListener)}, but trusts the
+   * notes tip the session last pushed from this workspace, instead of the
+   * remote tip last seen by any build, and records the tip it pushes in
+   * the session.
+   *
+   * @param session the build's session, or null.
+   */
+  static int write(GitClient gitClient, URIish remoteURI, String notesRef,
+      String note, PublishRetryPolicy retryPolicy, PublishTimings timings,
+      TaskListener listener, NotesPublishSession session)
+      throws GitException, IOException, InterruptedException {
+    ObjectId pushedTip = session == null ? null : session.getNotesTip();
+    if (session != null) {
+      // Left unset should this publish fail half-way.
+      session.setNotesTip(null);
+    }
+    RemoteNotesRefCache cache = RemoteNotesRefCache.get();
+    long start = System.nanoTime();
+    ObjectId knownTip = pushedTip != null
+        ? pushedTip : cache.getTip(remoteURI, notesRef);
+    // Skip the fetch when the workspace already has the tip we last saw
+    // on the remote; a stale view shows up as a rejected push below.
+    if (knownTip == null
+        || !knownTip.equals(localNotesTip(gitClient, notesRef))) {
+      GitNotesRemote.fetchForAppend(gitClient, remoteURI, notesRef,
+          GitNotesJobLogger.DescriptorImpl.shallowNotesFetch(),
+          retryPolicy.getTimeoutMinutes(), listener);
+    }
+    timings.add(PublishTimings.Phase.FETCH, start);
+    if (pushedTip == null && !cache.isKnownToExist(remoteURI, notesRef)) {
+      start = System.nanoTime();
+      try {
+        createRefIfMissing(gitClient, remoteURI, notesRef,
+            retryPolicy.getTimeoutMinutes(), listener);
+      } finally {
+        timings.add(PublishTimings.Phase.REF_BOOTSTRAP, start);
+      }
+    }
+    start = System.nanoTime();
+    gitClient.appendNote(gitClient.withRepository(
+        new NotesUrlBase.RelativizeCallback(notesRef, note)), notesRef);
+    timings.add(PublishTimings.Phase.APPEND, start);
+    int retries = GitNotesRemote.pushWithMerge(gitClient, remoteURI, notesRef,
+        retryPolicy, timings, listener);
+    ObjectId tip = localNotesTip(gitClient, notesRef);
+    cache.recordTip(remoteURI, notesRef, tip);
+    if (session != null) {
+      session.setNotesTip(tip);
+    }
+    return retries;
+  }
+
+  /**
+   * Creates the notes ref locally and on the remote if the local repository
+   * doesn't have it.
+   */
+  private static void createRefIfMissing(GitClient gitClient,
+      URIish remoteURI, String notesRef, Integer timeoutMinutes,
+      TaskListener listener) throws GitException, InterruptedException {
+    if (gitClient.refExists(notesRef)) {
+      return;
+    }
+    try {
+      gitClient.ref(notesRef);
+      GitNotesRemote.push(gitClient, remoteURI, notesRef, timeoutMinutes);
+    } catch (GitException e) {
+      // if the push failed, we should remove locally created notes refs
+      listener.getLogger().printf(
+          "Failed to push %s, removing locally created notes refs",
+          notesRef);
+      gitClient.deleteRef(notesRef);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the tip of the local notes ref, or null if it doesn't exist.
+   */
+  private static ObjectId localNotesTip(GitClient gitClient, String notesRef)
+      throws InterruptedException {
+    return gitClient.refExists(notesRef)
+        ? gitClient.revParse(notesRef) : null;
+  }
+}
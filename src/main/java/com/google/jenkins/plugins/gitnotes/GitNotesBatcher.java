@@ -0,0 +1,391 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects notes headed for the same notes ref of a remote within a short
+ * window and publishes them with one fetch, one notes commit and one push
+ * from the remote's {@link NotesMirror}. Like any other publish, a batch
+ * waits for {@link PublishAdmission} and goes through the remote's
+ * {@link RemoteHealth} circuit; notes journaled in the {@link NotesOutbox}
+ * are confirmed once the batch is published.
+ *
+ * <p>Batches of different remotes are flushed concurrently on a bounded
+ * pool, with at most one flush per remote in flight, so that a slow remote
+ * only holds up its own notes. Notes are only batched with notes of jobs
+ * using the same credentials for the remote.
+ */
+public final class GitNotesBatcher {
+
+  static final long DEFAULT_WINDOW_MILLIS = 2000L;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GitNotesBatcher.class.getName());
+
+  private static final int MAX_CONCURRENT_FLUSHES = 4;
+  // Times a batch is flushed before its notes that aren't journaled in the
+  // outbox are given up on.
+  private static final int MAX_ATTEMPTS = 3;
+
+  private static final GitNotesBatcher INSTANCE = new GitNotesBatcher(null,
+      Executors.newFixedThreadPool(MAX_CONCURRENT_FLUSHES,
+          new ThreadFactoryBuilder()
+              .setNameFormat("git-notes-batch-flush-%d")
+              .setDaemon(true)
+              .build()));
+
+  // Only decides when batches are due; the flushes run on their own pool.
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("git-notes-batcher-%d")
+          .setDaemon(true)
+          .build());
+  private final Executor flushes;
+
+  private final Map<String, Batch> batches = new HashMap<String, Batch>();
+  // Batches due for each remote, which are flushed one after the other so
+  // that they don't race each other on the remote's notes refs.
+  private final Map<String, Deque<Batch>> due =
+      new HashMap<String, Deque<Batch>>();
+  // Null for the mirrors of the running Jenkins.
+  private final NotesMirror mirror;
+
+  @VisibleForTesting
+  GitNotesBatcher(NotesMirror mirror, Executor flushes) {
+    this.mirror = mirror;
+    this.flushes = flushes;
+  }
+
+  /**
+   * Returns the controller-wide batcher.
+   */
+  public static GitNotesBatcher get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Adds a note for the given commit to the batch of its remote and notes
+   * ref. The batch is published at most {@code windowMillis} after its
+   * first note arrived, within the target's timeout.
+   *
+   * @param credentials the job's credentials for the remote, or null. The
+   *     note is only batched with notes published with the same ones.
+   * @param outboxId the id the note was journaled with, or null.
+   */
+  void add(PublishTargets.Target target, String notesRef,
+      StandardUsernameCredentials credentials, String commitId,
+      String note, String outboxId, long windowMillis) {
+    synchronized (batches) {
+      pending(target, notesRef, credentials, windowMillis, windowMillis)
+          .add(commitId, note, outboxId);
+    }
+  }
+
+  /**
+   * Adds a note for the given commit to the batch of each of the targets,
+   * which are all published on their own. Unlike {@link #add}, the note is
+   * not confirmed in the outbox by any of them.
+   *
+   * @param credentials the job's credentials for each target, by URL.
+   */
+  void addAll(List<PublishTargets.Target> targets,
+      Map<URIish, StandardUsernameCredentials> credentials, String notesRef,
+      String commitId, String note, long windowMillis) {
+    synchronized (batches) {
+      for (PublishTargets.Target target : targets) {
+        pending(target, notesRef, credentials.get(target.uri), windowMillis,
+            windowMillis).add(commitId, note, null);
+      }
+    }
+  }
+
+  /**
+   * Returns the batch collecting notes for the given remote notes ref and
+   * credentials, starting one flushed after {@code delayMillis} if there
+   * is none.
+   */
+  private Batch pending(PublishTargets.Target target, String notesRef,
+      StandardUsernameCredentials credentials, long windowMillis,
+      long delayMillis) {
+    final String key = key(target.uri, notesRef,
+        credentials == null ? null : credentials.getId());
+    Batch batch = batches.get(key);
+    if (batch == null) {
+      batch = new Batch(target, notesRef, credentials, windowMillis);
+      batches.put(key, batch);
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush(key);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+    return batch;
+  }
+
+  /**
+   * Returns the number of notes waiting for the given remote notes ref.
+   */
+  public int getPendingCount(URIish remoteURI, String notesRef) {
+    String prefix = key(remoteURI, notesRef, null);
+    int count = 0;
+    synchronized (batches) {
+      for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+        if (entry.getKey().startsWith(prefix)) {
+          count += entry.getValue().size;
+        }
+      }
+    }
+    return count;
+  }
+
+  @VisibleForTesting
+  static String key(URIish remoteURI, String notesRef,
+      String credentialsId) {
+    return remoteURI + " " + notesRef + " "
+        + (credentialsId == null ? "" : credentialsId);
+  }
+
+  /**
+   * Hands the batch with the given key to the flushing pool, behind any
+   * other batch due for the same remote.
+   */
+  @VisibleForTesting
+  void flush(String key) {
+    Batch batch;
+    synchronized (batches) {
+      batch = batches.remove(key);
+    }
+    if (batch == null) {
+      return;
+    }
+    final String remote = PublishMetrics.key(batch.target.uri);
+    synchronized (due) {
+      Deque<Batch> queue = due.get(remote);
+      if (queue != null) {
+        // The remote's flush in flight picks it up next.
+        queue.addLast(batch);
+        return;
+      }
+      queue = new ArrayDeque<Batch>();
+      queue.addLast(batch);
+      due.put(remote, queue);
+    }
+    flushes.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain(remote);
+      }
+    });
+  }
+
+  /**
+   * Publishes the batches due for the given remote until there are none.
+   */
+  private void drain(String remote) {
+    while (true) {
+      Batch batch;
+      synchronized (due) {
+        Deque<Batch> queue = due.get(remote);
+        batch = queue.pollFirst();
+        if (batch == null) {
+          due.remove(remote);
+          return;
+        }
+      }
+      try {
+        if (!batch.publish(mirror == null ? NotesMirror.get() : mirror)) {
+          retry(batch);
+        }
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Failed to publish " + batch.size
+            + " batched git notes to " + remote, e);
+        retry(batch);
+      }
+    }
+  }
+
+  /**
+   * Batches the notes of a failed batch again, unless they are journaled
+   * in the outbox, which replays them, or the batch ran out of attempts.
+   */
+  private void retry(Batch failed) {
+    String remote = PublishMetrics.key(failed.target.uri);
+    int unjournaled = failed.size - failed.outboxIds.size();
+    if (unjournaled == 0) {
+      return;
+    }
+    if (failed.attempts >= MAX_ATTEMPTS) {
+      LOGGER.log(Level.SEVERE, "Giving up on {0} batched git notes for {1}"
+          + " after {2} attempts; they are not journaled in the outbox",
+          new Object[] {unjournaled, remote, failed.attempts});
+      return;
+    }
+    LOGGER.log(Level.INFO, "Retrying {0} batched git notes for {1}",
+        new Object[] {unjournaled, remote});
+    synchronized (batches) {
+      Batch batch = pending(failed.target, failed.notesRef,
+          failed.credentials, failed.windowMillis,
+          failed.windowMillis * failed.attempts);
+      batch.attempts = Math.max(batch.attempts, failed.attempts);
+      for (Map.Entry<String, List<String>> entry
+          : failed.unjournaled.entrySet()) {
+        for (String note : entry.getValue()) {
+          batch.add(entry.getKey(), note, null);
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Notes collected for one remote notes ref and credentials.
+   */
+  private static final class Batch {
+    private final PublishTargets.Target target;
+    private final String notesRef;
+    private final StandardUsernameCredentials credentials;
+    private final long windowMillis;
+    private final Map<String, List<String>> notes =
+        new LinkedHashMap<String, List<String>>();
+    // The notes that only live in this batch, to retry if it fails.
+    private final Map<String, List<String>> unjournaled =
+        new LinkedHashMap<String, List<String>>();
+    private final List<String> outboxIds = new ArrayList<String>();
+    private int size;
+    private long payloadBytes;
+    private int attempts;
+
+    Batch(PublishTargets.Target target, String notesRef,
+        StandardUsernameCredentials credentials, long windowMillis) {
+      this.target = target;
+      this.notesRef = notesRef;
+      this.credentials = credentials;
+      this.windowMillis = Math.max(1L, windowMillis);
+    }
+
+    void add(String commitId, String note, String outboxId) {
+      addTo(notes, commitId, note);
+      if (outboxId != null) {
+        outboxIds.add(outboxId);
+      } else {
+        addTo(unjournaled, commitId, note);
+      }
+      size++;
+      payloadBytes += note.getBytes(Charsets.UTF_8).length;
+    }
+
+    private static void addTo(Map<String, List<String>> notes,
+        String commitId, String note) {
+      List<String> forCommit = notes.get(commitId);
+      if (forCommit == null) {
+        forCommit = new ArrayList<String>();
+        notes.put(commitId, forCommit);
+      }
+      forCommit.add(note);
+    }
+
+    /**
+     * Publishes the batch from the remote's mirror.
+     *
+     * @return whether the notes were published.
+     */
+    boolean publish(final NotesMirror mirror) {
+      attempts++;
+      final URIish remoteURI = target.uri;
+      String remote = PublishMetrics.key(remoteURI);
+      final PublishTimings timings = new PublishTimings();
+      long start = System.nanoTime();
+      boolean published = false;
+      int records = 0;
+      try {
+        final long lockTimeoutMillis =
+            GitNotesJobLogger.DescriptorImpl.lockTimeoutMillis();
+        final Map<String, Map<String, List<String>>> byRef =
+            new HashMap<String, Map<String, List<String>>>();
+        byRef.put(notesRef, notes);
+        records = RemoteHealth.get().call(remoteURI, target.timeoutMillis,
+            new Callable<Integer>() {
+              @Override
+              public Integer call() throws Exception {
+                // Held until the push ends, should it outlive the wait.
+                PublishAdmission.Permit permit = PublishAdmission.get().admit(
+                    remoteURI, target.timeoutMillis, timings);
+                try {
+                  return mirror.run(remoteURI, credentials,
+                      lockTimeoutMillis, new NotesBulkPublish(remoteURI,
+                          byRef, PublishRetryPolicy.fromConfiguration()
+                              .withTimeout(target.timeoutMillis)));
+                } finally {
+                  permit.release();
+                }
+              }
+            });
+        published = true;
+        // The mirror pushed a tip that workspaces haven't seen.
+        RemoteNotesRefCache.get().invalidate(remoteURI, notesRef);
+        if (!outboxIds.isEmpty()) {
+          NotesOutbox.get().confirm(outboxIds);
+        }
+        LOGGER.log(Level.FINE,
+            "Published {0} of {1} batched git notes to {2} ({3})",
+            new Object[] {records, size, remote, timings});
+      } catch (RemoteHealth.CircuitOpenException e) {
+        LOGGER.log(Level.WARNING, "Circuit open for {0}, leaving {1} batched"
+            + " git notes to the outbox", new Object[] {
+                remote, outboxIds.size()});
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to publish " + size
+            + " batched git notes to " + remote, e);
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.WARNING, "Interrupted publishing " + size
+            + " batched git notes to " + remote, e);
+        Thread.currentThread().interrupt();
+      } finally {
+        PublishMetrics.get().record(remoteURI, timings,
+            System.nanoTime() - start, size, payloadBytes, 0, published);
+      }
+      return published;
+    }
+  }
+}
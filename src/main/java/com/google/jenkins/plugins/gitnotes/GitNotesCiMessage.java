@@ -15,20 +15,47 @@
  */
 package com.google.jenkins.plugins.gitnotes;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import jenkins.model.Jenkins;
 
 /**
  * Encapsulation of message for continuous integration job's status
  * and information.
+ *
+ * <p>The message is serialized straight into a {@link StringBuilder}, in
+ * the same compact form and field order Gson would produce for it, with the
+ * constant fields written from a precomputed prefix.
+ *
+ * <p>Version {@link #COMPACT_VERSION} messages use one-letter keys, a
+ * numeric timestamp and no agent, e.g.
+ * {@code {"t":1434567890,"v":1,"u":"job/a/12/","s":"success"}}. Their
+ * URL is written in full, and shortened relative to the notes ref's base
+ * URL by {@link NotesUrlBase} when it is appended; {@link #parse} reads
+ * both encodings.
+ *
+ * <p>Finish messages may carry further fields from the
+ * {@link GitNotesDataContributor}s, written after the status in either
+ * encoding.
  */
 public class GitNotesCiMessage {
   @VisibleForTesting
@@ -53,17 +80,61 @@ public class GitNotesCiMessage {
   static final int DEFAULT_VERSION = 0;
   @VisibleForTesting
   static final String BUILD_URL_NOT_AVAILABLE = "unavailable";
+  static final int COMPACT_VERSION = 1;
+  static final String COMPACT_TIMESTAMP = "t";
+  static final String COMPACT_URL = "u";
+  static final String COMPACT_STATUS = "s";
 
-  @VisibleForTesting
-  final JsonObject message;
+  // How Gson escapes control characters in strings.
+  private static final String[] CONTROL_REPLACEMENTS = new String[0x20];
+  static {
+    for (int c = 0; c < 0x20; c++) {
+      CONTROL_REPLACEMENTS[c] = String.format("\\u%04x", c);
+    }
+    CONTROL_REPLACEMENTS['\t'] = "\\t";
+    CONTROL_REPLACEMENTS['\b'] = "\\b";
+    CONTROL_REPLACEMENTS['\n'] = "\\n";
+    CONTROL_REPLACEMENTS['\r'] = "\\r";
+    CONTROL_REPLACEMENTS['\f'] = "\\f";
+  }
+
+  private static final int TIMESTAMP_DIGITS = 10;
+  private static final String TIMESTAMP_PREFIX =
+      "{\"" + METADATA_TIMESTAMP + "\":\"";
+  // Everything from the end of the timestamp up to the agent, inclusive,
+  // for the default version.
+  private static final String DEFAULT_VERSION_AND_AGENT =
+      versionAndAgent(DEFAULT_VERSION);
+  private static final String URL_PREFIX = ",\"" + METADATA_URL + "\":";
+  private static final String STATUS_PREFIX =
+      ",\"" + METADATA_STATUS + "\":";
+  static final String COMPACT_PREFIX = "{\"" + COMPACT_TIMESTAMP + "\":";
+  private static final String COMPACT_VERSION_SUFFIX =
+      ",\"" + METADATA_VERSION + "\":" + COMPACT_VERSION;
+  static final String COMPACT_URL_PREFIX = ",\"" + COMPACT_URL + "\":";
+  private static final String COMPACT_STATUS_PREFIX =
+      ",\"" + COMPACT_STATUS + "\":";
+  // Keys of either encoding, which contributed data can't override.
+  private static final ImmutableSet<String> RESERVED_KEYS = ImmutableSet.of(
+      METADATA_TIMESTAMP, METADATA_VERSION, METADATA_AGENT, METADATA_URL,
+      METADATA_STATUS, COMPACT_TIMESTAMP, COMPACT_URL, COMPACT_STATUS);
+  // Rough size of a serialized message, to size builders up front.
+  private static final int EXPECTED_LENGTH = 200;
+
+  private final long timestampSeconds;
+  private int version = DEFAULT_VERSION;
+  private String url;
+  private String status;
+  private final Map<String, JsonPrimitive> data =
+      new LinkedHashMap<String, JsonPrimitive>();
 
   public GitNotesCiMessage() {
-    this.message = new JsonObject();
-    message.addProperty(METADATA_TIMESTAMP,
-        String.format("%010d", System.currentTimeMillis() / 1000));
+    this(System.currentTimeMillis() / 1000);
+  }
 
-    message.addProperty(METADATA_VERSION, DEFAULT_VERSION);
-    message.addProperty(METADATA_AGENT, AGENT);
+  @VisibleForTesting
+  GitNotesCiMessage(long timestampSeconds) {
+    this.timestampSeconds = timestampSeconds;
   }
 
   /**
@@ -71,22 +142,46 @@ public class GitNotesCiMessage {
    */
   public GitNotesCiMessage addStatus(
       AbstractBuild<?, ?> build, BuildListener listener) {
+    return addStatus((Run<?, ?>) build, (TaskListener) listener);
+  }
+
+  /**
+   * Adds the status of any kind of run to the message.
+   */
+  public GitNotesCiMessage addStatus(
+      Run<?, ?> build, TaskListener listener) {
     Result result = build.getResult();
     if (result == null) {
       listener.error("No build result found.");
     } else if (result.equals(Result.SUCCESS)) {
-      message.addProperty(METADATA_STATUS, STATUS_SUCCESS);
+      addStatus(STATUS_SUCCESS);
     } else {
-      message.addProperty(METADATA_STATUS, STATUS_FAILURE);
+      addStatus(STATUS_FAILURE);
     }
     return this;
   }
 
+  /**
+   * Adds the given build status to the message.
+   */
+  GitNotesCiMessage addStatus(String status) {
+    this.status = status;
+    return this;
+  }
+
   /**
    * Adds this build job's URL to the message.
    */
   public GitNotesCiMessage addBuildLogUrl(AbstractBuild<?, ?> build,
       BuildListener listener) {
+    return addBuildLogUrl((Run<?, ?>) build, (TaskListener) listener);
+  }
+
+  /**
+   * Adds the URL of any kind of run to the message.
+   */
+  public GitNotesCiMessage addBuildLogUrl(Run<?, ?> build,
+      TaskListener listener) {
     // The rootUrl will be null when it is not configured by the user and
     // the calling thread is not in a http request.
     Jenkins jenkins = Jenkins.getInstance();
@@ -100,25 +195,323 @@ public class GitNotesCiMessage {
     }
     String fullUrl = Strings.isNullOrEmpty(rootUrl) ?
         buildUrl : rootUrl + buildUrl;
-    message.addProperty(METADATA_URL, fullUrl);
+    return addUrl(fullUrl);
+  }
 
+  /**
+   * Adds the given full build URL to the message.
+   */
+  GitNotesCiMessage addUrl(String url) {
+    this.url = url;
     return this;
   }
 
+  /**
+   * Adds the fields of the registered {@link GitNotesDataContributor}s, as
+   * far as they are ready within their time budget. Meant for the finish
+   * message only, once the build's result is known.
+   */
+  public GitNotesCiMessage addBuildData(Run<?, ?> build,
+      TaskListener listener) {
+    for (Map.Entry<String, JsonPrimitive> field
+        : GitNotesDataCollector.get().collect(build, listener).entrySet()) {
+      addData(field.getKey(), field.getValue());
+    }
+    return this;
+  }
+
+  /**
+   * Adds a contributed field, unless the key is one of the message's own
+   * or has already been added.
+   *
+   * @return whether the field was added.
+   */
+  boolean addData(String key, JsonPrimitive value) {
+    if (key == null || value == null || RESERVED_KEYS.contains(key)
+        || data.containsKey(key)) {
+      return false;
+    }
+    data.put(key, value);
+    return true;
+  }
+
   /**
    * Adds this message's version number.
    */
   public GitNotesCiMessage addVersion(int version) {
-    message.addProperty(METADATA_VERSION, version);
+    this.version = version;
     return this;
   }
 
+  /**
+   * Returns when the message was created, in seconds since the epoch.
+   */
+  public long getTimestampSeconds() {
+    return timestampSeconds;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the full build URL, or null if the message has none.
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Returns {@link #STATUS_SUCCESS} or {@link #STATUS_FAILURE} for a
+   * finished build, or null for a build that was starting.
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Returns the contributed fields, in the order they were added.
+   */
+  public Map<String, JsonPrimitive> getData() {
+    return Collections.unmodifiableMap(data);
+  }
+
+  /**
+   * Parses every message of a note, one per line. Lines that aren't
+   * messages, e.g. notes written by other tools, are skipped.
+   */
+  public static List<GitNotesCiMessage> parseNote(String note) {
+    List<GitNotesCiMessage> messages = new ArrayList<GitNotesCiMessage>();
+    for (String line : note.split("\n")) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      GitNotesCiMessage message = parse(line);
+      if (message != null) {
+        messages.add(message);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Parses every message of a note, resolving relative URLs of compact
+   * messages against the given base URL of the notes ref, if any.
+   */
+  public static List<GitNotesCiMessage> parseNote(String note,
+      String urlBase) {
+    List<GitNotesCiMessage> messages = parseNote(note);
+    if (urlBase != null) {
+      for (GitNotesCiMessage message : messages) {
+        if (message.url != null && !NotesUrlBase.isAbsolute(message.url)) {
+          message.url = urlBase + message.url;
+        }
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Parses one line of a note, as written by {@link #appendTo} in either
+   * encoding. The URL of a compact message may be relative to the notes
+   * ref's base URL.
+   *
+   * @return the message, or null if the line isn't one.
+   */
+  public static GitNotesCiMessage parse(String line) {
+    try {
+      JsonElement element = new JsonParser().parse(line);
+      if (!element.isJsonObject()) {
+        return null;
+      }
+      JsonObject json = element.getAsJsonObject();
+      boolean compact = json.has(COMPACT_TIMESTAMP);
+      String timestamp = stringField(json,
+          compact ? COMPACT_TIMESTAMP : METADATA_TIMESTAMP);
+      if (timestamp == null) {
+        return null;
+      }
+      GitNotesCiMessage message =
+          new GitNotesCiMessage(Long.parseLong(timestamp.trim()));
+      JsonElement version = json.get(METADATA_VERSION);
+      if (version != null && version.isJsonPrimitive()) {
+        message.addVersion(version.getAsInt());
+      }
+      message
+          .addUrl(stringField(json, compact ? COMPACT_URL : METADATA_URL))
+          .addStatus(stringField(json,
+              compact ? COMPACT_STATUS : METADATA_STATUS));
+      for (Map.Entry<String, JsonElement> field : json.entrySet()) {
+        if (field.getValue().isJsonPrimitive()) {
+          message.addData(field.getKey(),
+              GitNotesDataCollector.toPrimitive(
+                  field.getValue().getAsJsonPrimitive()));
+        }
+      }
+      return message;
+    } catch (JsonParseException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static String stringField(JsonObject json, String name) {
+    JsonElement field = json.get(name);
+    return field == null || !field.isJsonPrimitive()
+        ? null : field.getAsString();
+  }
+
+  /**
+   * Returns the message as a Gson tree, e.g. to compare it with or extend
+   * it in tests.
+   */
+  @VisibleForTesting
+  JsonObject toJsonObject() {
+    JsonObject message = new JsonObject();
+    if (version == COMPACT_VERSION) {
+      message.addProperty(COMPACT_TIMESTAMP, timestampSeconds);
+      message.addProperty(METADATA_VERSION, version);
+      if (url != null) {
+        message.addProperty(COMPACT_URL, url);
+      }
+      if (status != null) {
+        message.addProperty(COMPACT_STATUS, status);
+      }
+      addDataTo(message);
+      return message;
+    }
+    message.addProperty(METADATA_TIMESTAMP,
+        String.format("%010d", timestampSeconds));
+    message.addProperty(METADATA_VERSION, version);
+    message.addProperty(METADATA_AGENT, AGENT);
+    if (url != null) {
+      message.addProperty(METADATA_URL, url);
+    }
+    if (status != null) {
+      message.addProperty(METADATA_STATUS, status);
+    }
+    addDataTo(message);
+    return message;
+  }
+
+  private void addDataTo(JsonObject message) {
+    for (Map.Entry<String, JsonPrimitive> field : data.entrySet()) {
+      message.add(field.getKey(), field.getValue());
+    }
+  }
+
+  /**
+   * Appends the message as one line of JSON, without a line break.
+   */
+  public void appendTo(StringBuilder out) {
+    if (version == COMPACT_VERSION) {
+      appendCompactTo(out);
+      return;
+    }
+    out.append(TIMESTAMP_PREFIX);
+    for (int i = digits(timestampSeconds); i < TIMESTAMP_DIGITS; i++) {
+      out.append('0');
+    }
+    out.append(timestampSeconds);
+    out.append(version == DEFAULT_VERSION
+        ? DEFAULT_VERSION_AND_AGENT : versionAndAgent(version));
+    if (url != null) {
+      out.append(URL_PREFIX);
+      appendString(out, url);
+    }
+    if (status != null) {
+      out.append(STATUS_PREFIX);
+      appendString(out, status);
+    }
+    appendDataTo(out);
+    out.append('}');
+  }
+
+  private void appendCompactTo(StringBuilder out) {
+    out.append(COMPACT_PREFIX).append(timestampSeconds)
+        .append(COMPACT_VERSION_SUFFIX);
+    if (url != null) {
+      out.append(COMPACT_URL_PREFIX);
+      appendString(out, url);
+    }
+    if (status != null) {
+      out.append(COMPACT_STATUS_PREFIX);
+      appendString(out, status);
+    }
+    appendDataTo(out);
+    out.append('}');
+  }
+
+  private void appendDataTo(StringBuilder out) {
+    for (Map.Entry<String, JsonPrimitive> field : data.entrySet()) {
+      out.append(',');
+      appendString(out, field.getKey());
+      out.append(':');
+      JsonPrimitive value = field.getValue();
+      if (value.isString()) {
+        appendString(out, value.getAsString());
+      } else {
+        out.append(value.toString());
+      }
+    }
+  }
+
+  private static String versionAndAgent(int version) {
+    StringBuilder out = new StringBuilder("\",\"")
+        .append(METADATA_VERSION).append("\":").append(version)
+        .append(",\"").append(METADATA_AGENT).append("\":");
+    appendString(out, AGENT);
+    return out.toString();
+  }
+
+  private static int digits(long value) {
+    int digits = 1;
+    for (long rest = value / 10; rest != 0; rest /= 10) {
+      digits++;
+    }
+    return digits;
+  }
+
+  /**
+   * Appends a JSON string literal, escaped the way Gson's
+   * {@link com.google.gson.stream.JsonWriter} does by default.
+   */
+  @VisibleForTesting
+  static void appendString(StringBuilder out, String value) {
+    out.append('"');
+    int last = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement;
+      if (c < 0x20) {
+        replacement = CONTROL_REPLACEMENTS[c];
+      } else if (c == '"') {
+        replacement = "\\\"";
+      } else if (c == '\\') {
+        replacement = "\\\\";
+      } else if (c == '\u2028') {
+        replacement = "\\u2028";
+      } else if (c == '\u2029') {
+        replacement = "\\u2029";
+      } else {
+        continue;
+      }
+      out.append(value, last, i).append(replacement);
+      last = i + 1;
+    }
+    out.append(value, last, length).append('"');
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public String toString() {
-    return message.toString();
+    StringBuilder out = new StringBuilder(EXPECTED_LENGTH);
+    appendTo(out);
+    return out.toString();
   }
 
   /**
@@ -126,8 +519,18 @@ public class GitNotesCiMessage {
    */
   @Override
   public boolean equals(Object o) {
-    return (o == this) || (o instanceof GitNotesCiMessage
-        && ((GitNotesCiMessage) o).message.equals(message));
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof GitNotesCiMessage)) {
+      return false;
+    }
+    GitNotesCiMessage other = (GitNotesCiMessage) o;
+    return timestampSeconds == other.timestampSeconds
+        && version == other.version
+        && Objects.equals(url, other.url)
+        && Objects.equals(status, other.status)
+        && data.equals(other.data);
   }
 
   /**
@@ -135,6 +538,6 @@ public class GitNotesCiMessage {
    */
   @Override
   public int hashCode() {
-    return Objects.hashCode(message);
+    return Objects.hash(timestampSeconds, version, url, status, data);
   }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonPrimitive;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Runs the {@link GitNotesDataContributor}s for a finish note, all at
+ * once on a shared pool, and gathers the fields of those that finish
+ * within their budget.
+ */
+final class GitNotesDataCollector {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GitNotesDataCollector.class.getName());
+
+  static final long DEFAULT_BUDGET_MILLIS = 2000L;
+
+  private static final GitNotesDataCollector INSTANCE =
+      new GitNotesDataCollector();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("Git notes build data %d")
+          .setDaemon(true).build());
+
+  private GitNotesDataCollector() {
+  }
+
+  static GitNotesDataCollector get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Collects the fields of all registered contributors, or none if build
+   * data is disabled.
+   */
+  Map<String, JsonPrimitive> collect(Run<?, ?> build,
+      TaskListener listener) {
+    if (!GitNotesJobLogger.DescriptorImpl.buildData()) {
+      return Collections.emptyMap();
+    }
+    return collect(build, listener, GitNotesDataContributor.all());
+  }
+
+  /**
+   * Collects the fields of the given contributors, in their order. The
+   * calling thread waits at most for the largest budget.
+   */
+  @VisibleForTesting
+  Map<String, JsonPrimitive> collect(final Run<?, ?> build,
+      final TaskListener listener,
+      List<? extends GitNotesDataContributor> contributors) {
+    Map<String, JsonPrimitive> fields =
+        new LinkedHashMap<String, JsonPrimitive>();
+    if (contributors.isEmpty()) {
+      return fields;
+    }
+    long start = System.nanoTime();
+    List<Future<Map<String, ?>>> futures =
+        new ArrayList<Future<Map<String, ?>>>(contributors.size());
+    for (final GitNotesDataContributor contributor : contributors) {
+      futures.add(executor.submit(new Callable<Map<String, ?>>() {
+        @Override
+        public Map<String, ?> call() throws Exception {
+          return contributor.contribute(build, listener);
+        }
+      }));
+    }
+    for (int i = 0; i < contributors.size(); i++) {
+      GitNotesDataContributor contributor = contributors.get(i);
+      Future<Map<String, ?>> future = futures.get(i);
+      long remaining = TimeUnit.MILLISECONDS.toNanos(
+          contributor.getBudgetMillis()) - (System.nanoTime() - start);
+      try {
+        add(fields, future.get(Math.max(0L, remaining),
+            TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        listener.getLogger().printf("Git notes recorder: %s took longer"
+            + " than %d ms, leaving out its build data%n",
+            contributor.getClass().getName(), contributor.getBudgetMillis());
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, contributor.getClass().getName()
+            + " failed to contribute build data", e.getCause());
+      } catch (InterruptedException e) {
+        for (Future<?> pending : futures) {
+          pending.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return fields;
+  }
+
+  private static void add(Map<String, JsonPrimitive> fields,
+      Map<String, ?> contributed) {
+    if (contributed == null) {
+      return;
+    }
+    for (Map.Entry<String, ?> field : contributed.entrySet()) {
+      JsonPrimitive value = toPrimitive(field.getValue());
+      if (field.getKey() != null && value != null
+          && !fields.containsKey(field.getKey())) {
+        fields.put(field.getKey(), value);
+      }
+    }
+  }
+
+  /**
+   * Converts a contributed value to the JSON value written into the note.
+   * Numbers are normalized to a {@code long} or a finite {@code double} so
+   * that equal values compare equal however they were obtained.
+   *
+   * @return the value, or null for a null value.
+   */
+  static JsonPrimitive toPrimitive(Object value) {
+    if (value instanceof JsonPrimitive) {
+      JsonPrimitive primitive = (JsonPrimitive) value;
+      if (primitive.isNumber()) {
+        return toPrimitive(primitive.getAsNumber());
+      }
+      return primitive.isBoolean()
+          ? new JsonPrimitive(primitive.getAsBoolean())
+          : new JsonPrimitive(primitive.getAsString());
+    }
+    if (value instanceof Number) {
+      String text = value.toString();
+      try {
+        return new JsonPrimitive(Long.parseLong(text));
+      } catch (NumberFormatException e) {
+        double number = ((Number) value).doubleValue();
+        return Double.isNaN(number) || Double.isInfinite(number)
+            ? new JsonPrimitive(text) : new JsonPrimitive(number);
+      }
+    }
+    if (value instanceof Boolean) {
+      return new JsonPrimitive((Boolean) value);
+    }
+    return value == null ? null : new JsonPrimitive(value.toString());
+  }
+}
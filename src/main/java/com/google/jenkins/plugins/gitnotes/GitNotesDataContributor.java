@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.Map;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Contributes fields to the note recorded when a build finishes, next to
+ * the status and URL added by {@link GitNotesCiMessage}, e.g. the
+ * duration or test counts of the build.
+ *
+ * <p>Contributors are only called for finish notes, and only when build
+ * data is enabled in the global configuration. They run in parallel on
+ * a shared pool; one that takes longer than its time budget is
+ * interrupted and its fields are left out of the note, so it never holds
+ * up the build for longer than the largest budget.
+ */
+public abstract class GitNotesDataContributor implements ExtensionPoint {
+
+  /**
+   * Returns the fields to add to the finish note of the given build.
+   * Values should be strings, numbers or booleans; anything else is
+   * recorded as its string form, and null values are left out. Fields
+   * whose key the message or an earlier contributor already has are
+   * ignored.
+   */
+  public abstract Map<String, ?> contribute(Run<?, ?> build,
+      TaskListener listener) throws IOException, InterruptedException;
+
+  /**
+   * How long this contributor may take, from the moment the contributors
+   * are started. Defaults to the global build data budget.
+   */
+  public long getBudgetMillis() {
+    return GitNotesJobLogger.DescriptorImpl.buildDataBudgetMillis();
+  }
+
+  /**
+   * Returns all registered contributors.
+   */
+  public static ExtensionList<GitNotesDataContributor> all() {
+    return ExtensionList.lookup(GitNotesDataContributor.class);
+  }
+}
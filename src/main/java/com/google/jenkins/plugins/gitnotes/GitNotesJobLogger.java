@@ -18,48 +18,212 @@ package com.google.jenkins.plugins.gitnotes;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.eclipse.jgit.transport.RefSpec;
-import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
-import org.jenkinsci.plugins.gitclient.FetchCommand;
 import org.jenkinsci.plugins.gitclient.GitClient;
-import org.jenkinsci.plugins.gitclient.PushCommand;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
 
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Run;
 import hudson.model.StreamBuildListener;
 import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.util.BuildData;
 import hudson.scm.SCM;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.LogTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
 
 /**
  * A logger that logs the job's status and other information to git-notes.
  */
 public class GitNotesJobLogger extends BuildWrapper {
 
-  private static final String GIT_REPO_ORIGIN = "origin";
+  /**
+   * How the notes commit is created and transferred.
+   */
+  public enum NotesWriter {
+    /** Through the job's {@link GitClient}, usually forking git. */
+    GIT_CLIENT,
+    /** In-process JGit against the workspace repository. */
+    JGIT
+  }
 
   @VisibleForTesting
   static final String GIT_NOTES_REFS = "refs/notes/devtools/ci";
   private static final Logger LOGGER = Logger.getLogger(
       GitNotesJobLogger.class.getName());
 
+  private boolean asyncPublish;
+  private boolean batchPublish;
+  private NotesWriter notesWriter = NotesWriter.GIT_CLIENT;
+  private boolean publishFromController;
+  private NotesShards.Scheme notesSharding = NotesShards.Scheme.NONE;
+  private int startNoteDelaySeconds;
+  private String publishTargets;
+  private boolean compactNotes;
+
+  // Start notes waiting for their delay, by build.
+  private static final ConcurrentMap<String, DeferredStart> DEFERRED_STARTS =
+      new ConcurrentHashMap<String, DeferredStart>();
+
+  // Sessions of running builds, by build. The build's environments are
+  // gone by the time its log is closed, so the finish note finds and
+  // removes its session here.
+  private static final ConcurrentMap<String, NotesPublishSession> SESSIONS =
+      new ConcurrentHashMap<String, NotesPublishSession>();
+
   @DataBoundConstructor
   public GitNotesJobLogger() {
   }
 
+  /**
+   * Whether notes are handed to the {@link GitNotesPublishQueue} instead of
+   * being written on the build thread.
+   */
+  public boolean isAsyncPublish() {
+    return asyncPublish;
+  }
+
+  @DataBoundSetter
+  public void setAsyncPublish(boolean asyncPublish) {
+    this.asyncPublish = asyncPublish;
+  }
+
+  /**
+   * Whether notes are collected per remote and pushed together from the
+   * remote's mirror by the {@link GitNotesBatcher}. Notes of builds without
+   * a recorded commit are published on their own.
+   */
+  public boolean isBatchPublish() {
+    return batchPublish;
+  }
+
+  @DataBoundSetter
+  public void setBatchPublish(boolean batchPublish) {
+    this.batchPublish = batchPublish;
+  }
+
+  /**
+   * How the notes commit is created and transferred for this job.
+   */
+  public NotesWriter getNotesWriter() {
+    return notesWriter == null ? NotesWriter.GIT_CLIENT : notesWriter;
+  }
+
+  @DataBoundSetter
+  public void setNotesWriter(NotesWriter notesWriter) {
+    this.notesWriter = notesWriter;
+  }
+
+  /**
+   * Whether notes are written to a {@link NotesMirror} on the controller
+   * and pushed from there, rather than from the build's workspace.
+   */
+  public boolean isPublishFromController() {
+    return publishFromController;
+  }
+
+  @DataBoundSetter
+  public void setPublishFromController(boolean publishFromController) {
+    this.publishFromController = publishFromController;
+  }
+
+  /**
+   * How this job's notes are spread over notes refs.
+   */
+  public NotesShards.Scheme getNotesSharding() {
+    return notesSharding == null ? NotesShards.Scheme.NONE : notesSharding;
+  }
+
+  @DataBoundSetter
+  public void setNotesSharding(NotesShards.Scheme notesSharding) {
+    this.notesSharding = notesSharding;
+  }
+
+  /**
+   * How long the start note is held back. Builds that finish within this
+   * time only get their finish note. 0 writes the start note right away.
+   */
+  public int getStartNoteDelaySeconds() {
+    return startNoteDelaySeconds;
+  }
+
+  @DataBoundSetter
+  public void setStartNoteDelaySeconds(int startNoteDelaySeconds) {
+    this.startNoteDelaySeconds = Math.max(0, startNoteDelaySeconds);
+  }
+
+  /**
+   * The remotes notes are published to, one per line, as described in
+   * {@link PublishTargets}. Blank means {@code origin}.
+   */
+  public String getPublishTargets() {
+    return publishTargets;
+  }
+
+  @DataBoundSetter
+  public void setPublishTargets(String publishTargets) {
+    this.publishTargets = publishTargets;
+  }
+
+  /**
+   * Whether notes are written in the compact encoding of
+   * {@link GitNotesCiMessage#COMPACT_VERSION}.
+   */
+  public boolean isCompactNotes() {
+    return compactNotes;
+  }
+
+  @DataBoundSetter
+  public void setCompactNotes(boolean compactNotes) {
+    this.compactNotes = compactNotes;
+  }
+
+  /**
+   * Returns the version, and so the encoding, of the notes this job writes.
+   */
+  int noteVersion() {
+    return compactNotes
+        ? GitNotesCiMessage.COMPACT_VERSION
+        : GitNotesCiMessage.DEFAULT_VERSION;
+  }
+
   @Override
   public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) {
     class ResultLogger extends FilterOutputStream {
@@ -86,14 +250,49 @@ public class GitNotesJobLogger extends BuildWrapper {
   /**
    * Logs a message into git-notes when build/job starts.
    */
-  private void logBuildStartMessage(AbstractBuild<?, ?> build,
-      BuildListener listener) {
-    GitSCM scm = getGitSCM(build);
-    if (scm != null) {
-      GitNotesCiMessage message = new GitNotesCiMessage();
-      message.addVersion(0).addBuildLogUrl(build, listener);
-      writeGitNoteMessage(build, listener, message, scm);
+  private void logBuildStartMessage(final AbstractBuild<?, ?> build,
+      final BuildListener listener, final NotesPublishSession session) {
+    if (session == null) {
+      return;
+    }
+    // The message is stamped with the start time even when it is delayed.
+    final GitNotesCiMessage message = session.newMessage();
+    if (startNoteDelaySeconds <= 0) {
+      publish(build, listener, message, session);
+      return;
     }
+    final String key = build.getExternalizableId();
+    final DeferredStart pending = new DeferredStart();
+    DEFERRED_STARTS.put(key, pending);
+    // The timer's few threads are shared with the rest of Jenkins, so it
+    // only waits out the delay and hands the publish to a pooled thread.
+    final Runnable write = new Runnable() {
+      @Override
+      public void run() {
+        if (!build.isBuilding()) {
+          LOGGER.log(Level.FINE, "Skipping the start note of {0}, which"
+              + " has completed", key);
+          return;
+        }
+        // The build may finish, closing its log, while this publishes, so
+        // it reports to the Jenkins log through a client of its own.
+        BuildListener background = backgroundListener();
+        writeGitNoteMessage(build, background, message, session,
+            journal(build, background, message, session), true);
+      }
+    };
+    pending.setTimer(Timer.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        DEFERRED_STARTS.remove(key, pending);
+        if (pending.claim()) {
+          Computer.threadPoolForRemoting.submit(write);
+        }
+      }
+    }, startNoteDelaySeconds, TimeUnit.SECONDS));
+    listener.getLogger().printf(
+        "Git notes recorder: start note deferred by %d s%n",
+        startNoteDelaySeconds);
   }
 
   /**
@@ -101,81 +300,444 @@ public class GitNotesJobLogger extends BuildWrapper {
    */
   private void logBuildFinishedMessage(AbstractBuild<?, ?> build,
       BuildListener listener) {
+    if (startNoteDelaySeconds > 0) {
+      DeferredStart pendingStart =
+          DEFERRED_STARTS.remove(build.getExternalizableId());
+      if (pendingStart != null && pendingStart.cancel()) {
+        listener.getLogger().println("Git notes recorder: build finished"
+            + " before the start note was due, skipping it.");
+      }
+    }
+    NotesPublishSession session =
+        SESSIONS.remove(build.getExternalizableId());
+    if (session == null) {
+      session = newSession(build, listener);
+    }
+    if (session != null) {
+      GitNotesCiMessage message = session.newMessage()
+          .addStatus(build, listener).addBuildData(build, listener);
+      publish(build, listener, message, session);
+    }
+  }
+
+  /**
+   * Resolves what publishing the build's notes needs, or returns null if
+   * the build has no git SCM.
+   */
+  private NotesPublishSession newSession(AbstractBuild<?, ?> build,
+      TaskListener listener) {
     GitSCM scm = getGitSCM(build);
-    if (scm != null) {
-      GitNotesCiMessage message = new GitNotesCiMessage();
-      message.addVersion(0).addBuildLogUrl(build, listener)
-          .addStatus(build, listener);
-      writeGitNoteMessage(build, listener, message, scm);
+    if (scm == null) {
+      return null;
+    }
+    return new NotesPublishSession(scm,
+        PublishTargets.resolve(publishTargets, scm),
+        NotesShards.refFor(GIT_NOTES_REFS, getNotesSharding(), build),
+        builtCommit(build), noteVersion(),
+        new GitNotesCiMessage().addBuildLogUrl(build, listener).getUrl());
+  }
+
+  /**
+   * Writes the given message either right away or, in async mode, through
+   * the controller-wide publish queue.
+   */
+  private void publish(final AbstractBuild<?, ?> build,
+      BuildListener listener, final GitNotesCiMessage message,
+      final NotesPublishSession session) {
+    final String outboxId = journal(build, listener, message, session);
+    if (!asyncPublish) {
+      writeGitNoteMessage(build, listener, message, session, outboxId,
+          false);
+      return;
+    }
+    // The build log may already be closed by the time the queued publish
+    // runs, so background writes report to the Jenkins log instead.
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        writeGitNoteMessage(build, backgroundListener(), message, session,
+            outboxId, true);
+      }
+    };
+    if (GitNotesPublishQueue.get().submit(build.getExternalizableId(),
+        task)) {
+      listener.getLogger().println("Queued git notes publish.");
+    } else {
+      listener.error("Git notes publish queue is full, dropping note.");
     }
   }
 
   /**
-   * Helper function to write the given message to git-notes.
+   * Journals the note in the {@link NotesOutbox}, if enabled, so that it
+   * reaches the primary target even if this publish fails or the controller
+   * restarts. Builds without a recorded commit aren't journaled.
+   *
+   * @return the outbox id of the note, or null.
    */
-  private void writeGitNoteMessage(AbstractBuild<?, ?> build,
-      final BuildListener listener, GitNotesCiMessage message, GitSCM gitScm) {
+  private String journal(AbstractBuild<?, ?> build, BuildListener listener,
+      GitNotesCiMessage message, NotesPublishSession session) {
+    if (!NotesOutbox.enabled() || session.builtCommit == null
+        || session.targets.isEmpty()) {
+      return null;
+    }
     try {
-      final GitClient gitClient = gitScm.createClient(listener,
-          build.getEnvironment(listener), build, build.getWorkspace());
+      return NotesOutbox.get().record(session.targets.get(0).uri,
+          session.notesRef, session.builtCommit, message.toString(),
+          build.getProject().getFullName());
+    } catch (IOException e) {
+      e.printStackTrace(listener.error(
+          "Failed to journal git note: " + e.getMessage()));
+      return null;
+    }
+  }
+
+  private static BuildListener backgroundListener() {
+    return new StreamBuildListener(
+        new LogTaskListener(LOGGER, Level.INFO).getLogger(), Charsets.UTF_8);
+  }
 
-      RemoteConfig remoteConfig = gitScm.getRepositoryByName(GIT_REPO_ORIGIN);
+  /**
+   * Helper function to write the given message to git-notes. Unless the
+   * note is batched, the publish is recorded in {@link PublishMetrics} and
+   * summarized in the build log, and once published, the note is confirmed
+   * in the {@link NotesOutbox} if it was journaled there. Publishes on the
+   * build's thread share the session's git client.
+   *
+   * @param background whether the publish runs off the build's thread and
+   *     reports to the Jenkins log, and so gets a git client of its own.
+   */
+  private void writeGitNoteMessage(final AbstractBuild<?, ?> build,
+      final BuildListener listener, GitNotesCiMessage message,
+      final NotesPublishSession session, String outboxId,
+      boolean background) {
+    URIish remoteURI = null;
+    final PublishTimings timings = new PublishTimings();
+    long start = System.nanoTime();
+    long payloadBytes = 0;
+    int retries = 0;
+    boolean published = false;
+    Map<URIish, Future<Void>> secondaries = Collections.emptyMap();
+    try {
+      GitSCM gitScm = session.gitScm;
+      List<PublishTargets.Target> targets = session.targets;
 
-      if (remoteConfig == null) {
+      if (targets.isEmpty()) {
         listener.getLogger().println("Failed to find Git repository.");
         return;
       }
 
-      URIish remoteURI = remoteConfig.getURIs().get(0);
-      try {
-        ArrayList<RefSpec> refs = new ArrayList<RefSpec>();
-        refs.add(new RefSpec(
-            String.format("+%s:%s", GIT_NOTES_REFS, GIT_NOTES_REFS)));
-        FetchCommand fetch = gitClient.fetch_().from(remoteURI, refs);
-        fetch.execute();
-      } catch (GitException e) {
-        // This could be a normal case, when the remote doesn't have the
-        // expected git-notes reference yet. The git library doesn't return
-        // a dedicated exception type for "reference not found", so we
-        // would just ignore all GitExceptions here.
-        listener.getLogger().printf(
-            "Caught GitException: %s. Most likely remote doesn't have " +
-            "git notes reference %s", e.getMessage(), GIT_NOTES_REFS);
+      final URIish primary = targets.get(0).uri;
+      final long timeoutMillis = targets.get(0).timeoutMillis;
+      final String notesRef = session.notesRef;
+      final String note = message.toString();
+      payloadBytes = note.getBytes(Charsets.UTF_8).length;
+      final String builtCommit = session.builtCommit;
+      boolean batched = batchPublish && builtCommit != null;
+      // The other targets don't wait for the primary one, nor depend on its
+      // publish succeeding.
+      if (batched) {
+        batchSecondaries(build, gitScm, targets, notesRef, builtCommit, note,
+            listener);
+      } else {
+        secondaries = fanOut(build, gitScm, targets, notesRef, builtCommit,
+            note, listener);
       }
-      if (!gitClient.refExists(GIT_NOTES_REFS)) {
-        try {
-          gitClient.ref(GIT_NOTES_REFS);
-          PushCommand push = gitClient.push().to(remoteURI).ref(GIT_NOTES_REFS);
-          push.execute();
-        } catch (GitException e) {
-          // if the push failed, we should remove locally created GIT_NOTES_REFS
-          listener.getLogger().printf(
-              "Failed to push %s, removing locally created notes refs",
-              GIT_NOTES_REFS);
-          gitClient.deleteRef(GIT_NOTES_REFS);
-          throw e;
-        }
+      if (RemoteHealth.get().isOpen(primary)) {
+        circuitOpen(build, listener, message, session, outboxId);
+        return;
+      }
+      remoteURI = primary;
+      if (batched) {
+        GitNotesBatcher.get().add(targets.get(0), notesRef,
+            session.credentials(build), builtCommit, note, outboxId,
+            DescriptorImpl.batchWindowMillis());
+        listener.getLogger().println("Git notes recorder: note batched for "
+            + PublishMetrics.key(primary));
+        // The batch records its own publish and confirms the note.
+        remoteURI = null;
+        return;
+      }
+      final PublishRetryPolicy retryPolicy =
+          PublishRetryPolicy.fromConfiguration().withTimeout(timeoutMillis);
+      if (publishFromController && builtCommit != null) {
+        retries = RemoteHealth.get().call(primary, timeoutMillis,
+            new Callable<Integer>() {
+              @Override
+              public Integer call() throws Exception {
+                // Held until the publish ends, should it outlive the
+                // caller's wait.
+                PublishAdmission.Permit permit = PublishAdmission.get()
+                    .admit(primary, timeoutMillis, timings);
+                try {
+                  return NotesMirror.get().write(primary, notesRef,
+                      builtCommit, note, retryPolicy, timings,
+                      session.credentials(build),
+                      DescriptorImpl.lockTimeoutMillis());
+                } finally {
+                  permit.release();
+                }
+              }
+            });
+        published = true;
+        listener.getLogger().printf(
+            "Git notes recorder: published %s to %s from the controller"
+            + " (%d retries)%n", notesRef, remoteURI, retries);
+        return;
       }
-      gitClient.appendNote(message.toString(), GIT_NOTES_REFS);
 
-      PushCommand push = gitClient.push().to(remoteURI).ref(GIT_NOTES_REFS);
-      push.execute();
+      long phaseStart = System.nanoTime();
+      // Background publishes may outlive the build log the session's client
+      // reports to, and must not leave it reporting to theirs, so they get
+      // their own.
+      final GitClient gitClient = background
+          ? gitScm.createClient(listener, build.getEnvironment(listener),
+              build, build.getWorkspace())
+          : session.gitClient(build, listener);
+      timings.add(PublishTimings.Phase.CREATE_CLIENT, phaseStart);
+      final String lockKey = NotesWriteLocks.key(build.getBuiltOnStr(),
+          build.getWorkspace(), remoteURI);
+      final boolean jgit = getNotesWriter() == NotesWriter.JGIT;
+      retries = RemoteHealth.get().call(primary, timeoutMillis,
+          new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+              // Builds sharing a workspace or reference repository must not
+              // update its local notes ref at the same time. The lock and
+              // permit are held until the publish ends, should it outlive
+              // the caller's wait.
+              Lock lock = NotesWriteLocks.get().tryLock(lockKey,
+                  DescriptorImpl.lockTimeoutMillis());
+              if (lock == null) {
+                throw new RemoteHealth.NotAttemptedException(
+                    "Timed out waiting for the git notes lock on " + lockKey
+                    + ", skipping note.");
+              }
+              try {
+                PublishAdmission.Permit permit = PublishAdmission.get()
+                    .admit(primary, timeoutMillis, timings);
+                try {
+                  if (jgit) {
+                    return JGitNotesWriter.write(gitClient, primary,
+                        notesRef, note, retryPolicy, timings,
+                        session.credentials(build), session);
+                  }
+                  return GitClientNotesWriter.write(gitClient, primary,
+                      notesRef, note, retryPolicy, timings, listener,
+                      session);
+                } finally {
+                  permit.release();
+                }
+              } finally {
+                lock.unlock();
+              }
+            }
+          });
+      // Both writers recorded the tip they pushed in the session. Should
+      // another build's tip have replaced it in the workspace already, the
+      // next note of this build merely fetches first.
+      published = true;
+      listener.getLogger().printf(
+          "Git notes recorder: published %s to %s (%d retries)%n",
+          notesRef, remoteURI, retries);
     } catch (GitException e) {
       e.printStackTrace(
           listener.error("Caught git-notes exception. " + e.getMessage()));
+    } catch (RemoteHealth.CircuitOpenException e) {
+      // Another build's probe got ahead of this one.
+      circuitOpen(build, listener, message, session, outboxId);
+      remoteURI = null;
+    } catch (RemoteHealth.NotAttemptedException e) {
+      listener.error(e.getMessage());
     } catch (IOException e) {
       e.printStackTrace(listener.error(e.getMessage()));
     } catch (InterruptedException e) {
       e.printStackTrace(listener.error(e.getMessage()));
+    } finally {
+      if (published && outboxId != null) {
+        try {
+          NotesOutbox.get().confirm(outboxId);
+        } catch (IOException e) {
+          e.printStackTrace(listener.error(
+              "Failed to confirm git note in the outbox: " + e.getMessage()));
+        }
+      }
+      if (remoteURI != null) {
+        long totalNanos = System.nanoTime() - start;
+        PublishMetrics.get().record(remoteURI, timings, totalNanos, 1,
+            payloadBytes, retries, published);
+        listener.getLogger().printf(
+            "Git notes recorder: %s publish to %s took %d ms (%s), %d bytes%n",
+            published ? "successful" : "failed", PublishMetrics.key(remoteURI),
+            TimeUnit.NANOSECONDS.toMillis(totalNanos), timings, payloadBytes);
+      }
+      report(secondaries, listener);
     }
   }
 
+  /**
+   * Handles a note for a primary target whose {@link RemoteHealth} circuit
+   * is open. A note journaled already is left to the {@link NotesOutbox};
+   * any other one is journaled there or dropped, as configured.
+   */
+  private static void circuitOpen(AbstractBuild<?, ?> build,
+      BuildListener listener, GitNotesCiMessage message,
+      NotesPublishSession session, String outboxId) {
+    String remote = PublishMetrics.key(session.targets.get(0).uri);
+    if (outboxId != null) {
+      listener.getLogger().printf("Git notes recorder: circuit open for %s,"
+          + " leaving the note to the outbox%n", remote);
+      return;
+    }
+    if (DescriptorImpl.circuitOpenPolicy() == RemoteHealth.OpenPolicy.QUEUE
+        && session.builtCommit != null) {
+      try {
+        NotesOutbox.get().record(session.targets.get(0).uri,
+            session.notesRef, session.builtCommit, message.toString(),
+            build.getProject().getFullName());
+        listener.getLogger().printf("Git notes recorder: circuit open for"
+            + " %s, queued the note in the outbox%n", remote);
+        return;
+      } catch (IOException e) {
+        e.printStackTrace(listener.error(
+            "Failed to journal git note: " + e.getMessage()));
+      }
+    }
+    listener.error("Git notes recorder: circuit open for %s, dropping note.",
+        remote);
+  }
+
+  /**
+   * Hands the note to {@link NotesFanOut} for every target but the primary
+   * one. Each target gets the note appended in its own {@link NotesMirror}
+   * on the controller, so the publishes use neither the build's git client
+   * nor its log, which may both be gone by the time they run.
+   *
+   * @return the publish to each target, by URL.
+   */
+  private static Map<URIish, Future<Void>> fanOut(AbstractBuild<?, ?> build,
+      GitSCM gitScm, List<PublishTargets.Target> targets,
+      final String notesRef, final String commitId, final String note,
+      BuildListener listener) {
+    if (targets.size() < 2) {
+      return Collections.emptyMap();
+    }
+    if (commitId == null) {
+      listener.getLogger().println("Git notes recorder: no built commit,"
+          + " not publishing to the other remotes");
+      return Collections.emptyMap();
+    }
+    long payloadBytes = note.getBytes(Charsets.UTF_8).length;
+    Map<URIish, Future<Void>> publishes =
+        new LinkedHashMap<URIish, Future<Void>>();
+    for (final PublishTargets.Target target
+        : targets.subList(1, targets.size())) {
+      final StandardUsernameCredentials credentials =
+          JGitNotesWriter.lookupCredentials(build.getProject(), gitScm,
+              target.uri);
+      publishes.put(target.uri, NotesFanOut.get().submit(target,
+          payloadBytes, new NotesFanOut.Publish() {
+            @Override
+            public int run(PublishTimings timings) throws Exception {
+              return NotesMirror.get().write(target.uri, notesRef, commitId,
+                  note, PublishRetryPolicy.fromConfiguration()
+                      .withTimeout(target.timeoutMillis), timings,
+                  credentials, DescriptorImpl.lockTimeoutMillis());
+            }
+          }));
+    }
+    listener.getLogger().printf(
+        "Git notes recorder: publishing to %d more remotes%n",
+        publishes.size());
+    return publishes;
+  }
+
+  /**
+   * Hands the note to the {@link GitNotesBatcher} for every target but the
+   * primary one, each of which is batched and published on its own.
+   */
+  private static void batchSecondaries(AbstractBuild<?, ?> build,
+      GitSCM gitScm, List<PublishTargets.Target> targets, String notesRef,
+      String commitId, String note, BuildListener listener) {
+    if (targets.size() < 2) {
+      return;
+    }
+    List<PublishTargets.Target> secondaries =
+        targets.subList(1, targets.size());
+    Map<URIish, StandardUsernameCredentials> credentials =
+        new HashMap<URIish, StandardUsernameCredentials>();
+    for (PublishTargets.Target target : secondaries) {
+      credentials.put(target.uri, JGitNotesWriter.lookupCredentials(
+          build.getProject(), gitScm, target.uri));
+    }
+    GitNotesBatcher.get().addAll(secondaries, credentials, notesRef,
+        commitId, note, DescriptorImpl.batchWindowMillis());
+    listener.getLogger().printf(
+        "Git notes recorder: note batched for %d more remotes%n",
+        secondaries.size());
+  }
+
+  /**
+   * Reports the outcome of the publishes to the other targets that are
+   * done already. The build doesn't wait for the others, whose outcome
+   * {@link NotesFanOut} logs and records once they complete.
+   */
+  private static void report(Map<URIish, Future<Void>> publishes,
+      BuildListener listener) {
+    int pending = 0;
+    for (Map.Entry<URIish, Future<Void>> publish : publishes.entrySet()) {
+      if (!publish.getValue().isDone()) {
+        pending++;
+        continue;
+      }
+      String remote = PublishMetrics.key(publish.getKey());
+      try {
+        publish.getValue().get();
+        listener.getLogger().printf(
+            "Git notes recorder: published to %s%n", remote);
+      } catch (CancellationException e) {
+        listener.error("Git notes recorder: publish to %s timed out",
+            remote);
+      } catch (ExecutionException e) {
+        listener.error("Git notes recorder: publish to %s failed: %s",
+            remote, e.getCause().getMessage());
+      } catch (InterruptedException e) {
+        // Can't happen, the publish is done.
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (pending > 0) {
+      listener.getLogger().printf("Git notes recorder: still publishing to"
+          + " %d more remotes in the background; see the Jenkins log and"
+          + " Git Notes Publish Metrics for the outcome%n", pending);
+    }
+  }
+
+  /**
+   * Returns the commit the git plugin checked out for this build, or null
+   * if it hasn't recorded one.
+   */
+  private static String builtCommit(AbstractBuild<?, ?> build) {
+    BuildData buildData = build.getAction(BuildData.class);
+    if (buildData == null || buildData.getLastBuiltRevision() == null) {
+      return null;
+    }
+    return buildData.getLastBuiltRevision().getSha1String();
+  }
+
   /**
    * The environment that is instantiated for the duration of the build.
    */
   public class EnvironmentImpl extends Environment {
+    private final NotesPublishSession session;
+
     protected EnvironmentImpl(final AbstractBuild build,
         final TaskListener listener) {
+      this(newSession(build, listener));
+    }
+
+    EnvironmentImpl(NotesPublishSession session) {
+      this.session = session;
     }
 
     /** {@inheritDoc} */
@@ -190,8 +752,19 @@ public class GitNotesJobLogger extends BuildWrapper {
   @Override
   public EnvironmentImpl setUp(AbstractBuild build,
     Launcher launcher, BuildListener listener) {
-    logBuildStartMessage(build, listener);
-    return new EnvironmentImpl(build, listener);
+    EnvironmentImpl environment = new EnvironmentImpl(build, listener);
+    if (environment.session != null) {
+      SESSIONS.put(build.getExternalizableId(), environment.session);
+    }
+    logBuildStartMessage(build, listener, environment.session);
+    return environment;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Collection<? extends Action> getProjectActions(
+      AbstractProject job) {
+    return Collections.singletonList(new NotesBackfillAction(job, this));
   }
 
   private static GitSCM getGitSCM(AbstractBuild build) {
@@ -213,11 +786,383 @@ public class GitNotesJobLogger extends BuildWrapper {
     return (GitSCM) scm;
   }
 
+  @VisibleForTesting
+  static boolean isStartDeferred(Run<?, ?> run) {
+    return DEFERRED_STARTS.containsKey(run.getExternalizableId());
+  }
+
+  /**
+   * A start note waiting for its delay. It is claimed by whichever of the
+   * delayed write, the finished build and the build's removal comes first.
+   */
+  private static final class DeferredStart {
+    private final AtomicBoolean pending = new AtomicBoolean(true);
+    private volatile Future<?> timer;
+
+    void setTimer(Future<?> timer) {
+      this.timer = timer;
+    }
+
+    /**
+     * Claims the start note for the delayed write.
+     */
+    boolean claim() {
+      return pending.compareAndSet(true, false);
+    }
+
+    /**
+     * Claims the start note so that it is never written, and cancels its
+     * timer.
+     *
+     * @return whether the start note was still pending.
+     */
+    boolean cancel() {
+      if (!claim()) {
+        return false;
+      }
+      Future<?> scheduled = timer;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Forgets the deferred start note and session of builds that are done
+   * without their log having been closed by the wrapper, e.g. aborted ones,
+   * or that are deleted.
+   */
+  @Extension
+  public static final class CleanupListener extends RunListener<Run<?, ?>> {
+    /** {@inheritDoc} */
+    @Override
+    public void onFinalized(Run<?, ?> run) {
+      forget(run);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onDeleted(Run<?, ?> run) {
+      forget(run);
+    }
+
+    private static void forget(Run<?, ?> run) {
+      String key = run.getExternalizableId();
+      DeferredStart pending = DEFERRED_STARTS.remove(key);
+      if (pending != null) {
+        pending.cancel();
+      }
+      SESSIONS.remove(key);
+    }
+  }
+
   /**
    * Descriptor for this plugin.
    */
   @Extension
   public static class DescriptorImpl extends BuildWrapperDescriptor {
+    private int asyncWorkers = GitNotesPublishQueue.DEFAULT_WORKERS;
+    private int asyncQueueCapacity = GitNotesPublishQueue.DEFAULT_CAPACITY;
+    private GitNotesPublishQueue.OverflowPolicy asyncOverflowPolicy =
+        GitNotesPublishQueue.OverflowPolicy.WAIT;
+    private long asyncOfferTimeoutMillis =
+        GitNotesPublishQueue.DEFAULT_OFFER_TIMEOUT_MILLIS;
+    private long batchWindowMillis = GitNotesBatcher.DEFAULT_WINDOW_MILLIS;
+    private int publishRetries = PublishRetryPolicy.DEFAULT_MAX_RETRIES;
+    private long retryBackoffMillis = PublishRetryPolicy.DEFAULT_BACKOFF_MILLIS;
+    private long lockTimeoutMillis = NotesWriteLocks.DEFAULT_TIMEOUT_MILLIS;
+    private boolean shallowNotesFetch;
+    private boolean notesOutbox;
+    private boolean buildData;
+    private int sshSessionIdleSeconds = (int) TimeUnit.MILLISECONDS
+        .toSeconds(SshSessionPool.DEFAULT_IDLE_MILLIS);
+    private long buildDataBudgetMillis =
+        GitNotesDataCollector.DEFAULT_BUDGET_MILLIS;
+    private double publishRatePerSecond;
+    private int publishBurst = PublishAdmission.DEFAULT_BURST;
+    private int maxConcurrentPublishes;
+    private boolean circuitBreaker;
+    private int circuitOpenSeconds = (int) TimeUnit.MILLISECONDS
+        .toSeconds(RemoteHealth.DEFAULT_OPEN_MILLIS);
+    private RemoteHealth.OpenPolicy circuitOpenPolicy =
+        RemoteHealth.OpenPolicy.QUEUE;
+    private int compactionIntervalHours;
+    private int compactionRetentionDays =
+        NotesCompaction.DEFAULT_RETENTION_DAYS;
+    private String mirrorCredentialsId;
+
+    public DescriptorImpl() {
+      load();
+    }
+
+    /**
+     * Returns the registered descriptor, or null outside of a running
+     * Jenkins.
+     */
+    static DescriptorImpl get() {
+      Jenkins jenkins = Jenkins.getInstance();
+      return jenkins == null ? null
+          : jenkins.getDescriptorByType(DescriptorImpl.class);
+    }
+
+    public int getAsyncWorkers() {
+      return asyncWorkers;
+    }
+
+    public void setAsyncWorkers(int asyncWorkers) {
+      this.asyncWorkers = Math.max(1, asyncWorkers);
+    }
+
+    public int getAsyncQueueCapacity() {
+      return asyncQueueCapacity;
+    }
+
+    public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+      this.asyncQueueCapacity = Math.max(1, asyncQueueCapacity);
+    }
+
+    public GitNotesPublishQueue.OverflowPolicy getAsyncOverflowPolicy() {
+      return asyncOverflowPolicy;
+    }
+
+    public void setAsyncOverflowPolicy(
+        GitNotesPublishQueue.OverflowPolicy asyncOverflowPolicy) {
+      this.asyncOverflowPolicy = asyncOverflowPolicy == null
+          ? GitNotesPublishQueue.OverflowPolicy.WAIT : asyncOverflowPolicy;
+    }
+
+    public long getAsyncOfferTimeoutMillis() {
+      return asyncOfferTimeoutMillis;
+    }
+
+    public void setAsyncOfferTimeoutMillis(long asyncOfferTimeoutMillis) {
+      this.asyncOfferTimeoutMillis = Math.max(0L, asyncOfferTimeoutMillis);
+    }
+
+    public long getBatchWindowMillis() {
+      return batchWindowMillis;
+    }
+
+    public void setBatchWindowMillis(long batchWindowMillis) {
+      this.batchWindowMillis = Math.max(0L, batchWindowMillis);
+    }
+
+    public int getPublishRetries() {
+      return publishRetries;
+    }
+
+    public void setPublishRetries(int publishRetries) {
+      this.publishRetries = Math.max(0, publishRetries);
+    }
+
+    public long getRetryBackoffMillis() {
+      return retryBackoffMillis;
+    }
+
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+      this.retryBackoffMillis = Math.max(0L, retryBackoffMillis);
+    }
+
+    public long getLockTimeoutMillis() {
+      return lockTimeoutMillis;
+    }
+
+    public void setLockTimeoutMillis(long lockTimeoutMillis) {
+      this.lockTimeoutMillis = Math.max(0L, lockTimeoutMillis);
+    }
+
+    public boolean isShallowNotesFetch() {
+      return shallowNotesFetch;
+    }
+
+    public void setShallowNotesFetch(boolean shallowNotesFetch) {
+      this.shallowNotesFetch = shallowNotesFetch;
+    }
+
+    public boolean isNotesOutbox() {
+      return notesOutbox;
+    }
+
+    public void setNotesOutbox(boolean notesOutbox) {
+      this.notesOutbox = notesOutbox;
+    }
+
+    public boolean isBuildData() {
+      return buildData;
+    }
+
+    public void setBuildData(boolean buildData) {
+      this.buildData = buildData;
+    }
+
+    public long getBuildDataBudgetMillis() {
+      return buildDataBudgetMillis;
+    }
+
+    public void setBuildDataBudgetMillis(long buildDataBudgetMillis) {
+      this.buildDataBudgetMillis = Math.max(0L, buildDataBudgetMillis);
+    }
+
+    public int getSshSessionIdleSeconds() {
+      return sshSessionIdleSeconds;
+    }
+
+    public void setSshSessionIdleSeconds(int sshSessionIdleSeconds) {
+      this.sshSessionIdleSeconds = Math.max(0, sshSessionIdleSeconds);
+    }
+
+    public double getPublishRatePerSecond() {
+      return publishRatePerSecond;
+    }
+
+    public void setPublishRatePerSecond(double publishRatePerSecond) {
+      this.publishRatePerSecond = Math.max(0.0, publishRatePerSecond);
+    }
+
+    public int getPublishBurst() {
+      return publishBurst;
+    }
+
+    public void setPublishBurst(int publishBurst) {
+      this.publishBurst = Math.max(1, publishBurst);
+    }
+
+    public int getMaxConcurrentPublishes() {
+      return maxConcurrentPublishes;
+    }
+
+    public void setMaxConcurrentPublishes(int maxConcurrentPublishes) {
+      this.maxConcurrentPublishes = Math.max(0, maxConcurrentPublishes);
+    }
+
+    public boolean isCircuitBreaker() {
+      return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(boolean circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+    }
+
+    public int getCircuitOpenSeconds() {
+      return circuitOpenSeconds;
+    }
+
+    public void setCircuitOpenSeconds(int circuitOpenSeconds) {
+      this.circuitOpenSeconds = Math.max(1, circuitOpenSeconds);
+    }
+
+    public RemoteHealth.OpenPolicy getCircuitOpenPolicy() {
+      return circuitOpenPolicy;
+    }
+
+    public void setCircuitOpenPolicy(
+        RemoteHealth.OpenPolicy circuitOpenPolicy) {
+      this.circuitOpenPolicy = circuitOpenPolicy == null
+          ? RemoteHealth.OpenPolicy.QUEUE : circuitOpenPolicy;
+    }
+
+    public int getCompactionIntervalHours() {
+      return compactionIntervalHours;
+    }
+
+    public void setCompactionIntervalHours(int compactionIntervalHours) {
+      this.compactionIntervalHours = Math.max(0, compactionIntervalHours);
+    }
+
+    public int getCompactionRetentionDays() {
+      return compactionRetentionDays;
+    }
+
+    public void setCompactionRetentionDays(int compactionRetentionDays) {
+      this.compactionRetentionDays = Math.max(0, compactionRetentionDays);
+    }
+
+    public String getMirrorCredentialsId() {
+      return mirrorCredentialsId;
+    }
+
+    public void setMirrorCredentialsId(String mirrorCredentialsId) {
+      this.mirrorCredentialsId = Util.fixEmptyAndTrim(mirrorCredentialsId);
+    }
+
+    static long lockTimeoutMillis() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null
+          ? NotesWriteLocks.DEFAULT_TIMEOUT_MILLIS
+          : descriptor.getLockTimeoutMillis();
+    }
+
+    static String mirrorCredentialsId() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null ? null : descriptor.getMirrorCredentialsId();
+    }
+
+    static boolean shallowNotesFetch() {
+      DescriptorImpl descriptor = get();
+      return descriptor != null && descriptor.isShallowNotesFetch();
+    }
+
+    static boolean buildData() {
+      DescriptorImpl descriptor = get();
+      return descriptor != null && descriptor.isBuildData();
+    }
+
+    static long buildDataBudgetMillis() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null
+          ? GitNotesDataCollector.DEFAULT_BUDGET_MILLIS
+          : descriptor.getBuildDataBudgetMillis();
+    }
+
+    static long sshSessionIdleMillis() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null ? SshSessionPool.DEFAULT_IDLE_MILLIS
+          : TimeUnit.SECONDS.toMillis(descriptor.getSshSessionIdleSeconds());
+    }
+
+    static boolean circuitBreaker() {
+      DescriptorImpl descriptor = get();
+      return descriptor != null && descriptor.isCircuitBreaker();
+    }
+
+    static long circuitOpenMillis() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null ? RemoteHealth.DEFAULT_OPEN_MILLIS
+          : TimeUnit.SECONDS.toMillis(descriptor.getCircuitOpenSeconds());
+    }
+
+    /**
+     * Returns what to do with notes of an open circuit. Queueing them takes
+     * the outbox, so without it they are dropped.
+     */
+    static RemoteHealth.OpenPolicy circuitOpenPolicy() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null || !descriptor.isNotesOutbox()
+          ? RemoteHealth.OpenPolicy.DROP : descriptor.getCircuitOpenPolicy();
+    }
+
+    static long batchWindowMillis() {
+      DescriptorImpl descriptor = get();
+      return descriptor == null
+          ? GitNotesBatcher.DEFAULT_WINDOW_MILLIS
+          : descriptor.getBatchWindowMillis();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json)
+        throws FormException {
+      req.bindJSON(this, json);
+      save();
+      GitNotesPublishQueue.reset();
+      PublishAdmission.get().setLimits(publishRatePerSecond, publishBurst,
+          maxConcurrentPublishes);
+      if (sshSessionIdleSeconds == 0) {
+        SshSessionPool.get().clear();
+      }
+      return true;
+    }
 
     /** {@inheritDoc} */
     @Override
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded in-process queue of pending git-notes publishes, drained by a
+ * dedicated pool of worker threads so that builds do not wait on the git
+ * remote.
+ *
+ * <p>Publishes of the same build run one after the other, in the order
+ * they were submitted, so that a build's finish note never overtakes its
+ * start note. Every publish holds one of the queue's slots, as many as
+ * there are workers plus the queue's capacity, from the time it is
+ * submitted until it is done.
+ */
+public final class GitNotesPublishQueue {
+
+  /**
+   * What to do with a publish when the queue is already full.
+   */
+  public enum OverflowPolicy {
+    /** Wait up to the configured timeout for space, then drop the note. */
+    WAIT,
+    /**
+     * Publish synchronously on the submitting thread, unless publishes of
+     * the same build are still queued, in which case the note is queued
+     * behind them regardless.
+     */
+    CALLER_RUNS,
+    /** Drop the note immediately. */
+    DISCARD
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GitNotesPublishQueue.class.getName());
+
+  static final int DEFAULT_WORKERS = 2;
+  static final int DEFAULT_CAPACITY = 100;
+  static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 10000L;
+
+  private static GitNotesPublishQueue instance;
+
+  private final ThreadPoolExecutor executor;
+  private final OverflowPolicy overflowPolicy;
+  private final long offerTimeoutMillis;
+  private final Semaphore slots;
+  // Publishes waiting for a worker.
+  private final AtomicInteger waiting = new AtomicInteger();
+  // The publishes of each build with one queued or running, in order; the
+  // executor runs one task per build, which drains them.
+  private final Map<String, Deque<Runnable>> builds =
+      new HashMap<String, Deque<Runnable>>();
+
+  @VisibleForTesting
+  GitNotesPublishQueue(int workers, int capacity,
+      OverflowPolicy overflowPolicy, long offerTimeoutMillis) {
+    this.overflowPolicy = overflowPolicy;
+    this.offerTimeoutMillis = offerTimeoutMillis;
+    this.slots = new Semaphore(workers + capacity);
+    // The slots bound the queue; the executor only rejects once shut down.
+    this.executor = new ThreadPoolExecutor(workers, workers,
+        0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("git-notes-publisher-%d")
+            .setDaemon(true)
+            .build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.prestartAllCoreThreads();
+  }
+
+  /**
+   * Returns the controller-wide queue, creating it from the plugin's global
+   * configuration on first use.
+   */
+  public static synchronized GitNotesPublishQueue get() {
+    if (instance == null) {
+      GitNotesJobLogger.DescriptorImpl descriptor =
+          GitNotesJobLogger.DescriptorImpl.get();
+      if (descriptor == null) {
+        instance = new GitNotesPublishQueue(DEFAULT_WORKERS,
+            DEFAULT_CAPACITY, OverflowPolicy.WAIT,
+            DEFAULT_OFFER_TIMEOUT_MILLIS);
+      } else {
+        instance = new GitNotesPublishQueue(
+            descriptor.getAsyncWorkers(),
+            descriptor.getAsyncQueueCapacity(),
+            descriptor.getAsyncOverflowPolicy(),
+            descriptor.getAsyncOfferTimeoutMillis());
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Drops the current queue so that the next {@link #get()} picks up a new
+   * configuration. Already queued publishes are still drained, but no more
+   * are accepted.
+   */
+  static synchronized void reset() {
+    if (instance != null) {
+      synchronized (instance.builds) {
+        instance.executor.shutdown();
+      }
+      instance = null;
+    }
+  }
+
+  /**
+   * Queues the given publish task behind any other publish of the same
+   * build.
+   *
+   * @param buildId the build's {@code Run.getExternalizableId()}.
+   * @return false if the task was dropped because the queue is full or
+   *     shut down.
+   */
+  public boolean submit(String buildId, Runnable task) {
+    if (slots.tryAcquire()) {
+      return enqueue(buildId, task, true);
+    }
+    LOGGER.fine("Git notes publish queue is full, applying policy "
+        + overflowPolicy);
+    switch (overflowPolicy) {
+      case CALLER_RUNS:
+        synchronized (builds) {
+          if (builds.containsKey(buildId)) {
+            return enqueue(buildId, task, false);
+          }
+        }
+        task.run();
+        return true;
+      case WAIT:
+        try {
+          if (!slots.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+        return enqueue(buildId, task, true);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Queues the task behind the build's other publishes.
+   *
+   * @param holdsSlot whether the task holds a slot, which it releases
+   *     once done.
+   */
+  private boolean enqueue(final String buildId, Runnable task,
+      boolean holdsSlot) {
+    synchronized (builds) {
+      if (executor.isShutdown()) {
+        if (holdsSlot) {
+          slots.release();
+        }
+        return false;
+      }
+      waiting.incrementAndGet();
+      if (holdsSlot) {
+        final Runnable publish = task;
+        task = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              publish.run();
+            } finally {
+              slots.release();
+            }
+          }
+        };
+      }
+      Deque<Runnable> tasks = builds.get(buildId);
+      if (tasks != null) {
+        // The build's task in the executor picks it up.
+        tasks.addLast(task);
+        return true;
+      }
+      tasks = new ArrayDeque<Runnable>();
+      tasks.addLast(task);
+      builds.put(buildId, tasks);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain(buildId);
+        }
+      });
+      return true;
+    }
+  }
+
+  /**
+   * Runs the publishes of the given build until there are none left.
+   */
+  private void drain(String buildId) {
+    while (true) {
+      Runnable task;
+      synchronized (builds) {
+        task = builds.get(buildId).pollFirst();
+        if (task == null) {
+          builds.remove(buildId);
+          return;
+        }
+      }
+      waiting.decrementAndGet();
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // Doesn't hold up the build's other publishes.
+        LOGGER.log(Level.WARNING, "Git notes publish failed", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of publishes waiting for a worker.
+   */
+  public int getQueueDepth() {
+    return waiting.get();
+  }
+
+  /**
+   * Returns the number of publishes currently being written.
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  @VisibleForTesting
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * Records a run in git notes from the point this step runs: a start note
+ * is published right away for the commit the git plugin checked out, and
+ * the finish note when the run completes, by {@link GitNotesRunListener}.
+ * Unlike {@link GitNotesJobLogger}, this works for Pipeline jobs, e.g.
+ * {@code step([$class: 'GitNotesPublisher'])} after the checkout.
+ *
+ * <p>Notes are written from the controller's {@link NotesMirror} in the
+ * background, so the step doesn't wait for the push.
+ */
+public final class GitNotesPublisher extends Recorder
+    implements SimpleBuildStep {
+
+  private NotesShards.Scheme notesSharding = NotesShards.Scheme.NONE;
+
+  @DataBoundConstructor
+  public GitNotesPublisher() {
+  }
+
+  /**
+   * How the notes of the run are spread over notes refs.
+   */
+  public NotesShards.Scheme getNotesSharding() {
+    return notesSharding == null ? NotesShards.Scheme.NONE : notesSharding;
+  }
+
+  @DataBoundSetter
+  public void setNotesSharding(NotesShards.Scheme notesSharding) {
+    this.notesSharding = notesSharding;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher,
+      TaskListener listener) {
+    if (run.getAction(GitNotesRunAction.class) != null) {
+      // Already recorded by an earlier step of this run.
+      return;
+    }
+    GitNotesCiMessage message = new GitNotesCiMessage();
+    message.addVersion(0).addBuildLogUrl(run, listener);
+    if (RunNotesPublisher.publish(run, getNotesSharding(), message,
+        listener)) {
+      run.addAction(new GitNotesRunAction(getNotesSharding()));
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public BuildStepMonitor getRequiredMonitorService() {
+    return BuildStepMonitor.NONE;
+  }
+
+  /**
+   * Descriptor for {@link GitNotesPublisher}.
+   */
+  @Extension
+  public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+      return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDisplayName() {
+      return "Record Build Status in Git Notes";
+    }
+  }
+}
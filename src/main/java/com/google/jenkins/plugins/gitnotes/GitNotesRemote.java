@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.FetchCommand;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.PushCommand;
+
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+
+/**
+ * Fetch and push of a notes ref between a local repository and a remote.
+ */
+final class GitNotesRemote {
+
+  // Remotes that refused a shallow fetch of an existing notes ref.
+  private static final Set<String> SHALLOW_UNSUPPORTED =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // How the CLI and JGit report a push rejected because the remote ref
+  // moved on, or because it was locked by a concurrent update.
+  private static final String[] REJECTIONS = {
+      "non-fast-forward", "rejected_nonfastforward", "fetch first",
+      "rejected_remote_changed", "lock_failure", "failed to lock",
+      "cannot lock ref"};
+
+  private GitNotesRemote() {
+  }
+
+  /**
+   * Force-fetches the given notes ref from the remote. A missing remote ref
+   * is reported to the listener but is not an error.
+   */
+  static void fetch(GitClient gitClient, URIish remoteURI, String notesRef,
+      TaskListener listener) throws InterruptedException {
+    fetch(gitClient, remoteURI, notesRef, notesRef, null, listener);
+  }
+
+  /**
+   * Force-fetches the given remote notes ref into {@code localRef}.
+   *
+   * @param timeoutMinutes the timeout of the fetch, or null for the git
+   *     client's default.
+   * @return whether the fetch succeeded.
+   */
+  static boolean fetch(GitClient gitClient, URIish remoteURI,
+      String notesRef, String localRef, Integer timeoutMinutes,
+      TaskListener listener) throws InterruptedException {
+    try {
+      FetchCommand fetch = gitClient.fetch_().from(remoteURI,
+          refSpecs(notesRef, localRef));
+      if (timeoutMinutes != null) {
+        fetch.timeout(timeoutMinutes);
+      }
+      fetch.execute();
+      return true;
+    } catch (GitException e) {
+      // This could be a normal case, when the remote doesn't have the
+      // expected git-notes reference yet. The git library doesn't return
+      // a dedicated exception type for "reference not found", so we
+      // would just ignore all GitExceptions here.
+      listener.getLogger().printf(
+          "Caught GitException: %s. Most likely remote doesn't have " +
+          "git notes reference %s", e.getMessage(), notesRef);
+      return false;
+    }
+  }
+
+  /**
+   * Fetches the notes ref ahead of appending to it. When {@code tipOnly} is
+   * set and the local repository doesn't have the notes ref yet, only the
+   * tip commit of the remote ref is fetched, which is all that appending
+   * needs. Remotes that refuse shallow fetches get a full fetch instead,
+   * and are remembered so that later fetches go straight to it; clients
+   * without shallow support fetch everything regardless.
+   *
+   * @param timeoutMinutes the timeout of each fetch, or null for the git
+   *     client's default.
+   */
+  static void fetchForAppend(GitClient gitClient, URIish remoteURI,
+      String notesRef, boolean tipOnly, Integer timeoutMinutes,
+      TaskListener listener) throws InterruptedException {
+    String key = remoteURI.toString();
+    if (!tipOnly || SHALLOW_UNSUPPORTED.contains(key)
+        || gitClient.refExists(notesRef)) {
+      fetch(gitClient, remoteURI, notesRef, notesRef, timeoutMinutes,
+          listener);
+      return;
+    }
+    try {
+      FetchCommand fetch = gitClient.fetch_().from(remoteURI,
+          refSpecs(notesRef, notesRef)).shallow(true);
+      if (timeoutMinutes != null) {
+        fetch.timeout(timeoutMinutes);
+      }
+      fetch.execute();
+      return;
+    } catch (GitException e) {
+      listener.getLogger().printf(
+          "Shallow fetch of %s failed: %s. Retrying a full fetch.%n",
+          notesRef, e.getMessage());
+    }
+    if (fetch(gitClient, remoteURI, notesRef, notesRef, timeoutMinutes,
+        listener)) {
+      // The ref exists, so it was the shallow fetch that was refused.
+      SHALLOW_UNSUPPORTED.add(key);
+    }
+  }
+
+  private static ArrayList<RefSpec> refSpecs(String notesRef,
+      String localRef) {
+    ArrayList<RefSpec> refs = new ArrayList<RefSpec>();
+    refs.add(new RefSpec(String.format("+%s:%s", notesRef, localRef)));
+    return refs;
+  }
+
+  /**
+   * Pushes the given notes ref to the remote.
+   *
+   * @param timeoutMinutes the timeout of the push, or null for the git
+   *     client's default.
+   */
+  static void push(GitClient gitClient, URIish remoteURI, String notesRef,
+      Integer timeoutMinutes) throws GitException, InterruptedException {
+    PushCommand push = gitClient.push().to(remoteURI).ref(notesRef);
+    if (timeoutMinutes != null) {
+      push.timeout(timeoutMinutes);
+    }
+    push.execute();
+  }
+
+  /**
+   * Pushes the given notes ref without force. Whenever the push is rejected
+   * because the remote moved on, or its ref was locked, the remote notes
+   * are fetched and merged into ours and the push is retried, up to the
+   * policy's limit. Any other failure, or a failed fetch of the remote
+   * notes, fails the push right away. Each fetch and push is bounded by
+   * the policy's timeout. Pushes and merges are added to {@code timings}.
+   *
+   * @return the number of retries it took.
+   */
+  static int pushWithMerge(GitClient gitClient, URIish remoteURI,
+      String notesRef, PublishRetryPolicy policy, PublishTimings timings,
+      TaskListener listener)
+      throws GitException, IOException, InterruptedException {
+    int retries = 0;
+    while (true) {
+      long start = System.nanoTime();
+      try {
+        push(gitClient, remoteURI, notesRef, policy.getTimeoutMinutes());
+        timings.add(PublishTimings.Phase.PUSH, start);
+        return retries;
+      } catch (GitException e) {
+        timings.add(PublishTimings.Phase.PUSH, start);
+        RemoteNotesRefCache.get().invalidate(remoteURI, notesRef);
+        if (!isRejection(e) || retries >= policy.getMaxRetries()) {
+          throw e;
+        }
+        retries++;
+        listener.getLogger().printf(
+            "Push of %s rejected, merging remote notes and retrying"
+            + " (%d/%d)%n", notesRef, retries, policy.getMaxRetries());
+        policy.backoff(retries);
+        start = System.nanoTime();
+        if (!fetch(gitClient, remoteURI, notesRef,
+            NotesMerge.incomingRef(notesRef), policy.getTimeoutMinutes(),
+            listener)) {
+          // Merging would pick up whatever an earlier fetch left behind.
+          throw e;
+        }
+        gitClient.withRepository(new NotesMerge.MergeCallback(notesRef));
+        timings.add(PublishTimings.Phase.MERGE, start);
+      }
+    }
+  }
+
+  /**
+   * Whether the push failed because the remote ref moved on or was locked,
+   * which merging and pushing again can fix.
+   */
+  static boolean isRejection(GitException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (isRejection(t.getMessage())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether JGit's update of a remote ref was rejected because the remote
+   * ref moved on or was locked, as {@link #isRejection(GitException)}
+   * tells for the git-client's pushes.
+   */
+  static boolean isRejection(RemoteRefUpdate update) {
+    switch (update.getStatus()) {
+      case REJECTED_NONFASTFORWARD:
+      case REJECTED_REMOTE_CHANGED:
+        return true;
+      case REJECTED_OTHER_REASON:
+        return isRejection(update.getMessage());
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isRejection(String message) {
+    if (message == null) {
+      return false;
+    }
+    message = message.toLowerCase(Locale.ENGLISH);
+    for (String rejection : REJECTIONS) {
+      if (message.contains(rejection)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
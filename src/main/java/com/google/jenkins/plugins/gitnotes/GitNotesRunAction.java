@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Marks a run whose start was recorded by {@link GitNotesPublisher}, so
+ * that {@link GitNotesRunListener} records its finish in the same notes
+ * ref.
+ */
+public final class GitNotesRunAction extends InvisibleAction {
+
+  private final NotesShards.Scheme notesSharding;
+
+  public GitNotesRunAction(NotesShards.Scheme notesSharding) {
+    this.notesSharding = notesSharding;
+  }
+
+  public NotesShards.Scheme getNotesSharding() {
+    return notesSharding == null ? NotesShards.Scheme.NONE : notesSharding;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Records the finish of the runs {@link GitNotesPublisher} recorded the
+ * start of. This runs on the controller once the result is final; the
+ * push itself happens on the {@link GitNotesPublishQueue}.
+ */
+@Extension
+public final class GitNotesRunListener extends RunListener<Run<?, ?>> {
+
+  /** {@inheritDoc} */
+  @Override
+  public void onCompleted(Run<?, ?> run, TaskListener listener) {
+    GitNotesRunAction action = run.getAction(GitNotesRunAction.class);
+    if (action == null) {
+      return;
+    }
+    GitNotesCiMessage message = new GitNotesCiMessage();
+    message.addVersion(0).addBuildLogUrl(run, listener)
+        .addStatus(run, listener).addBuildData(run, listener);
+    RunNotesPublisher.publish(run, action.getNotesSharding(), message,
+        listener);
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import com.google.common.annotations.VisibleForTesting;
+
+import hudson.model.Item;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.remoting.VirtualChannel;
+import hudson.security.ACL;
+
+/**
+ * Publishes a note on the workspace's HEAD entirely in-process: the notes
+ * commit is built with JGit's {@link org.eclipse.jgit.notes.NoteMap} and
+ * the notes ref is fetched and pushed through a JGit {@link Transport}, so
+ * no git process is forked and the working tree is never touched.
+ */
+final class JGitNotesWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      JGitNotesWriter.class.getName());
+
+  private JGitNotesWriter() {
+  }
+
+  /**
+   * Appends the note to HEAD in the client's repository and pushes the
+   * notes ref to the remote, adding the time of each phase to
+   * {@code timings}.
+   *
+   * @param credentials username/password or SSH private key credentials
+   *     for the remote, or
+   *     null to rely on the node's own git/ssh configuration.
+   * @return the number of times the push had to be merged and retried.
+   */
+  static int write(GitClient gitClient, URIish remoteURI, String notesRef,
+      String note, PublishRetryPolicy retryPolicy, PublishTimings timings,
+      StandardUsernameCredentials credentials)
+      throws IOException, InterruptedException {
+    return write(gitClient, remoteURI, notesRef, note, retryPolicy, timings,
+        credentials, null);
+  }
+
+  /**
+   * Like {@link #write(GitClient, URIish, String, String,
+   * PublishRetryPolicy, PublishTimings, StandardUsernameCredentials)},
+   * but trusts the notes tip the session last pushed from this workspace,
+   * instead of the remote tip last seen by any build, and records the tip
+   * it pushes in the session.
+   *
+   * @param session the build's session, or null.
+   */
+  static int write(GitClient gitClient, URIish remoteURI, String notesRef,
+      String note, PublishRetryPolicy retryPolicy, PublishTimings timings,
+      StandardUsernameCredentials credentials,
+      NotesPublishSession session) throws IOException, InterruptedException {
+    PublishCallback callback = newCallback(remoteURI, notesRef, note,
+        retryPolicy, credentials,
+        session == null ? null : session.getNotesTip());
+    if (session != null) {
+      // Left unset should this publish fail half-way.
+      session.setNotesTip(null);
+    }
+    try {
+      PublishResult result = gitClient.withRepository(callback);
+      if (session != null) {
+        session.setNotesTip(ObjectId.fromString(result.tip));
+      }
+      return recordResult(remoteURI, notesRef, result, timings);
+    } catch (IOException e) {
+      RemoteNotesRefCache.get().invalidate(remoteURI, notesRef);
+      throw e;
+    }
+  }
+
+  /**
+   * Appends the note to the given commit in a repository on this JVM, which
+   * need not contain the commit itself, and pushes the notes ref to the
+   * remote, adding the time of each phase to {@code timings}.
+   *
+   * @return the number of times the push had to be merged and retried.
+   */
+  static int write(Repository repo, URIish remoteURI, String notesRef,
+      String commitId, String note, PublishRetryPolicy retryPolicy,
+      PublishTimings timings, StandardUsernameCredentials credentials)
+      throws IOException, InterruptedException {
+    PublishCallback callback = newCallback(remoteURI, notesRef, note,
+        retryPolicy, credentials, null);
+    callback.setCommitId(commitId);
+    try {
+      return recordResult(remoteURI, notesRef, callback.invoke(repo, null),
+          timings);
+    } catch (IOException e) {
+      RemoteNotesRefCache.get().invalidate(remoteURI, notesRef);
+      throw e;
+    }
+  }
+
+  private static PublishCallback newCallback(URIish remoteURI,
+      String notesRef, String note, PublishRetryPolicy retryPolicy,
+      StandardUsernameCredentials credentials, ObjectId pushedTip) {
+    ObjectId knownTip = pushedTip != null
+        ? pushedTip : RemoteNotesRefCache.get().getTip(remoteURI, notesRef);
+    PublishCallback callback = new PublishCallback(remoteURI, notesRef,
+        note, knownTip == null ? null : knownTip.name(), retryPolicy);
+    callback.setSshSessionIdleMillis(
+        GitNotesJobLogger.DescriptorImpl.sshSessionIdleMillis());
+    callback.setCredentials(NotesCredentials.of(credentials));
+    return callback;
+  }
+
+  private static int recordResult(URIish remoteURI, String notesRef,
+      PublishResult result, PublishTimings timings) {
+    RemoteNotesRefCache.get().recordTip(remoteURI, notesRef,
+        ObjectId.fromString(result.tip));
+    timings.addAll(result.timings);
+    return result.retries;
+  }
+
+  /**
+   * Finds the username/password or SSH private key credentials configured
+   * on the job for the given remote, if any.
+   */
+  static StandardUsernameCredentials lookupCredentials(
+      Item project, GitSCM gitScm, URIish remoteURI) {
+    for (UserRemoteConfig config : gitScm.getUserRemoteConfigs()) {
+      if (config.getCredentialsId() == null || config.getUrl() == null) {
+        continue;
+      }
+      try {
+        if (!remoteURI.equals(new URIish(config.getUrl()))) {
+          continue;
+        }
+      } catch (URISyntaxException e) {
+        continue;
+      }
+      return CredentialsMatchers.firstOrNull(
+          CredentialsProvider.lookupCredentials(
+              StandardUsernameCredentials.class, project,
+              ACL.SYSTEM, URIRequirementBuilder.fromUri(config.getUrl())
+                  .build()),
+          CredentialsMatchers.withId(config.getCredentialsId()));
+    }
+    return null;
+  }
+
+  /**
+   * The pushed notes tip, how many retries it took and how long each phase
+   * took.
+   */
+  @VisibleForTesting
+  static final class PublishResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String tip;
+    final int retries;
+    final PublishTimings timings;
+
+    PublishResult(String tip, int retries, PublishTimings timings) {
+      this.tip = tip;
+      this.retries = retries;
+      this.timings = timings;
+    }
+  }
+
+  /**
+   * Fetches, appends and pushes against the repository wherever it lives.
+   */
+  @VisibleForTesting
+  static final class PublishCallback
+      implements RepositoryCallback<PublishResult> {
+    private static final long serialVersionUID = 1L;
+
+    private final URIish remoteURI;
+    private final String notesRef;
+    private final String note;
+    private final String knownTip;
+    private final PublishRetryPolicy retryPolicy;
+    private String commitId;
+    private NotesCredentials credentials;
+    private long sshSessionIdleMillis;
+
+    PublishCallback(URIish remoteURI, String notesRef, String note,
+        String knownTip, PublishRetryPolicy retryPolicy) {
+      this.remoteURI = remoteURI;
+      this.notesRef = notesRef;
+      this.note = note;
+      this.knownTip = knownTip;
+      this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Authenticates the transport with the given credentials, which are
+     * sent along with the callback; null relies on the node's own git/ssh
+     * configuration.
+     */
+    void setCredentials(NotesCredentials credentials) {
+      this.credentials = credentials;
+    }
+
+    /**
+     * Lets the transport share pooled SSH sessions, kept for this long
+     * when idle, in the JVM the callback runs in.
+     */
+    void setSshSessionIdleMillis(long sshSessionIdleMillis) {
+      this.sshSessionIdleMillis = sshSessionIdleMillis;
+    }
+
+    /**
+     * Annotates the given commit instead of the repository's HEAD.
+     */
+    void setCommitId(String commitId) {
+      this.commitId = commitId;
+    }
+
+    @Override
+    public PublishResult invoke(Repository repo, VirtualChannel channel)
+        throws IOException, InterruptedException {
+      ObjectId head = commitId != null
+          ? ObjectId.fromString(commitId) : repo.resolve(Constants.HEAD);
+      if (head == null) {
+        throw new IOException("No HEAD commit to annotate in " + repo);
+      }
+      List<String> forHead = new ArrayList<String>();
+      forHead.add(note);
+      Map<String, List<String>> notes =
+          new LinkedHashMap<String, List<String>>();
+      notes.put(head.name(), forHead);
+
+      PublishTimings timings = new PublishTimings();
+      long start = System.nanoTime();
+      Transport transport = Transport.open(repo, remoteURI);
+      try {
+        NotesCredentials.apply(credentials, transport, sshSessionIdleMillis);
+        retryPolicy.applyTo(transport);
+        // Skip the fetch when we already hold the tip last seen on the
+        // remote; a stale view shows up as a rejected push below.
+        Ref local = repo.getRef(notesRef);
+        if (knownTip == null || local == null
+            || !knownTip.equals(local.getObjectId().name())) {
+          try {
+            fetch(transport, notesRef);
+          } catch (TransportException e) {
+            // As with the GitClient path, this most likely means the
+            // remote doesn't have the notes ref yet.
+            LOGGER.fine("Fetch of " + notesRef + " failed: "
+                + e.getMessage());
+          }
+        }
+        timings.add(PublishTimings.Phase.FETCH, start);
+        start = System.nanoTime();
+        ObjectId tip = NotesUpdate.appendNotes(repo, notesRef, notes);
+        timings.add(PublishTimings.Phase.APPEND, start);
+        int retries = 0;
+        while (true) {
+          start = System.nanoTime();
+          RemoteRefUpdate update = push(repo, transport);
+          timings.add(PublishTimings.Phase.PUSH, start);
+          RemoteRefUpdate.Status status = update.getStatus();
+          if (status == RemoteRefUpdate.Status.OK
+              || status == RemoteRefUpdate.Status.UP_TO_DATE) {
+            return new PublishResult(tip.name(), retries, timings);
+          }
+          if (retries >= retryPolicy.getMaxRetries()
+              || !GitNotesRemote.isRejection(update)) {
+            throw new IOException(String.format(
+                "Push of %s to %s failed: %s", notesRef, remoteURI, status));
+          }
+          retries++;
+          retryPolicy.backoff(retries);
+          start = System.nanoTime();
+          // The remote has the notes ref by now, so a failed fetch fails
+          // the push, as with the GitClient path, rather than merging
+          // whatever an earlier fetch left behind.
+          String incoming = NotesMerge.incomingRef(notesRef);
+          fetch(transport, incoming);
+          tip = NotesMerge.mergeIncoming(repo, notesRef, incoming);
+          timings.add(PublishTimings.Phase.MERGE, start);
+        }
+      } finally {
+        transport.close();
+      }
+    }
+
+    private void fetch(Transport transport, String localRef)
+        throws IOException {
+      transport.fetch(NullProgressMonitor.INSTANCE,
+          Collections.singletonList(new RefSpec(
+              String.format("+%s:%s", notesRef, localRef))));
+    }
+
+    private RemoteRefUpdate push(Repository repo, Transport transport)
+        throws IOException {
+      RemoteRefUpdate update = new RemoteRefUpdate(repo, notesRef, notesRef,
+          false, null, null);
+      PushResult result = transport.push(NullProgressMonitor.INSTANCE,
+          Collections.singletonList(update));
+      return result.getRemoteUpdate(notesRef);
+    }
+  }
+}
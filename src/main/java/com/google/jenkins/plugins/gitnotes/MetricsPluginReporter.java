@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Reports {@link PublishMetrics} to the registry of the Metrics plugin.
+ * The plugin is an optional dependency, so this class must only be loaded
+ * once the plugin is known to be installed.
+ */
+final class MetricsPluginReporter {
+  private static final String PREFIX = "gitnotes.publish";
+
+  private MetricsPluginReporter() {
+  }
+
+  static void record(String remote, PublishTimings timings, long totalNanos,
+      int notes, long payloadBytes, int retries, boolean success) {
+    MetricRegistry registry = Metrics.metricRegistry();
+    registry.counter(MetricRegistry.name(PREFIX, remote,
+        success ? "successes" : "failures")).inc();
+    registry.counter(MetricRegistry.name(PREFIX, remote, "retries"))
+        .inc(retries);
+    registry.counter(MetricRegistry.name(PREFIX, remote, "notes"))
+        .inc(notes);
+    registry.timer(MetricRegistry.name(PREFIX, remote, "total"))
+        .update(totalNanos, TimeUnit.NANOSECONDS);
+    registry.histogram(MetricRegistry.name(PREFIX, remote, "payloadBytes"))
+        .update(payloadBytes);
+    for (PublishTimings.Phase phase : PublishTimings.Phase.values()) {
+      if (timings.ran(phase)) {
+        registry.timer(MetricRegistry.name(PREFIX, remote, phase.getLabel()))
+            .update(timings.getNanos(phase), TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.util.BuildData;
+
+/**
+ * Writes notes for the past builds of a job, e.g. after the
+ * {@link GitNotesJobLogger} was enabled on it, in the job's note encoding
+ * and to each of its {@link PublishTargets}. Builds are handled in chunks
+ * of {@link NotesBulkPublish#NOTES_PER_COMMIT}: the builds of a chunk are
+ * loaded and turned into finish records in parallel, then the records are
+ * appended in each target's {@link NotesMirror} in one notes commit per
+ * notes ref and pushed, before the next chunk is loaded. Builds whose
+ * finish record the notes already have are skipped, so a backfill can be
+ * rerun.
+ *
+ * <p>Loading builds is throttled to a number of threads running at the
+ * lowest priority and an optional number of builds per second, so that a
+ * backfill doesn't starve live builds.
+ */
+public final class NotesBackfill implements Runnable {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      NotesBackfill.class.getName());
+
+  static final int DEFAULT_THREADS = 2;
+  static final int MAX_THREADS = 16;
+
+  private static final ConcurrentMap<String, NotesBackfill> BACKFILLS =
+      new ConcurrentHashMap<String, NotesBackfill>();
+  private static final ExecutorService COORDINATOR =
+      Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setNameFormat("Git notes backfill %d").setDaemon(true).build());
+
+  /**
+   * Where a backfill is.
+   */
+  public enum State {
+    SCANNING, PUBLISHING, DONE, FAILED
+  }
+
+  private final AbstractProject<?, ?> job;
+  private final NotesShards.Scheme sharding;
+  private final int noteVersion;
+  private final String publishTargets;
+  private final int threads;
+  private final int buildsPerSecond;
+  private final AtomicInteger scannedBuilds = new AtomicInteger();
+  private final AtomicInteger records = new AtomicInteger();
+  // Finish records of the current chunk by notes ref, then by annotated
+  // commit.
+  private final ConcurrentMap<String, ConcurrentMap<String, List<String>>>
+      notes = new ConcurrentHashMap<String,
+          ConcurrentMap<String, List<String>>>();
+  private volatile State state = State.SCANNING;
+  private volatile int totalBuilds;
+  private volatile int publishedRecords;
+  private volatile String error;
+  private long nextPermitNanos;
+
+  @VisibleForTesting
+  NotesBackfill(AbstractProject<?, ?> job, NotesShards.Scheme sharding,
+      int noteVersion, String publishTargets, int threads,
+      int buildsPerSecond) {
+    this.job = job;
+    this.sharding = sharding;
+    this.noteVersion = noteVersion;
+    this.publishTargets = publishTargets;
+    this.threads = Math.max(1, Math.min(MAX_THREADS, threads));
+    this.buildsPerSecond = Math.max(0, buildsPerSecond);
+  }
+
+  /**
+   * Starts a backfill of the given job in the background, unless one is
+   * already running.
+   *
+   * @param noteVersion the version, and so the encoding, of the records.
+   * @param publishTargets the job's publish targets, as described in
+   *     {@link PublishTargets}.
+   * @param buildsPerSecond the most builds to load per second, or 0 for
+   *     no limit.
+   * @return the started backfill, or null if one was already running.
+   */
+  public static NotesBackfill start(AbstractProject<?, ?> job,
+      NotesShards.Scheme sharding, int noteVersion, String publishTargets,
+      int threads, int buildsPerSecond) {
+    NotesBackfill backfill = new NotesBackfill(job, sharding, noteVersion,
+        publishTargets, threads, buildsPerSecond);
+    String key = job.getFullName();
+    NotesBackfill previous = BACKFILLS.get(key);
+    if (previous != null && previous.isRunning()) {
+      return null;
+    }
+    boolean started = previous == null
+        ? BACKFILLS.putIfAbsent(key, backfill) == null
+        : BACKFILLS.replace(key, previous, backfill);
+    if (!started) {
+      return null;
+    }
+    COORDINATOR.execute(backfill);
+    return backfill;
+  }
+
+  /**
+   * Returns the running or last backfill of the given job, or null.
+   */
+  public static NotesBackfill forJob(AbstractProject<?, ?> job) {
+    return BACKFILLS.get(job.getFullName());
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isRunning() {
+    return state == State.SCANNING || state == State.PUBLISHING;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getBuildsPerSecond() {
+    return buildsPerSecond;
+  }
+
+  public int getTotalBuilds() {
+    return totalBuilds;
+  }
+
+  public int getScannedBuilds() {
+    return scannedBuilds.get();
+  }
+
+  /**
+   * Returns the number of finish records generated so far.
+   */
+  public int getRecords() {
+    return records.get();
+  }
+
+  /**
+   * Returns the number of records that were new to the notes and pushed.
+   */
+  public int getPublishedRecords() {
+    return publishedRecords;
+  }
+
+  /**
+   * Returns why the backfill failed, or null.
+   */
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public void run() {
+    ExecutorService workers = null;
+    try {
+      if (!(job.getScm() instanceof GitSCM)) {
+        throw new IOException("No Git SCM configured on " + job.getFullName());
+      }
+      GitSCM gitScm = (GitSCM) job.getScm();
+      List<PublishTargets.Target> targets =
+          PublishTargets.resolve(publishTargets, gitScm);
+      if (targets.isEmpty()) {
+        throw new IOException("Failed to find Git repository.");
+      }
+      AbstractBuild<?, ?> last = job.getLastCompletedBuild();
+      totalBuilds = last == null ? 0 : last.getNumber();
+      workers = Executors.newFixedThreadPool(threads,
+          new ThreadFactoryBuilder()
+              .setNameFormat("Git notes backfill of " + job.getFullName()
+                  + " %d")
+              .setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+      for (int first = 1; first <= totalBuilds;
+          first += NotesBulkPublish.NOTES_PER_COMMIT) {
+        state = State.SCANNING;
+        scan(workers, first, Math.min(totalBuilds,
+            first + NotesBulkPublish.NOTES_PER_COMMIT - 1));
+        state = State.PUBLISHING;
+        publish(gitScm, targets);
+        notes.clear();
+      }
+      state = State.DONE;
+      LOGGER.log(Level.INFO, "Backfilled {0} git notes for {1}",
+          new Object[] {publishedRecords, job.getFullName()});
+    } catch (IOException e) {
+      fail(e);
+    } catch (InterruptedException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      fail(e);
+    } finally {
+      if (workers != null) {
+        workers.shutdownNow();
+      }
+      notes.clear();
+    }
+  }
+
+  private void fail(Exception e) {
+    error = e.toString();
+    state = State.FAILED;
+    LOGGER.log(Level.WARNING,
+        "Failed to backfill git notes for " + job.getFullName(), e);
+  }
+
+  /**
+   * Loads the builds numbered {@code first} to {@code last} on the worker
+   * threads, each taking every {@code threads}th build, and collects their
+   * finish records.
+   */
+  private void scan(ExecutorService workers, final int first, final int last)
+      throws InterruptedException {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < threads; i++) {
+      final int offset = i;
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException {
+          for (int number = first + offset; number <= last;
+              number += threads) {
+            throttle();
+            try {
+              collect(job.getBuildByNumber(number));
+            } catch (RuntimeException e) {
+              LOGGER.log(Level.WARNING, "Failed to load build " + number
+                  + " of " + job.getFullName(), e);
+            } finally {
+              scannedBuilds.incrementAndGet();
+            }
+          }
+          return null;
+        }
+      });
+    }
+    for (Future<Void> task : workers.invokeAll(tasks)) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        // Workers only fail when interrupted, or with an Error.
+        Throwables.propagateIfPossible(e.getCause(),
+            InterruptedException.class);
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Publishes the collected records to every target. A failure to publish
+   * to the primary target fails the backfill; the other targets are best
+   * effort.
+   */
+  private void publish(GitSCM gitScm, List<PublishTargets.Target> targets)
+      throws IOException, InterruptedException {
+    if (notes.isEmpty()) {
+      return;
+    }
+    Map<String, Map<String, List<String>>> sorted = sortedNotes();
+    long lockTimeoutMillis =
+        GitNotesJobLogger.DescriptorImpl.lockTimeoutMillis();
+    for (int i = 0; i < targets.size(); i++) {
+      URIish remoteURI = targets.get(i).uri;
+      try {
+        PublishAdmission.Permit permit = PublishAdmission.get().admit(
+            remoteURI, lockTimeoutMillis, new PublishTimings());
+        try {
+          int published = NotesMirror.get().run(remoteURI,
+              JGitNotesWriter.lookupCredentials(job, gitScm, remoteURI),
+              lockTimeoutMillis, new NotesBulkPublish(remoteURI, sorted,
+                  PublishRetryPolicy.fromConfiguration()));
+          if (i == 0) {
+            publishedRecords += published;
+          }
+        } finally {
+          permit.release();
+        }
+      } catch (IOException e) {
+        if (i == 0) {
+          throw e;
+        }
+        LOGGER.log(Level.WARNING, "Failed to backfill git notes of "
+            + job.getFullName() + " to " + PublishMetrics.key(remoteURI), e);
+      }
+    }
+  }
+
+  /**
+   * Waits for the next of the {@code buildsPerSecond} permits.
+   */
+  private void throttle() throws InterruptedException {
+    if (buildsPerSecond == 0) {
+      return;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long permit = Math.max(now, nextPermitNanos);
+      nextPermitNanos = permit + TimeUnit.SECONDS.toNanos(1) / buildsPerSecond;
+      waitNanos = permit - now;
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  @VisibleForTesting
+  void collect(AbstractBuild<?, ?> build) {
+    if (build == null || build.isBuilding() || build.getResult() == null) {
+      return;
+    }
+    BuildData buildData = build.getAction(BuildData.class);
+    if (buildData == null || buildData.getLastBuiltRevision() == null) {
+      return;
+    }
+    String commitId = buildData.getLastBuiltRevision().getSha1String();
+    GitNotesCiMessage message = new GitNotesCiMessage(
+        (build.getStartTimeInMillis() + build.getDuration()) / 1000);
+    message.addVersion(noteVersion).addBuildLogUrl(build, null);
+    message.addStatus(Result.SUCCESS.equals(build.getResult())
+        ? GitNotesCiMessage.STATUS_SUCCESS
+        : GitNotesCiMessage.STATUS_FAILURE);
+
+    String notesRef = NotesShards.refFor(GitNotesJobLogger.GIT_NOTES_REFS,
+        sharding, build);
+    ConcurrentMap<String, List<String>> forRef = notes.get(notesRef);
+    if (forRef == null) {
+      ConcurrentMap<String, List<String>> created =
+          new ConcurrentHashMap<String, List<String>>();
+      forRef = notes.putIfAbsent(notesRef, created);
+      if (forRef == null) {
+        forRef = created;
+      }
+    }
+    List<String> forCommit = forRef.get(commitId);
+    if (forCommit == null) {
+      List<String> created =
+          Collections.synchronizedList(new ArrayList<String>());
+      forCommit = forRef.putIfAbsent(commitId, created);
+      if (forCommit == null) {
+        forCommit = created;
+      }
+    }
+    forCommit.add(message.toString());
+    records.incrementAndGet();
+  }
+
+  /**
+   * Returns the collected records with the records of each commit in
+   * timestamp order, as {@link NotesMerge.CatSortUniqMerger} would keep
+   * them.
+   */
+  @VisibleForTesting
+  Map<String, Map<String, List<String>>> sortedNotes() {
+    Map<String, Map<String, List<String>>> sorted =
+        new TreeMap<String, Map<String, List<String>>>();
+    for (Map.Entry<String, ConcurrentMap<String, List<String>>> ref
+        : notes.entrySet()) {
+      Map<String, List<String>> forRef =
+          new TreeMap<String, List<String>>();
+      for (Map.Entry<String, List<String>> commit
+          : ref.getValue().entrySet()) {
+        forRef.put(commit.getKey(),
+            NotesMerge.sortRecords(commit.getValue()));
+      }
+      sorted.put(ref.getKey(), forRef);
+    }
+    return sorted;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import jenkins.model.Jenkins;
+
+/**
+ * Lets administrators start a {@link NotesBackfill} of a job that has the
+ * {@link GitNotesJobLogger}, and shows its progress, at
+ * {@code JOB_URL/git-notes-backfill/}.
+ */
+public final class NotesBackfillAction implements Action {
+
+  private final AbstractProject<?, ?> job;
+  private final GitNotesJobLogger logger;
+
+  public NotesBackfillAction(AbstractProject<?, ?> job,
+      GitNotesJobLogger logger) {
+    this.job = job;
+    this.logger = logger;
+  }
+
+  public AbstractProject<?, ?> getJob() {
+    return job;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getIconFileName() {
+    Jenkins jenkins = Jenkins.getInstance();
+    return jenkins != null && jenkins.hasPermission(Jenkins.ADMINISTER)
+        ? "notepad.png" : null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDisplayName() {
+    return "Backfill Git Notes";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUrlName() {
+    return "git-notes-backfill";
+  }
+
+  /**
+   * Returns the running or last backfill of the job, or null.
+   */
+  public NotesBackfill getBackfill() {
+    return NotesBackfill.forJob(job);
+  }
+
+  public int getDefaultThreads() {
+    return NotesBackfill.DEFAULT_THREADS;
+  }
+
+  /**
+   * Starts a backfill with the given throttle, unless one is running.
+   */
+  @RequirePOST
+  public void doStart(StaplerResponse rsp,
+      @QueryParameter int threads, @QueryParameter int buildsPerSecond)
+      throws IOException {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    NotesBackfill.start(job, logger.getNotesSharding(),
+        logger.noteVersion(), logger.getPublishTargets(),
+        threads <= 0 ? NotesBackfill.DEFAULT_THREADS : threads,
+        buildsPerSecond);
+    rsp.sendRedirect(".");
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Publishes many records from a {@link NotesMirror} at once: fetches the
+ * notes refs into the mirror, appends the records they don't have yet in
+ * a few large commits per ref and pushes every notes ref in a single
+ * push.
+ */
+final class NotesBulkPublish implements NotesMirror.Task<Integer> {
+
+  static final int NOTES_PER_COMMIT = 10000;
+
+  private final URIish remoteURI;
+  private final Map<String, Map<String, List<String>>> notes;
+  private final PublishRetryPolicy retryPolicy;
+
+  NotesBulkPublish(URIish remoteURI,
+      Map<String, Map<String, List<String>>> notes,
+      PublishRetryPolicy retryPolicy) {
+    this.remoteURI = remoteURI;
+    this.notes = notes;
+    this.retryPolicy = retryPolicy;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Integer run(Repository repo, Transport transport)
+      throws IOException, InterruptedException {
+    retryPolicy.applyTo(transport);
+    fetchExisting(transport, notes.keySet(), null);
+    int published = 0;
+    List<String> updated = new ArrayList<String>();
+    for (Map.Entry<String, Map<String, List<String>>> entry
+        : notes.entrySet()) {
+      String notesRef = entry.getKey();
+      Map<String, List<String>> unpublished =
+          withoutPublished(repo, notesRef, entry.getValue());
+      if (unpublished.isEmpty()) {
+        continue;
+      }
+      Map<String, List<String>> chunk =
+          new LinkedHashMap<String, List<String>>();
+      for (Map.Entry<String, List<String>> commit
+          : unpublished.entrySet()) {
+        chunk.put(commit.getKey(), commit.getValue());
+        published += commit.getValue().size();
+        if (chunk.size() == NOTES_PER_COMMIT) {
+          NotesUpdate.appendNotes(repo, notesRef, chunk);
+          chunk.clear();
+        }
+      }
+      if (!chunk.isEmpty()) {
+        NotesUpdate.appendNotes(repo, notesRef, chunk);
+      }
+      updated.add(notesRef);
+    }
+    if (!updated.isEmpty()) {
+      pushAll(repo, transport, updated);
+    }
+    return published;
+  }
+
+  /**
+   * Fetches those of the given notes refs that the remote has, into
+   * themselves or, given a {@code localRefs} function, into the refs it
+   * maps them to.
+   */
+  private static void fetchExisting(Transport transport,
+      Collection<String> notesRefs, Map<String, String> localRefs)
+      throws IOException {
+    Map<String, Ref> advertised;
+    FetchConnection connection = transport.openFetch();
+    try {
+      advertised = connection.getRefsMap();
+    } finally {
+      connection.close();
+    }
+    List<RefSpec> specs = new ArrayList<RefSpec>();
+    for (String notesRef : notesRefs) {
+      if (advertised.containsKey(notesRef)) {
+        specs.add(new RefSpec(String.format("+%s:%s", notesRef,
+            localRefs == null ? notesRef : localRefs.get(notesRef))));
+      }
+    }
+    if (!specs.isEmpty()) {
+      transport.fetch(NullProgressMonitor.INSTANCE, specs);
+    }
+  }
+
+  /**
+   * Leaves out the records the notes already have, and those of builds
+   * that already have a finish record on the same commit.
+   */
+  private static Map<String, List<String>> withoutPublished(
+      Repository repo, String notesRef, Map<String, List<String>> notes)
+      throws IOException {
+    Ref ref = repo.getRef(notesRef);
+    if (ref == null) {
+      return notes;
+    }
+    Map<String, List<String>> unpublished =
+        new LinkedHashMap<String, List<String>>();
+    ObjectReader reader = repo.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      NoteMap map = NoteMap.read(reader,
+          walk.parseCommit(ref.getObjectId()));
+      String urlBase = NotesUrlBase.read(reader, map);
+      for (Map.Entry<String, List<String>> entry : notes.entrySet()) {
+        ObjectId blob = map.get(ObjectId.fromString(entry.getKey()));
+        if (blob == null) {
+          unpublished.put(entry.getKey(), entry.getValue());
+          continue;
+        }
+        String text = new String(reader.open(blob).getCachedBytes(),
+            Constants.CHARSET);
+        Set<String> lines = new HashSet<String>(
+            Arrays.asList(text.split("\n")));
+        Set<String> finished = new HashSet<String>();
+        for (GitNotesCiMessage existing : GitNotesCiMessage.parseNote(text,
+            urlBase)) {
+          if (existing.getStatus() != null) {
+            finished.add(existing.getUrl());
+          }
+        }
+        List<String> missing = new ArrayList<String>();
+        for (String record : entry.getValue()) {
+          GitNotesCiMessage message = GitNotesCiMessage.parse(record);
+          if (!lines.contains(NotesUrlBase.relativize(record, urlBase))
+              && (message == null
+              || message.getStatus() == null
+              || !finished.contains(message.getUrl()))) {
+            missing.add(record);
+          }
+        }
+        if (!missing.isEmpty()) {
+          unpublished.put(entry.getKey(), missing);
+        }
+      }
+    } finally {
+      walk.release();
+      reader.release();
+    }
+    return unpublished;
+  }
+
+  /**
+   * Pushes the given notes refs in one push. Refs rejected because the
+   * remote moved on, or was locked, are merged with the remote notes and
+   * pushed again, up to the policy's limit.
+   */
+  private void pushAll(Repository repo, Transport transport,
+      List<String> notesRefs) throws IOException, InterruptedException {
+    List<String> pending = notesRefs;
+    int retries = 0;
+    while (true) {
+      List<RemoteRefUpdate> updates = new ArrayList<RemoteRefUpdate>();
+      for (String notesRef : pending) {
+        updates.add(new RemoteRefUpdate(repo, notesRef, notesRef, false,
+            null, null));
+      }
+      PushResult result = transport.push(NullProgressMonitor.INSTANCE,
+          updates);
+      List<String> rejected = new ArrayList<String>();
+      for (String notesRef : pending) {
+        RemoteRefUpdate update = result.getRemoteUpdate(notesRef);
+        RemoteRefUpdate.Status status = update.getStatus();
+        if (status == RemoteRefUpdate.Status.OK
+            || status == RemoteRefUpdate.Status.UP_TO_DATE) {
+          RemoteNotesRefCache.get().recordTip(remoteURI, notesRef,
+              repo.getRef(notesRef).getObjectId());
+        } else if (GitNotesRemote.isRejection(update)) {
+          RemoteNotesRefCache.get().invalidate(remoteURI, notesRef);
+          rejected.add(notesRef);
+        } else {
+          throw new IOException(String.format(
+              "Push of %s to %s failed: %s", notesRef, remoteURI, status));
+        }
+      }
+      if (rejected.isEmpty()) {
+        return;
+      }
+      if (retries >= retryPolicy.getMaxRetries()) {
+        throw new IOException(String.format(
+            "Push of %s to %s rejected after %d retries", rejected,
+            remoteURI, retries));
+      }
+      retries++;
+      retryPolicy.backoff(retries);
+      Map<String, String> incoming = new LinkedHashMap<String, String>();
+      for (String notesRef : rejected) {
+        incoming.put(notesRef, NotesMerge.incomingRef(notesRef));
+      }
+      fetchExisting(transport, rejected, incoming);
+      for (Map.Entry<String, String> entry : incoming.entrySet()) {
+        NotesMerge.mergeIncoming(repo, entry.getKey(), entry.getValue());
+      }
+      pending = rejected;
+    }
+  }
+}
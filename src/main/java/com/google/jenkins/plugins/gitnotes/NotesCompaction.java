@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+/**
+ * Periodically compacts the notes refs of the controller-side
+ * {@link NotesMirror}s with {@link NotesCompactor}, as often as the global
+ * configuration asks for, and packs the mirrors once a day, whether or not
+ * compaction is enabled.
+ */
+@Extension
+public final class NotesCompaction extends AsyncPeriodicWork {
+
+  static final int DEFAULT_RETENTION_DAYS = 30;
+
+  static final long GC_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private volatile long lastRun;
+  private volatile long lastGc;
+
+  public NotesCompaction() {
+    super("Git notes compaction");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getRecurrencePeriod() {
+    return HOUR;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void execute(TaskListener listener)
+      throws IOException, InterruptedException {
+    GitNotesJobLogger.DescriptorImpl descriptor =
+        GitNotesJobLogger.DescriptorImpl.get();
+    if (descriptor == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    // We are woken up hourly; allow for some jitter in the wake-up time.
+    if (descriptor.getCompactionIntervalHours() > 0
+        && now - lastRun >= descriptor.getCompactionIntervalHours() * HOUR
+            - MIN) {
+      lastRun = now;
+      int compacted = NotesMirror.get().compactAll(now
+          - TimeUnit.DAYS.toMillis(descriptor.getCompactionRetentionDays()),
+          descriptor.getLockTimeoutMillis(), listener);
+      listener.getLogger().printf("Compacted %d git notes refs%n",
+          compacted);
+    }
+    // Packs what compaction just left unreachable, too.
+    if (now - lastGc >= GC_INTERVAL_MILLIS - MIN) {
+      lastGc = now;
+      int packed = NotesMirror.get().gcAll(descriptor.getLockTimeoutMillis(),
+          listener);
+      listener.getLogger().printf("Packed %d git notes mirrors%n", packed);
+    }
+  }
+}
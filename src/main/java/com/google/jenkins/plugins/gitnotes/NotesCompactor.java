@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+
+/**
+ * Shrinks a notes ref: the start and finish records of each build are
+ * folded into the final one, and the history older than a retention window
+ * is squashed into a single parentless commit.
+ */
+final class NotesCompactor {
+
+  private static final String SQUASHED = "Notes squashed by ";
+  private static final String COMPACTED = "Notes compacted by ";
+  // The trailer marking the commits a compaction writes; the subject is
+  // only for people reading the history.
+  private static final String TRAILER = "Git-Notes-Compaction";
+  private static final String TRAILER_SQUASH = "squash";
+  private static final String TRAILER_FOLD = "fold";
+
+  private NotesCompactor() {
+  }
+
+  /**
+   * Returns whether the commit was written by a compaction, as told by its
+   * {@value #TRAILER} trailer.
+   */
+  static boolean isCompaction(RevCommit commit) {
+    for (String value : commit.getFooterLines(TRAILER)) {
+      if (TRAILER_SQUASH.equals(value) || TRAILER_FOLD.equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the message of a commit written by a compaction.
+   */
+  private static String message(String subject, String trailerValue) {
+    return subject + GitNotesJobLogger.class.getSimpleName() + "\n\n"
+        + TRAILER + ": " + trailerValue + "\n";
+  }
+
+  /**
+   * Folds the records of a note: of all records with the same build URL,
+   * only the finish record (the one with a status) is kept, or the latest
+   * record if the build hasn't finished. Other lines are kept as they are.
+   * Like {@link NotesMerge.CatSortUniqMerger}, the result has one record
+   * per line in timestamp order.
+   */
+  static String fold(String note) {
+    Map<String, String> byUrl = new HashMap<String, String>();
+    Map<String, Boolean> finished = new HashMap<String, Boolean>();
+    List<String> lines = new ArrayList<String>();
+    for (String line : note.split("\n")) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      GitNotesCiMessage record = GitNotesCiMessage.parse(line);
+      String key = record == null ? null : record.getUrl();
+      if (key == null
+          || key.endsWith(GitNotesCiMessage.BUILD_URL_NOT_AVAILABLE)) {
+        lines.add(line);
+        continue;
+      }
+      boolean hasStatus = record.getStatus() != null;
+      String kept = byUrl.get(key);
+      if (kept == null
+          || (hasStatus && !finished.get(key))
+          || (hasStatus == finished.get(key) && line.compareTo(kept) > 0)) {
+        byUrl.put(key, line);
+        finished.put(key, hasStatus);
+      }
+    }
+    lines.addAll(byUrl.values());
+    StringBuilder text = new StringBuilder();
+    for (String line : NotesMerge.sortRecords(lines)) {
+      text.append(line).append('\n');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Compacts the local notes ref: folds every note, and squashes the
+   * first-parent history committed before {@code cutoffMillis} into one
+   * parentless commit, on top of which the newer commits are replayed.
+   *
+   * @return the new tip, or null if there was nothing to compact.
+   */
+  static ObjectId compact(Repository repo, String notesRef,
+      long cutoffMillis) throws IOException {
+    Ref ref = repo.getRef(notesRef);
+    if (ref == null) {
+      return null;
+    }
+    ObjectInserter inserter = repo.newObjectInserter();
+    ObjectReader reader = repo.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      RevCommit tip = walk.parseCommit(ref.getObjectId());
+
+      // Newest first, down to the first commit older than the cutoff.
+      List<RevCommit> recent = new ArrayList<RevCommit>();
+      RevCommit base = tip;
+      while (base != null && base.getCommitTime() * 1000L >= cutoffMillis) {
+        recent.add(base);
+        base = base.getParentCount() == 0
+            ? null : walk.parseCommit(base.getParent(0));
+      }
+
+      ObjectId newTip = tip;
+      if (base != null && base.getParentCount() > 0) {
+        newTip = insertCommit(inserter, base.getTree(), null, base,
+            message(SQUASHED, TRAILER_SQUASH));
+        Collections.reverse(recent);
+        for (RevCommit commit : recent) {
+          newTip = insertCommit(inserter, commit.getTree(), newTip, commit,
+              commit.getFullMessage());
+        }
+      }
+
+      NoteMap map = NoteMap.read(reader, tip);
+      boolean folded = false;
+      for (Note note : NoteMap.read(reader, tip)) {
+        String text = new String(reader.open(note.getData()).getCachedBytes(),
+            Constants.CHARSET);
+        String compacted = fold(text);
+        if (!compacted.equals(text)) {
+          map.set(note, inserter.insert(Constants.OBJ_BLOB,
+              compacted.getBytes(Constants.CHARSET)));
+          folded = true;
+        }
+      }
+      if (folded) {
+        PersonIdent ident = new PersonIdent(repo);
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(map.writeTree(inserter));
+        commit.setParentId(newTip);
+        commit.setAuthor(ident);
+        commit.setCommitter(ident);
+        commit.setMessage(message(COMPACTED, TRAILER_FOLD));
+        newTip = inserter.insert(commit);
+      }
+      if (newTip.equals(tip)) {
+        return null;
+      }
+      inserter.flush();
+
+      RefUpdate update = repo.updateRef(notesRef);
+      update.setExpectedOldObjectId(tip);
+      update.setNewObjectId(newTip);
+      update.setRefLogMessage("notes: compact", false);
+      RefUpdate.Result result = update.forceUpdate();
+      if (result != RefUpdate.Result.FORCED
+          && result != RefUpdate.Result.FAST_FORWARD) {
+        throw new IOException(
+            String.format("Failed to update %s: %s", notesRef, result));
+      }
+      return newTip;
+    } finally {
+      walk.release();
+      reader.release();
+      inserter.release();
+    }
+  }
+
+  private static ObjectId insertCommit(ObjectInserter inserter,
+      ObjectId tree, ObjectId parent, RevCommit original, String message)
+      throws IOException {
+    CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(tree);
+    if (parent != null) {
+      commit.setParentId(parent);
+    }
+    commit.setAuthor(original.getAuthorIdent());
+    commit.setCommitter(original.getCommitterIdent());
+    commit.setMessage(message.endsWith("\n") ? message : message + "\n");
+    return inserter.insert(commit);
+  }
+
+  /**
+   * Fetches the remote notes ref, compacts it and pushes it back. The push
+   * is forced, but only succeeds if the remote ref still points at the tip
+   * that was compacted, so notes published meanwhile are never lost.
+   *
+   * @return the pushed tip, or null if there was nothing to compact.
+   * @throws IOException if the remote moved on during the compaction; the
+   *     local ref is then reset to the fetched tip.
+   */
+  static ObjectId compactRemote(Repository repo, Transport transport,
+      String notesRef, long cutoffMillis) throws IOException {
+    transport.fetch(NullProgressMonitor.INSTANCE, Collections.singletonList(
+        new RefSpec(String.format("+%s:%s", notesRef, notesRef))));
+    Ref fetched = repo.getRef(notesRef);
+    if (fetched == null) {
+      return null;
+    }
+    ObjectId remoteTip = fetched.getObjectId();
+    ObjectId newTip = compact(repo, notesRef, cutoffMillis);
+    if (newTip == null) {
+      return null;
+    }
+    RemoteRefUpdate update = new RemoteRefUpdate(repo, notesRef, notesRef,
+        true, null, remoteTip);
+    PushResult result = transport.push(NullProgressMonitor.INSTANCE,
+        Collections.singletonList(update));
+    RemoteRefUpdate.Status status =
+        result.getRemoteUpdate(notesRef).getStatus();
+    if (status != RemoteRefUpdate.Status.OK) {
+      RefUpdate reset = repo.updateRef(notesRef);
+      reset.setNewObjectId(remoteTip);
+      reset.forceUpdate();
+      throw new IOException(String.format("Push of compacted %s failed: %s",
+          notesRef, status));
+    }
+    return newTip;
+  }
+}
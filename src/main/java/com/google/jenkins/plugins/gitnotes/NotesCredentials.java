@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.Serializable;
+
+import org.eclipse.jgit.transport.JschConfigSessionFactory;
+import org.eclipse.jgit.transport.OpenSshConfig;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.FS;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.base.Charsets;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import hudson.util.Secret;
+
+/**
+ * The parts of a remote's credentials a JGit transport needs, resolved on
+ * the controller so that they can be sent to the node that publishes.
+ * Passwords, private keys and passphrases are kept as {@link Secret}s.
+ * Username/password credentials authenticate HTTP(S) and SSH transports;
+ * SSH private key credentials authenticate SSH transports.
+ */
+final class NotesCredentials implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String username;
+  private final Secret password;
+  private final Secret privateKey;
+  private final Secret passphrase;
+
+  private NotesCredentials(String username, Secret password,
+      Secret privateKey, Secret passphrase) {
+    this.username = username;
+    this.password = password;
+    this.privateKey = privateKey;
+    this.passphrase = passphrase;
+  }
+
+  /**
+   * Returns what a transport needs of the given credentials, or null if
+   * there are none. Credentials of other kinds only lend their username.
+   */
+  static NotesCredentials of(StandardUsernameCredentials credentials) {
+    if (credentials == null) {
+      return null;
+    }
+    if (credentials instanceof StandardUsernamePasswordCredentials) {
+      return new NotesCredentials(credentials.getUsername(),
+          ((StandardUsernamePasswordCredentials) credentials).getPassword(),
+          null, null);
+    }
+    if (credentials instanceof SSHUserPrivateKey) {
+      SSHUserPrivateKey key = (SSHUserPrivateKey) credentials;
+      return new NotesCredentials(credentials.getUsername(), null,
+          Secret.fromString(key.getPrivateKey()), key.getPassphrase());
+    }
+    return new NotesCredentials(credentials.getUsername(), null, null, null);
+  }
+
+  /**
+   * Sets up the credentials of the given transport, and lets it share
+   * pooled SSH sessions kept for {@code sshSessionIdleMillis} when idle.
+   *
+   * @param credentials the credentials, or null to rely on the node's own
+   *     git/ssh configuration.
+   */
+  static void apply(NotesCredentials credentials, Transport transport,
+      long sshSessionIdleMillis) {
+    String username = null;
+    String secret = null;
+    if (credentials != null) {
+      username = credentials.username;
+      if (credentials.password != null) {
+        secret = Secret.toString(credentials.password);
+        transport.setCredentialsProvider(
+            new UsernamePasswordCredentialsProvider(username, secret));
+      } else if (credentials.privateKey != null
+          && transport instanceof SshTransport) {
+        secret = Secret.toString(credentials.privateKey);
+        ((SshTransport) transport).setSshSessionFactory(
+            new PrivateKeySessionFactory(username, secret,
+                Secret.toString(credentials.passphrase)));
+      }
+    }
+    SshSessionPool.get().attach(transport, username, secret,
+        sshSessionIdleMillis);
+  }
+
+  /**
+   * Authenticates SSH sessions with a private key held in memory.
+   */
+  private static final class PrivateKeySessionFactory
+      extends JschConfigSessionFactory {
+    private final String username;
+    private final String privateKey;
+    private final String passphrase;
+
+    PrivateKeySessionFactory(String username, String privateKey,
+        String passphrase) {
+      this.username = username;
+      this.privateKey = privateKey;
+      this.passphrase = passphrase;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void configure(OpenSshConfig.Host host, Session session) {
+      if (username != null) {
+        session.setUserName(username);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected JSch createDefaultJSch(FS fs) throws JSchException {
+      JSch jsch = super.createDefaultJSch(fs);
+      jsch.addIdentity(username == null ? "jenkins" : username,
+          privateKey.getBytes(Charsets.UTF_8), null,
+          passphrase.isEmpty() ? null : passphrase.getBytes(Charsets.UTF_8));
+      return jsch;
+    }
+  }
+}
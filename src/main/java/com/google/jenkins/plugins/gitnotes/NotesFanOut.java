@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import jenkins.util.Timer;
+
+/**
+ * Publishes a note to the secondary {@link PublishTargets} of a job while
+ * the build publishes it to the primary one. Every target is published on
+ * its own thread and interrupted when its timeout expires, so a slow or
+ * unreachable mirror holds up neither the other targets nor the primary
+ * one. Targets whose {@link RemoteHealth} circuit is open are skipped.
+ *
+ * <p>The outcome of every publish is logged and recorded in
+ * {@link PublishMetrics} as it completes, so nobody needs to wait for it.
+ */
+final class NotesFanOut {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      NotesFanOut.class.getName());
+
+  private static final NotesFanOut INSTANCE = new NotesFanOut();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("Git notes fan-out %d")
+          .setDaemon(true).build());
+
+  private NotesFanOut() {
+  }
+
+  static NotesFanOut get() {
+    return INSTANCE;
+  }
+
+  /**
+   * A publish to one target. It may be interrupted when it times out.
+   */
+  interface Publish {
+    /**
+     * Publishes the note, adding the phases it ran to {@code timings}.
+     *
+     * @return the number of retries it took.
+     */
+    int run(PublishTimings timings) throws Exception;
+  }
+
+  /**
+   * Starts publishing to the given target in the background.
+   *
+   * @param payloadBytes the size of the note, for the metrics.
+   * @return the publish, which fails if the note couldn't be published and
+   *     is cancelled once the target's timeout expires.
+   */
+  Future<Void> submit(final PublishTargets.Target target,
+      final long payloadBytes, final Publish publish) {
+    if (RemoteHealth.get().isOpen(target.uri)) {
+      LOGGER.log(Level.INFO, "Skipping git notes publish to {0}, its circuit"
+          + " is open", PublishMetrics.key(target.uri));
+      return Futures.immediateFailedFuture(
+          new RemoteHealth.CircuitOpenException(
+              PublishMetrics.key(target.uri)));
+    }
+    final Future<Void> future = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        run(target, payloadBytes, publish);
+        return null;
+      }
+    });
+    Timer.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (future.cancel(true)) {
+          LOGGER.log(Level.WARNING, "Git notes publish to {0} timed out"
+              + " after {1} ms", new Object[] {PublishMetrics.key(target.uri),
+                  target.timeoutMillis});
+        }
+      }
+    }, target.timeoutMillis, TimeUnit.MILLISECONDS);
+    return future;
+  }
+
+  private static void run(final PublishTargets.Target target,
+      long payloadBytes, final Publish publish) throws Exception {
+    final URIish uri = target.uri;
+    final PublishTimings timings = new PublishTimings();
+    long start = System.nanoTime();
+    int retries = 0;
+    boolean published = false;
+    try {
+      // Within the target's timeout, RemoteHealth may give up earlier on a
+      // remote that is usually fast.
+      retries = RemoteHealth.get().call(uri, target.timeoutMillis,
+          new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+              // Held until the publish ends, should it outlive the wait.
+              PublishAdmission.Permit permit = PublishAdmission.get().admit(
+                  uri, target.timeoutMillis, timings);
+              try {
+                return publish.run(timings);
+              } finally {
+                permit.release();
+              }
+            }
+          });
+      published = true;
+      LOGGER.log(Level.FINE, "Published git note to {0} ({1})",
+          new Object[] {PublishMetrics.key(uri), timings});
+    } catch (InterruptedException e) {
+      // Timed out; already logged by the timer.
+      throw e;
+    } catch (RemoteHealth.CircuitOpenException e) {
+      LOGGER.log(Level.INFO, "Skipping git notes publish to {0}, its circuit"
+          + " is open", PublishMetrics.key(uri));
+      throw e;
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Git notes publish to "
+          + PublishMetrics.key(uri) + " failed", e);
+      throw e;
+    } finally {
+      PublishMetrics.get().record(uri, timings, System.nanoTime() - start,
+          1, payloadBytes, retries, published);
+    }
+  }
+}
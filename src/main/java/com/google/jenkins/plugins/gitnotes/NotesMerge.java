@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.notes.NoteMapMerger;
+import org.eclipse.jgit.notes.NoteMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Merges a freshly fetched remote notes ref into the local one instead of
+ * overwriting either side, the way {@code git notes merge -s cat_sort_uniq}
+ * does.
+ *
+ * <p>A remote compacted by {@link NotesCompactor} since the local ref last
+ * saw it has a new history, with records folded away. The local records
+ * are then rebased onto it: the merge has the remote tip as its only
+ * parent, and merged notes are folded like the compaction did, so that
+ * the records it dropped don't come back.
+ *
+ * <p>Should both sides have set a different {@link NotesUrlBase}, the
+ * merge keeps the remote's, and the relative URLs of the local side are
+ * written absolute, so that the merged ref has a single base that every
+ * relative URL in it was written against.
+ */
+final class NotesMerge {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      NotesMerge.class.getName());
+
+  private static final String INCOMING_PREFIX = "refs/notes-incoming/";
+
+  private NotesMerge() {
+  }
+
+  /**
+   * Returns the local ref the remote notes ref is fetched into before it is
+   * merged into {@code notesRef}.
+   */
+  static String incomingRef(String notesRef) {
+    return INCOMING_PREFIX + notesRef.substring(Constants.R_REFS.length());
+  }
+
+  /**
+   * Merges {@code incomingRef} into {@code notesRef}, fast-forwarding when
+   * one side already contains the other.
+   *
+   * @return the new tip of {@code notesRef}, or null if neither ref exists.
+   */
+  static ObjectId mergeIncoming(Repository repo, String notesRef,
+      String incomingRef) throws IOException {
+    Ref oursRef = repo.getRef(notesRef);
+    Ref theirsRef = repo.getRef(incomingRef);
+    ObjectId ours = oursRef == null ? null : oursRef.getObjectId();
+    ObjectId theirs = theirsRef == null ? null : theirsRef.getObjectId();
+    if (theirs == null) {
+      return ours;
+    }
+    if (ours == null || isAncestor(repo, ours, theirs)) {
+      updateRef(repo, notesRef, ours, theirs);
+      return theirs;
+    }
+    if (isAncestor(repo, theirs, ours)) {
+      return ours;
+    }
+
+    ObjectInserter inserter = repo.newObjectInserter();
+    ObjectReader reader = repo.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      RevCommit oursCommit = walk.parseCommit(ours);
+      RevCommit theirsCommit = walk.parseCommit(theirs);
+      RevCommit base = mergeBase(repo, oursCommit, theirsCommit);
+      boolean compacted = compactedSince(repo, oursCommit, theirsCommit);
+
+      NoteMap baseMap = base == null
+          ? NoteMap.newEmptyMap() : NoteMap.read(reader, base);
+      NoteMap oursMap = NoteMap.read(reader, oursCommit);
+      NoteMap theirsMap = NoteMap.read(reader, theirsCommit);
+      keepTheirUrlBase(reader, inserter, oursMap, theirsMap);
+      NoteMap merged = new NoteMapMerger(repo,
+          new CatSortUniqMerger(compacted), MergeStrategy.RESOLVE).merge(
+              baseMap, oursMap, theirsMap);
+
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(merged.writeTree(inserter));
+      if (compacted) {
+        // The old history the compaction replaced must not come back.
+        commit.setParentId(theirsCommit);
+      } else {
+        commit.setParentIds(oursCommit, theirsCommit);
+      }
+      PersonIdent ident = new PersonIdent(repo);
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage((compacted ? "Notes rebased by " : "Notes merged by ")
+          + GitNotesJobLogger.class.getSimpleName() + "\n");
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+      updateRef(repo, notesRef, ours, commitId);
+      return commitId;
+    } finally {
+      walk.release();
+      reader.release();
+      inserter.release();
+    }
+  }
+
+  /**
+   * Gives {@code ours} the {@link NotesUrlBase} of {@code theirs} if they
+   * set different ones, writing the URLs that {@code ours} has relative to
+   * its own base absolute. The base is set only once in a history, so the
+   * notes of the merge base have no relative URLs to rewrite.
+   */
+  private static void keepTheirUrlBase(ObjectReader reader,
+      ObjectInserter inserter, NoteMap ours, NoteMap theirs)
+      throws IOException {
+    String ourBase = NotesUrlBase.read(reader, ours);
+    String theirBase = NotesUrlBase.read(reader, theirs);
+    if (ourBase == null || theirBase == null || ourBase.equals(theirBase)) {
+      return;
+    }
+    LOGGER.log(Level.INFO, "Git notes URL base {0} lost to {1}, writing its"
+        + " URLs absolute", new Object[] {ourBase, theirBase});
+    Map<ObjectId, String> rewritten = new HashMap<ObjectId, String>();
+    for (Note note : ours) {
+      if (NotesUrlBase.BASE_NOTE.equals(note)) {
+        continue;
+      }
+      String text = new String(reader.open(note.getData()).getCachedBytes(),
+          Constants.CHARSET);
+      String[] lines = text.split("\n", -1);
+      StringBuilder absolute = new StringBuilder();
+      for (int i = 0; i < lines.length; i++) {
+        if (i > 0) {
+          absolute.append('\n');
+        }
+        absolute.append(NotesUrlBase.absolutize(lines[i], ourBase));
+      }
+      if (!absolute.toString().equals(text)) {
+        rewritten.put(note.copy(), absolute.toString());
+      }
+    }
+    for (Map.Entry<ObjectId, String> note : rewritten.entrySet()) {
+      ours.set(note.getKey(), inserter.insert(Constants.OBJ_BLOB,
+          note.getValue().getBytes(Constants.CHARSET)));
+    }
+    ours.set(NotesUrlBase.BASE_NOTE, theirs.get(NotesUrlBase.BASE_NOTE));
+  }
+
+  private static boolean isAncestor(Repository repo, ObjectId ancestor,
+      ObjectId tip) throws IOException {
+    RevWalk walk = new RevWalk(repo);
+    try {
+      return walk.isMergedInto(walk.parseCommit(ancestor),
+          walk.parseCommit(tip));
+    } catch (MissingObjectException e) {
+      // History cut short by a tip-only fetch.
+      return false;
+    } finally {
+      walk.release();
+    }
+  }
+
+  /**
+   * Returns whether {@code theirs} has a {@link NotesCompactor} commit that
+   * {@code ours} doesn't, or false if its history wasn't fetched.
+   */
+  private static boolean compactedSince(Repository repo, RevCommit ours,
+      RevCommit theirs) throws IOException {
+    RevWalk walk = new RevWalk(repo);
+    try {
+      walk.markStart(walk.parseCommit(theirs));
+      walk.markUninteresting(walk.parseCommit(ours));
+      for (RevCommit commit : walk) {
+        if (NotesCompactor.isCompaction(commit)) {
+          return true;
+        }
+      }
+      return false;
+    } catch (MissingObjectException e) {
+      return false;
+    } finally {
+      walk.release();
+    }
+  }
+
+  /**
+   * Returns the given records, without duplicates, in timestamp order
+   * whichever their encoding. Records of the same second are sorted
+   * lexicographically, and lines that aren't records come first.
+   */
+  static List<String> sortRecords(Collection<String> lines) {
+    final Map<String, Long> timestamps = new HashMap<String, Long>();
+    for (String line : lines) {
+      if (!timestamps.containsKey(line)) {
+        GitNotesCiMessage record = GitNotesCiMessage.parse(line);
+        timestamps.put(line,
+            record == null ? -1L : record.getTimestampSeconds());
+      }
+    }
+    List<String> sorted = new ArrayList<String>(timestamps.keySet());
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int byTime = timestamps.get(a).compareTo(timestamps.get(b));
+        return byTime != 0 ? byTime : a.compareTo(b);
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Returns the merge base of both sides, or null if there is none or the
+   * history leading to it wasn't fetched. Without a base every differing
+   * note is merged line by line, which is what cat_sort_uniq does anyway.
+   */
+  private static RevCommit mergeBase(Repository repo, RevCommit ours,
+      RevCommit theirs) throws IOException {
+    RevWalk walk = new RevWalk(repo);
+    try {
+      walk.setRevFilter(RevFilter.MERGE_BASE);
+      walk.markStart(walk.parseCommit(ours));
+      walk.markStart(walk.parseCommit(theirs));
+      RevCommit base = walk.next();
+      return base == null ? null : walk.parseCommit(base);
+    } catch (MissingObjectException e) {
+      return null;
+    } finally {
+      walk.release();
+    }
+  }
+
+  private static void updateRef(Repository repo, String ref,
+      ObjectId expected, ObjectId target) throws IOException {
+    RefUpdate update = repo.updateRef(ref);
+    update.setExpectedOldObjectId(
+        expected == null ? ObjectId.zeroId() : expected);
+    update.setNewObjectId(target);
+    update.setRefLogMessage("notes: merge", false);
+    RefUpdate.Result result = update.update();
+    if (result != RefUpdate.Result.NEW
+        && result != RefUpdate.Result.FAST_FORWARD) {
+      throw new IOException(
+          String.format("Failed to update %s: %s", ref, result));
+    }
+  }
+
+  /**
+   * Concatenates both sides of a note, then sorts and de-duplicates the
+   * records with {@link #sortRecords}, so that the merged note lists them
+   * in chronological order. Merging onto a compacted remote, the result is
+   * folded with {@link NotesCompactor#fold}.
+   */
+  static final class CatSortUniqMerger implements NoteMerger {
+    private final boolean fold;
+
+    CatSortUniqMerger() {
+      this(false);
+    }
+
+    CatSortUniqMerger(boolean fold) {
+      this.fold = fold;
+    }
+
+    @Override
+    public Note merge(Note base, Note ours, Note theirs,
+        ObjectReader reader, ObjectInserter inserter) throws IOException {
+      if (ours == null) {
+        return theirs;
+      }
+      if (theirs == null || ours.getData().equals(theirs.getData())) {
+        return ours;
+      }
+      if (NotesUrlBase.BASE_NOTE.equals(ours)) {
+        // Never joins two bases: the remote's was published first.
+        return theirs;
+      }
+      List<String> lines = new ArrayList<String>();
+      addLines(reader, ours, lines);
+      addLines(reader, theirs, lines);
+      StringBuilder text = new StringBuilder();
+      for (String line : sortRecords(lines)) {
+        text.append(line).append('\n');
+      }
+      String merged = fold ? NotesCompactor.fold(text.toString())
+          : text.toString();
+      return new Note(ours, inserter.insert(Constants.OBJ_BLOB,
+          merged.getBytes(Constants.CHARSET)));
+    }
+
+    private static void addLines(ObjectReader reader, Note note,
+        List<String> lines) throws IOException {
+      String text = new String(reader.open(note.getData()).getCachedBytes(),
+          Constants.CHARSET);
+      for (String line : text.split("\n")) {
+        if (!line.isEmpty()) {
+          lines.add(line);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs {@link #mergeIncoming} wherever the client's repository lives.
+   */
+  static final class MergeCallback implements RepositoryCallback<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String notesRef;
+
+    MergeCallback(String notesRef) {
+      this.notesRef = notesRef;
+    }
+
+    @Override
+    public String invoke(Repository repo, VirtualChannel channel)
+        throws IOException, InterruptedException {
+      ObjectId tip = mergeIncoming(repo, notesRef, incomingRef(notesRef));
+      return tip == null ? null : tip.name();
+    }
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.locks.Lock;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import com.google.common.annotations.VisibleForTesting;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * Bare, notes-only mirrors of each remote's notes ref, kept on the
+ * controller under {@code JENKINS_HOME}. Notes are appended in the mirror
+ * and pushed from the controller, so publishing only transfers the notes
+ * commits the mirror hasn't seen yet, whatever state the build's workspace
+ * or agent is in.
+ *
+ * <p>Work done outside of any build, like fetches for the
+ * {@link CommitStatusIndex}, compaction and replays without a job's
+ * credentials, authenticates with the controller-level credentials of the
+ * global configuration, never with those of a job that wrote to the mirror.
+ */
+public final class NotesMirror {
+
+  private static final String MIRRORS_DIR = "git-notes-mirrors";
+  private static final String ORIGIN = "origin";
+  private static final String CONFIG_REMOTE = "remote";
+  private static final String CONFIG_URL = "url";
+  private static final String CONFIG_GITNOTES = "gitnotes";
+  private static final String CONFIG_CREDENTIALS_ID = "credentialsId";
+
+  private final File root;
+
+  @VisibleForTesting
+  NotesMirror(File root) {
+    this.root = root;
+  }
+
+  /**
+   * Returns the mirrors kept under the running Jenkins' root directory.
+   */
+  public static NotesMirror get() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      throw new IllegalStateException("Jenkins is not running");
+    }
+    return new NotesMirror(new File(jenkins.getRootDir(), MIRRORS_DIR));
+  }
+
+  /**
+   * Returns the directory of the mirror for the given remote.
+   */
+  @VisibleForTesting
+  File mirrorDir(URIish remoteURI) {
+    return new File(root, Util.getDigestOf(remoteURI.toString()) + ".git");
+  }
+
+  /**
+   * Appends the note to {@code commitId} in the remote's mirror, creating
+   * the mirror on first use, and pushes the notes ref to the remote, adding
+   * the time of each phase to {@code timings}.
+   *
+   * @param credentials username/password or SSH private key credentials
+   *     for the remote, or
+   *     null to rely on the controller's own git/ssh configuration.
+   * @return the number of times the push had to be merged and retried.
+   */
+  int write(URIish remoteURI, String notesRef, String commitId,
+      String note, PublishRetryPolicy retryPolicy, PublishTimings timings,
+      StandardUsernameCredentials credentials,
+      long lockTimeoutMillis) throws IOException, InterruptedException {
+    File dir = mirrorDir(remoteURI);
+    Lock lock = lock(dir, remoteURI, lockTimeoutMillis);
+    try {
+      Repository repo = open(dir);
+      try {
+        remember(repo, remoteURI);
+        return JGitNotesWriter.write(repo, remoteURI, notesRef, commitId,
+            note, retryPolicy, timings, credentials);
+      } finally {
+        repo.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Whether a mirror of the given remote exists.
+   */
+  boolean exists(URIish remoteURI) {
+    return mirrorDir(remoteURI).isDirectory();
+  }
+
+  /**
+   * Opens the mirror of the given remote, creating an empty one if there
+   * is none yet. The caller must close it.
+   */
+  Repository open(URIish remoteURI) throws IOException {
+    return open(mirrorDir(remoteURI));
+  }
+
+  /**
+   * Fetches the given notes ref and all of its shards from the remote into
+   * its mirror, with the controller-level credentials.
+   */
+  void fetchNotes(URIish remoteURI, final String notesRef,
+      long lockTimeoutMillis) throws IOException, InterruptedException {
+    run(remoteURI, null, lockTimeoutMillis, new Task<Void>() {
+      @Override
+      public Void run(Repository repo, Transport transport)
+          throws IOException {
+        transport.fetch(NullProgressMonitor.INSTANCE,
+            NotesShards.fetchRefSpecs(notesRef));
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Work done on a locked mirror.
+   */
+  interface Task<T> {
+    /**
+     * @param transport a transport to the mirror's remote, with
+     *     credentials set up.
+     */
+    T run(Repository repo, Transport transport)
+        throws IOException, InterruptedException;
+  }
+
+  /**
+   * Runs the task on the remote's mirror while holding its lock, creating
+   * the mirror on first use.
+   *
+   * @param credentials the job's credentials for the remote, or null to
+   *     use the controller-level credentials.
+   */
+  <T> T run(URIish remoteURI,
+      StandardUsernameCredentials credentials,
+      long lockTimeoutMillis, Task<T> task)
+      throws IOException, InterruptedException {
+    File dir = mirrorDir(remoteURI);
+    Lock lock = lock(dir, remoteURI, lockTimeoutMillis);
+    try {
+      Repository repo = open(dir);
+      try {
+        remember(repo, remoteURI);
+        if (credentials == null) {
+          credentials = controllerCredentials(remoteURI);
+        }
+        Transport transport = Transport.open(repo, remoteURI);
+        try {
+          setUp(transport, credentials);
+          return task.run(repo, transport);
+        } finally {
+          transport.close();
+        }
+      } finally {
+        repo.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Compacts every notes ref of every mirror with
+   * {@link NotesCompactor#compactRemote}, using the remote the mirror was
+   * last written to and the controller-level credentials.
+   *
+   * @return the number of notes refs that were compacted and pushed.
+   */
+  int compactAll(long cutoffMillis, long lockTimeoutMillis,
+      TaskListener listener) throws InterruptedException {
+    File[] dirs = root.listFiles();
+    if (dirs == null) {
+      return 0;
+    }
+    int compacted = 0;
+    for (File dir : dirs) {
+      if (!dir.isDirectory()) {
+        continue;
+      }
+      try {
+        compacted += compact(dir, cutoffMillis, lockTimeoutMillis, listener);
+      } catch (IOException e) {
+        e.printStackTrace(listener.error(
+            "Failed to compact git notes mirror " + dir));
+      } catch (URISyntaxException e) {
+        e.printStackTrace(listener.error(
+            "Failed to compact git notes mirror " + dir));
+      }
+    }
+    return compacted;
+  }
+
+  private int compact(File dir, long cutoffMillis, long lockTimeoutMillis,
+      TaskListener listener)
+      throws IOException, InterruptedException, URISyntaxException {
+    URIish remoteURI = remoteOf(dir);
+    if (remoteURI == null) {
+      return 0;
+    }
+    StandardUsernameCredentials credentials =
+        controllerCredentials(remoteURI);
+
+    int compacted = 0;
+    Lock lock = lock(dir, remoteURI, lockTimeoutMillis);
+    try {
+      Repository repo = open(dir);
+      try {
+        Transport transport = Transport.open(repo, remoteURI);
+        try {
+          setUp(transport, credentials);
+          for (Ref ref : repo.getRefDatabase().getRefs(Constants.R_NOTES)
+              .values()) {
+            if (compact(repo, transport, remoteURI, ref.getName(),
+                cutoffMillis, listener)) {
+              compacted++;
+            }
+          }
+        } finally {
+          transport.close();
+        }
+      } finally {
+        repo.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return compacted;
+  }
+
+  /**
+   * Returns the remote the mirror was last written to, or null if it has
+   * none recorded.
+   */
+  private static URIish remoteOf(File dir)
+      throws IOException, URISyntaxException {
+    Repository repo = open(dir);
+    try {
+      String url = repo.getConfig().getString(CONFIG_REMOTE, ORIGIN,
+          CONFIG_URL);
+      return url == null ? null : new URIish(url);
+    } finally {
+      repo.close();
+    }
+  }
+
+  /**
+   * Packs the objects of every mirror and prunes those that compaction and
+   * merges left unreachable, so that a mirror doesn't keep one loose object
+   * per note it ever wrote. Each mirror is locked while it is packed.
+   *
+   * @return the number of mirrors that were packed.
+   */
+  int gcAll(long lockTimeoutMillis, TaskListener listener)
+      throws InterruptedException {
+    File[] dirs = root.listFiles();
+    if (dirs == null) {
+      return 0;
+    }
+    int packed = 0;
+    for (File dir : dirs) {
+      if (!dir.isDirectory()) {
+        continue;
+      }
+      try {
+        gc(dir, lockTimeoutMillis);
+        packed++;
+      } catch (IOException e) {
+        e.printStackTrace(listener.error(
+            "Failed to pack git notes mirror " + dir));
+      } catch (URISyntaxException e) {
+        e.printStackTrace(listener.error(
+            "Failed to pack git notes mirror " + dir));
+      }
+    }
+    return packed;
+  }
+
+  private static void gc(File dir, long lockTimeoutMillis)
+      throws IOException, InterruptedException, URISyntaxException {
+    URIish remoteURI = remoteOf(dir);
+    // A mirror that was never written to has nobody to race with.
+    Lock lock = remoteURI == null ? null
+        : lock(dir, remoteURI, lockTimeoutMillis);
+    try {
+      Repository repo = open(dir);
+      try {
+        Git.wrap(repo).gc().call();
+      } catch (GitAPIException e) {
+        throw new IOException(e);
+      } finally {
+        repo.close();
+      }
+    } finally {
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static boolean compact(Repository repo, Transport transport,
+      URIish remoteURI, String notesRef, long cutoffMillis,
+      TaskListener listener) {
+    RemoteNotesRefCache cache = RemoteNotesRefCache.get();
+    cache.invalidate(remoteURI, notesRef);
+    try {
+      ObjectId tip = NotesCompactor.compactRemote(repo, transport, notesRef,
+          cutoffMillis);
+      if (tip == null) {
+        return false;
+      }
+      cache.recordTip(remoteURI, notesRef, tip);
+      listener.getLogger().printf("Compacted %s of %s%n", notesRef,
+          remoteURI);
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace(listener.error(String.format(
+          "Failed to compact %s of %s", notesRef, remoteURI)));
+      return false;
+    }
+  }
+
+  private static Lock lock(File dir, URIish remoteURI,
+      long lockTimeoutMillis) throws IOException, InterruptedException {
+    String lockKey = NotesWriteLocks.key(null, new FilePath(dir), remoteURI);
+    Lock lock = NotesWriteLocks.get().tryLock(lockKey, lockTimeoutMillis);
+    if (lock == null) {
+      throw new RemoteHealth.NotAttemptedException(
+          "Timed out waiting for the git notes lock on " + lockKey);
+    }
+    return lock;
+  }
+
+  private static Repository open(File dir) throws IOException {
+    Repository repo = new FileRepositoryBuilder().setGitDir(dir).build();
+    if (!dir.exists()) {
+      repo.create(true);
+    }
+    return repo;
+  }
+
+  /**
+   * Records the remote in the mirror's config, for the compaction that
+   * runs outside of any build. Mirrors written by earlier versions also
+   * recorded the credentials of the last job that wrote to them, which are
+   * dropped.
+   */
+  private static void remember(Repository repo, URIish remoteURI)
+      throws IOException {
+    StoredConfig config = repo.getConfig();
+    String url = remoteURI.toString();
+    if (url.equals(config.getString(CONFIG_REMOTE, ORIGIN, CONFIG_URL))
+        && config.getString(CONFIG_GITNOTES, null,
+            CONFIG_CREDENTIALS_ID) == null) {
+      return;
+    }
+    config.setString(CONFIG_REMOTE, ORIGIN, CONFIG_URL, url);
+    config.unset(CONFIG_GITNOTES, null, CONFIG_CREDENTIALS_ID);
+    config.save();
+  }
+
+  /**
+   * Looks up the controller-level credentials of the global configuration
+   * for the given remote, if any.
+   */
+  private static StandardUsernameCredentials controllerCredentials(
+      URIish remoteURI) {
+    String credentialsId =
+        GitNotesJobLogger.DescriptorImpl.mirrorCredentialsId();
+    Jenkins jenkins = Jenkins.getInstance();
+    if (credentialsId == null || jenkins == null) {
+      return null;
+    }
+    return CredentialsMatchers.firstOrNull(
+        CredentialsProvider.lookupCredentials(
+            StandardUsernameCredentials.class, jenkins, ACL.SYSTEM,
+            URIRequirementBuilder.fromUri(remoteURI.toString()).build()),
+        CredentialsMatchers.withId(credentialsId));
+  }
+
+  /**
+   * Sets up the credentials of a transport to the mirror's remote, and
+   * lets it share pooled SSH sessions.
+   */
+  private static void setUp(Transport transport,
+      StandardUsernameCredentials credentials) {
+    NotesCredentials.apply(NotesCredentials.of(credentials), transport,
+        GitNotesJobLogger.DescriptorImpl.sshSessionIdleMillis());
+  }
+}
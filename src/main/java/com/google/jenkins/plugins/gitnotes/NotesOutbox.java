@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Durable record of the notes that are being published, so that notes
+ * survive failed pushes and controller restarts. Each note is journaled
+ * before it is published and marked done once the remote has it; the
+ * {@link NotesOutboxReplay} publishes whatever is left.
+ *
+ * <p>The journal is an append-only file of JSON lines, synced to disk on
+ * every write. A last line torn by a crash is cut off when the journal is
+ * loaded, so the next write starts on a line of its own. The journal is
+ * rewritten with only the pending notes when it has grown well beyond
+ * them. Remotes are recorded without their password.
+ */
+public final class NotesOutbox {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      NotesOutbox.class.getName());
+
+  private static final String OUTBOX_DIR = "git-notes-outbox";
+  private static final String JOURNAL = "journal";
+  private static final int COMPACT_THRESHOLD = 1000;
+
+  private static final String ADD = "add";
+  private static final String DONE = "done";
+
+  private static NotesOutbox instance;
+
+  private final File journal;
+  private final Map<String, Entry> pending =
+      new LinkedHashMap<String, Entry>();
+  private int journalLines;
+  private boolean loaded;
+
+  @VisibleForTesting
+  NotesOutbox(File dir) {
+    this.journal = new File(dir, JOURNAL);
+  }
+
+  /**
+   * Returns the outbox under the running Jenkins' root directory, or null
+   * outside of a running Jenkins.
+   */
+  public static synchronized NotesOutbox get() {
+    if (instance == null) {
+      Jenkins jenkins = Jenkins.getInstance();
+      if (jenkins == null) {
+        return null;
+      }
+      instance = new NotesOutbox(new File(jenkins.getRootDir(), OUTBOX_DIR));
+    }
+    return instance;
+  }
+
+  /**
+   * Whether notes are journaled, as set in the global configuration.
+   */
+  static boolean enabled() {
+    GitNotesJobLogger.DescriptorImpl descriptor =
+        GitNotesJobLogger.DescriptorImpl.get();
+    return descriptor != null && descriptor.isNotesOutbox();
+  }
+
+  /**
+   * A note waiting to be published.
+   */
+  static final class Entry {
+    final String id;
+    final String remote;
+    final String notesRef;
+    final String commit;
+    final String note;
+    final String job;
+    final long createdMillis;
+
+    Entry(String id, String remote, String notesRef, String commit,
+        String note, String job, long createdMillis) {
+      this.id = id;
+      this.remote = remote;
+      this.notesRef = notesRef;
+      this.commit = commit;
+      this.note = note;
+      this.job = job;
+      this.createdMillis = createdMillis;
+    }
+
+    JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty(ADD, id);
+      json.addProperty("remote", remote);
+      json.addProperty("ref", notesRef);
+      json.addProperty("commit", commit);
+      json.addProperty("note", note);
+      json.addProperty("job", job);
+      json.addProperty("created", createdMillis);
+      return json;
+    }
+
+    static Entry fromJson(JsonObject json) {
+      return new Entry(json.get(ADD).getAsString(),
+          json.get("remote").getAsString(), json.get("ref").getAsString(),
+          json.get("commit").getAsString(), json.get("note").getAsString(),
+          json.has("job") && !json.get("job").isJsonNull()
+              ? json.get("job").getAsString() : null,
+          json.get("created").getAsLong());
+    }
+  }
+
+  /**
+   * Journals a note before it is published.
+   *
+   * @return the id to {@link #confirm} the note with.
+   */
+  public synchronized String record(URIish remote, String notesRef,
+      String commit, String note, String job) throws IOException {
+    load();
+    Entry entry = new Entry(UUID.randomUUID().toString(),
+        PublishMetrics.key(remote), notesRef, commit, note, job,
+        System.currentTimeMillis());
+    append(entry.toJson());
+    pending.put(entry.id, entry);
+    return entry.id;
+  }
+
+  /**
+   * Marks the given notes as published.
+   */
+  public synchronized void confirm(List<String> ids) throws IOException {
+    load();
+    for (String id : ids) {
+      if (pending.remove(id) == null) {
+        continue;
+      }
+      JsonObject done = new JsonObject();
+      done.addProperty(DONE, id);
+      append(done);
+    }
+    if (journalLines > COMPACT_THRESHOLD
+        && journalLines > 2 * pending.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Marks the given note as published.
+   */
+  public void confirm(String id) throws IOException {
+    List<String> ids = new ArrayList<String>();
+    ids.add(id);
+    confirm(ids);
+  }
+
+  /**
+   * Returns the pending notes journaled before the given time, oldest
+   * first.
+   */
+  synchronized List<Entry> pendingBefore(long createdMillis)
+      throws IOException {
+    load();
+    List<Entry> entries = new ArrayList<Entry>();
+    for (Entry entry : pending.values()) {
+      if (entry.createdMillis < createdMillis) {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the number of notes waiting to be published.
+   */
+  public synchronized int size() throws IOException {
+    load();
+    return pending.size();
+  }
+
+  private void load() throws IOException {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!journal.isFile()) {
+      return;
+    }
+    truncateTornLine();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(journal), Charsets.UTF_8));
+    try {
+      JsonParser parser = new JsonParser();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        journalLines++;
+        try {
+          JsonElement element = parser.parse(line);
+          if (!element.isJsonObject()) {
+            continue;
+          }
+          JsonObject json = element.getAsJsonObject();
+          if (json.has(ADD)) {
+            Entry entry = Entry.fromJson(json);
+            pending.put(entry.id, entry);
+          } else if (json.has(DONE)) {
+            pending.remove(json.get(DONE).getAsString());
+          }
+        } catch (JsonParseException e) {
+          // Left by an older journal; anything after it is still read.
+          LOGGER.log(Level.WARNING, "Skipping corrupt outbox line", e);
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Skipping incomplete outbox line", e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Cuts off a last line that a crash left without its newline, which the
+   * next append would otherwise run into.
+   */
+  private void truncateTornLine() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(journal, "rw");
+    try {
+      long length = file.length();
+      long end = length;
+      while (end > 0) {
+        file.seek(end - 1);
+        if (file.read() == '\n') {
+          break;
+        }
+        end--;
+      }
+      if (end < length) {
+        LOGGER.warning("Dropping a torn line at the end of the outbox");
+        file.setLength(end);
+        file.getFD().sync();
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  private void append(JsonObject json) throws IOException {
+    journal.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(journal, true);
+    try {
+      Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+      writer.write(json.toString());
+      writer.write('\n');
+      writer.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    journalLines++;
+  }
+
+  /**
+   * Rewrites the journal with only the pending notes, replacing the old
+   * one atomically.
+   */
+  private void compact() throws IOException {
+    File tmp = new File(journal.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+      for (Entry entry : pending.values()) {
+        writer.write(entry.toJson().toString());
+        writer.write('\n');
+      }
+      writer.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    // Renaming over an existing file fails on Windows.
+    if (!tmp.renameTo(journal)
+        && !(journal.delete() && tmp.renameTo(journal))) {
+      throw new IOException("Failed to replace " + journal);
+    }
+    journalLines = pending.size();
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.annotations.VisibleForTesting;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import jenkins.model.Jenkins;
+
+/**
+ * Publishes the notes left in the {@link NotesOutbox} by failed publishes
+ * and controller restarts. Every minute, the notes of each remote are
+ * written from its {@link NotesMirror} in batches with
+ * {@link NotesBulkPublish}, which skips records the remote already has.
+ * Each batch holds the notes of a single job, and is pushed with that
+ * job's credentials for the remote. A
+ * remote that fails is left alone for exponentially longer, up to an hour,
+ * and so is a remote whose {@link RemoteHealth} circuit is open.
+ */
+@Extension
+public final class NotesOutboxReplay extends AsyncPeriodicWork {
+
+  // Leaves in-flight publishes, including queued ones, time to confirm.
+  static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  static final int BATCH_SIZE = 500;
+  static final long MIN_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  // Remotes that failed, with their failure count and next attempt.
+  private final ConcurrentMap<String, long[]> backoff =
+      new ConcurrentHashMap<String, long[]>();
+  // Null for the outbox and mirrors of the running Jenkins.
+  private final NotesOutbox outbox;
+  private final NotesMirror mirror;
+
+  public NotesOutboxReplay() {
+    this(null, null);
+  }
+
+  @VisibleForTesting
+  NotesOutboxReplay(NotesOutbox outbox, NotesMirror mirror) {
+    super("Git notes outbox replay");
+    this.outbox = outbox;
+    this.mirror = mirror;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getRecurrencePeriod() {
+    return MIN;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void execute(TaskListener listener)
+      throws IOException, InterruptedException {
+    replay(System.currentTimeMillis(), listener);
+  }
+
+  /**
+   * Publishes the notes journaled longer than {@link #GRACE_MILLIS} before
+   * the given time, to each remote that isn't backing off.
+   */
+  @VisibleForTesting
+  void replay(long now, TaskListener listener)
+      throws IOException, InterruptedException {
+    NotesOutbox outbox = this.outbox;
+    if (outbox == null) {
+      // Notes journaled before the outbox was disabled stay where they are.
+      outbox = NotesOutbox.enabled() ? NotesOutbox.get() : null;
+    }
+    if (outbox == null || outbox.size() == 0) {
+      return;
+    }
+    NotesMirror mirror = this.mirror == null ? NotesMirror.get()
+        : this.mirror;
+    Map<String, List<NotesOutbox.Entry>> byRemote =
+        new LinkedHashMap<String, List<NotesOutbox.Entry>>();
+    for (NotesOutbox.Entry entry : outbox.pendingBefore(now - GRACE_MILLIS)) {
+      List<NotesOutbox.Entry> entries = byRemote.get(entry.remote);
+      if (entries == null) {
+        entries = new ArrayList<NotesOutbox.Entry>();
+        byRemote.put(entry.remote, entries);
+      }
+      entries.add(entry);
+    }
+    for (Map.Entry<String, List<NotesOutbox.Entry>> remote
+        : byRemote.entrySet()) {
+      long[] failures = backoff.get(remote.getKey());
+      if (failures != null && failures[1] > now) {
+        continue;
+      }
+      List<NotesOutbox.Entry> entries = remote.getValue();
+      URIish remoteURI;
+      try {
+        remoteURI = new URIish(remote.getKey());
+      } catch (URISyntaxException e) {
+        listener.error("Dropping %d outbox notes for a malformed remote",
+            entries.size());
+        outbox.confirm(ids(entries));
+        continue;
+      }
+      // Older journals may still hold a password in the remote.
+      String remoteName = PublishMetrics.key(remoteURI);
+      if (RemoteHealth.get().isOpen(remoteURI)) {
+        continue;
+      }
+      try {
+        // Jobs may reach the same remote with different credentials.
+        for (Map.Entry<String, List<NotesOutbox.Entry>> job
+            : byJob(entries).entrySet()) {
+          List<NotesOutbox.Entry> forJob = job.getValue();
+          for (int i = 0; i < forJob.size(); i += BATCH_SIZE) {
+            List<NotesOutbox.Entry> batch = forJob.subList(i,
+                Math.min(forJob.size(), i + BATCH_SIZE));
+            int published = publish(mirror, remoteURI, job.getKey(), batch);
+            outbox.confirm(ids(batch));
+            listener.getLogger().printf(
+                "Replayed %d of %d outbox notes to %s%n", published,
+                batch.size(), remoteName);
+          }
+        }
+        backoff.remove(remote.getKey());
+      } catch (IOException e) {
+        long count = failures == null ? 1 : failures[0] + 1;
+        long delay = backoffMillis(count);
+        backoff.put(remote.getKey(), new long[] {count, now + delay});
+        listener.error("Outbox replay to %s failed, retrying in %d s: %s",
+            remoteName, TimeUnit.MILLISECONDS.toSeconds(delay), e);
+      }
+    }
+  }
+
+  /**
+   * Returns how long to leave a remote alone after its given number of
+   * consecutive failures.
+   */
+  @VisibleForTesting
+  static long backoffMillis(long failures) {
+    long delay = MIN_BACKOFF_MILLIS;
+    for (long i = 1; i < failures && delay < MAX_BACKOFF_MILLIS; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, MAX_BACKOFF_MILLIS);
+  }
+
+  /**
+   * Groups the entries by the job that journaled them, keeping their order.
+   * Entries of no known job share the null key.
+   */
+  private static Map<String, List<NotesOutbox.Entry>> byJob(
+      List<NotesOutbox.Entry> entries) {
+    Map<String, List<NotesOutbox.Entry>> byJob =
+        new LinkedHashMap<String, List<NotesOutbox.Entry>>();
+    for (NotesOutbox.Entry entry : entries) {
+      List<NotesOutbox.Entry> forJob = byJob.get(entry.job);
+      if (forJob == null) {
+        forJob = new ArrayList<NotesOutbox.Entry>();
+        byJob.put(entry.job, forJob);
+      }
+      forJob.add(entry);
+    }
+    return byJob;
+  }
+
+  /**
+   * Publishes a batch of notes journaled by the given job, with the job's
+   * credentials for the remote.
+   */
+  private static int publish(NotesMirror mirror, URIish remoteURI,
+      String jobName, List<NotesOutbox.Entry> batch)
+      throws IOException, InterruptedException {
+    Map<String, Map<String, List<String>>> notes =
+        new TreeMap<String, Map<String, List<String>>>();
+    for (NotesOutbox.Entry entry : batch) {
+      Map<String, List<String>> forRef = notes.get(entry.notesRef);
+      if (forRef == null) {
+        forRef = new LinkedHashMap<String, List<String>>();
+        notes.put(entry.notesRef, forRef);
+      }
+      List<String> forCommit = forRef.get(entry.commit);
+      if (forCommit == null) {
+        forCommit = new ArrayList<String>();
+        forRef.put(entry.commit, forCommit);
+      }
+      forCommit.add(entry.note);
+    }
+    Job<?, ?> job = job(jobName);
+    GitSCM gitScm = job == null ? null : RunNotesPublisher.Target.gitScm(job);
+    StandardUsernameCredentials credentials = null;
+    if (gitScm != null) {
+      remoteURI = configuredURI(gitScm, remoteURI);
+      credentials = JGitNotesWriter.lookupCredentials(job, gitScm,
+          remoteURI);
+    }
+    long lockTimeoutMillis =
+        GitNotesJobLogger.DescriptorImpl.lockTimeoutMillis();
+    PublishAdmission.Permit permit = PublishAdmission.get().admit(remoteURI,
+        lockTimeoutMillis, new PublishTimings());
+    try {
+      return mirror.run(remoteURI, credentials, lockTimeoutMillis,
+          new NotesBulkPublish(remoteURI, notes,
+              PublishRetryPolicy.fromConfiguration()));
+    } finally {
+      permit.release();
+    }
+  }
+
+  /**
+   * Returns the job that journaled a note. Without it, the mirror falls
+   * back to the controller's credentials.
+   */
+  private static Job<?, ?> job(String jobName) {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null || jobName == null) {
+      return null;
+    }
+    return jenkins.getItemByFullName(jobName, Job.class);
+  }
+
+  /**
+   * Returns the remote as the job configures it, with the password that
+   * the outbox leaves out of its journal.
+   */
+  private static URIish configuredURI(GitSCM gitScm, URIish remoteURI) {
+    String key = PublishMetrics.key(remoteURI);
+    for (UserRemoteConfig config : gitScm.getUserRemoteConfigs()) {
+      try {
+        URIish configured = config.getUrl() == null ? null
+            : new URIish(config.getUrl());
+        if (configured != null
+            && key.equals(PublishMetrics.key(configured))) {
+          return configured;
+        }
+      } catch (URISyntaxException e) {
+        continue;
+      }
+    }
+    return remoteURI;
+  }
+
+  private static List<String> ids(List<NotesOutbox.Entry> entries) {
+    List<String> ids = new ArrayList<String>();
+    for (NotesOutbox.Entry entry : entries) {
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+}
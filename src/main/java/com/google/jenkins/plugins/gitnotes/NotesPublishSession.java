@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+
+/**
+ * What {@link GitNotesJobLogger} resolves once per build to publish its
+ * start and finish notes: the SCM, the publish targets, the notes ref,
+ * the built commit and the build URL and, once first needed, the
+ * workspace's git client and the remote's credentials. It is kept by
+ * {@link GitNotesJobLogger} from the build's set-up until its log is
+ * closed.
+ *
+ * <p>The session also remembers the notes tip its start note pushed from
+ * the workspace. The finish note then appends to it without fetching first,
+ * unless the workspace's notes ref has moved since; should the remote have
+ * moved on meanwhile, the push is rejected and merged as usual.
+ */
+final class NotesPublishSession {
+  final GitSCM gitScm;
+  final List<PublishTargets.Target> targets;
+  final String notesRef;
+  final String builtCommit;
+  private final int noteVersion;
+  private final String url;
+
+  private GitClient gitClient;
+  private boolean credentialsResolved;
+  private StandardUsernameCredentials credentials;
+  private volatile ObjectId notesTip;
+
+  NotesPublishSession(GitSCM gitScm, List<PublishTargets.Target> targets,
+      String notesRef, String builtCommit, int noteVersion, String url) {
+    this.gitScm = gitScm;
+    this.targets = targets;
+    this.notesRef = notesRef;
+    this.builtCommit = builtCommit;
+    this.noteVersion = noteVersion;
+    this.url = url;
+  }
+
+  /**
+   * Returns a new message with the session's version and build URL,
+   * stamped with the current time.
+   */
+  GitNotesCiMessage newMessage() {
+    return new GitNotesCiMessage().addVersion(noteVersion).addUrl(url);
+  }
+
+  /**
+   * Returns the git client of the build's workspace, creating it on first
+   * use. It logs to the listener it was created with.
+   */
+  synchronized GitClient gitClient(AbstractBuild<?, ?> build,
+      TaskListener listener) throws IOException, InterruptedException {
+    if (gitClient == null) {
+      gitClient = gitScm.createClient(listener,
+          build.getEnvironment(listener), build, build.getWorkspace());
+    }
+    return gitClient;
+  }
+
+  /**
+   * Returns the job's credentials for the primary target, looked up on
+   * first use, or null if it has none.
+   */
+  synchronized StandardUsernameCredentials credentials(
+      AbstractBuild<?, ?> build) {
+    if (!credentialsResolved && !targets.isEmpty()) {
+      credentials = JGitNotesWriter.lookupCredentials(build.getProject(),
+          gitScm, targets.get(0).uri);
+      credentialsResolved = true;
+    }
+    return credentials;
+  }
+
+  /**
+   * Returns the notes tip the session's last publish pushed, or null if
+   * it hasn't published yet or its last publish failed.
+   */
+  ObjectId getNotesTip() {
+    return notesTip;
+  }
+
+  void setNotesTip(ObjectId notesTip) {
+    this.notesTip = notesTip;
+  }
+}
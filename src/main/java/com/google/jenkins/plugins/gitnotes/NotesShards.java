@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.RefSpec;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+import com.google.common.base.Charsets;
+
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Spreads notes over several refs, so that writers only fetch and update a
+ * small, current notes tree. Shards live next to the unsharded notes ref,
+ * under {@code <notesRef>-shards/}, since git can't have refs below an
+ * existing ref.
+ */
+public final class NotesShards {
+
+  /**
+   * How the notes of a build pick their ref.
+   */
+  public enum Scheme {
+    /** All notes go to the unsharded notes ref. */
+    NONE,
+    /** One ref per month the build started in, e.g. {@code 2015-06}. */
+    MONTH,
+    /** One ref per job, named after the job's full name. */
+    JOB
+  }
+
+  private static final String SHARDS_SUFFIX = "-shards/";
+  private static final String JOB_PREFIX = "job/";
+
+  private NotesShards() {
+  }
+
+  /**
+   * Returns the ref below which the shards of {@code notesRef} live.
+   */
+  static String shardsPrefix(String notesRef) {
+    return notesRef + SHARDS_SUFFIX;
+  }
+
+  /**
+   * Returns the ref the notes of the given build are written to. Both the
+   * start and finish notes of a build go to the same shard.
+   */
+  static String refFor(String notesRef, Scheme scheme, Run<?, ?> build) {
+    if (scheme == Scheme.MONTH) {
+      return monthRef(notesRef, build.getTimeInMillis());
+    }
+    if (scheme == Scheme.JOB) {
+      return jobRef(notesRef, build.getParent().getFullName());
+    }
+    return notesRef;
+  }
+
+  /**
+   * Returns the shard of the UTC month of the given time.
+   */
+  static String monthRef(String notesRef, long timeMillis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return shardsPrefix(notesRef) + format.format(new Date(timeMillis));
+  }
+
+  /**
+   * Returns the shard of the job with the given full name. The name is
+   * escaped into a single ref component, so that a job can't share its
+   * shard with another one, nor have it sit below another one's: letters,
+   * digits and {@code -} are kept, and every other byte of the name,
+   * including the {@code /} between folders and {@code _} itself, becomes
+   * {@code _} followed by two hex digits.
+   */
+  static String jobRef(String notesRef, String jobFullName) {
+    StringBuilder ref = new StringBuilder(shardsPrefix(notesRef))
+        .append(JOB_PREFIX);
+    for (byte b : jobFullName.getBytes(Charsets.UTF_8)) {
+      if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z')
+          || (b >= '0' && b <= '9') || b == '-') {
+        ref.append((char) b);
+      } else {
+        ref.append(String.format("_%02x", b & 0xff));
+      }
+    }
+    return ref.toString();
+  }
+
+  /**
+   * Returns the refspecs fetching the unsharded notes ref and all of its
+   * shards, for readers of {@link #readNotes}.
+   */
+  static List<RefSpec> fetchRefSpecs(String notesRef) {
+    List<RefSpec> specs = new ArrayList<RefSpec>();
+    specs.add(new RefSpec(String.format("+%s:%s", notesRef, notesRef)));
+    String shards = shardsPrefix(notesRef);
+    specs.add(new RefSpec(String.format("+%s*:%s*", shards, shards)));
+    return specs;
+  }
+
+  /**
+   * Reads the notes on {@code commit} from the unsharded notes ref and each
+   * of its shards.
+   *
+   * @return the note text by the ref it was found in, the unsharded ref
+   *     first and the shards in ref name order; refs without a note on the
+   *     commit are left out.
+   */
+  static LinkedHashMap<String, String> readNotes(Repository repo,
+      String notesRef, AnyObjectId commit) throws IOException {
+    List<Ref> refs = new ArrayList<Ref>();
+    Ref unsharded = repo.getRef(notesRef);
+    if (unsharded != null) {
+      refs.add(unsharded);
+    }
+    String shards = shardsPrefix(notesRef);
+    for (Ref shard : new TreeMap<String, Ref>(
+        repo.getRefDatabase().getRefs(shards)).values()) {
+      refs.add(shard);
+    }
+
+    LinkedHashMap<String, String> notes = new LinkedHashMap<String, String>();
+    ObjectReader reader = repo.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      for (Ref ref : refs) {
+        ObjectId blob = NoteMap.read(reader,
+            walk.parseCommit(ref.getObjectId())).get(commit);
+        if (blob != null) {
+          notes.put(ref.getName(), new String(
+              reader.open(blob).getCachedBytes(), Constants.CHARSET));
+        }
+      }
+    } finally {
+      walk.release();
+      reader.release();
+    }
+    return notes;
+  }
+
+  /**
+   * Runs {@link #readNotes} wherever the client's repository lives.
+   */
+  static final class ReadCallback
+      implements RepositoryCallback<LinkedHashMap<String, String>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String notesRef;
+    private final String commitId;
+
+    ReadCallback(String notesRef, String commitId) {
+      this.notesRef = notesRef;
+      this.commitId = commitId;
+    }
+
+    @Override
+    public LinkedHashMap<String, String> invoke(Repository repo,
+        VirtualChannel channel) throws IOException, InterruptedException {
+      return readNotes(repo, notesRef, ObjectId.fromString(commitId));
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Writes several notes into a notes ref as a single notes commit, directly
+ * through JGit's {@link NoteMap}.
+ */
+final class NotesUpdate {
+
+  private NotesUpdate() {
+  }
+
+  /**
+   * Appends the given notes, keyed by annotated commit id, to the notes
+   * ref of the given repository in one commit. The URLs of compact
+   * messages are written relative to the ref's {@link NotesUrlBase}.
+   *
+   * @return the new tip of the notes ref.
+   */
+  static ObjectId appendNotes(Repository repo, String notesRef,
+      Map<String, List<String>> notes) throws IOException {
+    ObjectInserter inserter = repo.newObjectInserter();
+    ObjectReader reader = repo.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      Ref ref = repo.getRef(notesRef);
+      RevCommit parent = (ref == null || ref.getObjectId() == null)
+          ? null : walk.parseCommit(ref.getObjectId());
+      NoteMap map = parent == null
+          ? NoteMap.newEmptyMap() : NoteMap.read(reader, parent);
+
+      String urlBase = NotesUrlBase.read(reader, map);
+      if (urlBase == null && map.get(NotesUrlBase.BASE_NOTE) == null) {
+        urlBase = NotesUrlBase.derive(notes);
+        if (urlBase != null) {
+          map.set(NotesUrlBase.BASE_NOTE, inserter.insert(Constants.OBJ_BLOB,
+              (urlBase + "\n").getBytes(Constants.CHARSET)));
+        }
+      }
+
+      for (Map.Entry<String, List<String>> entry : notes.entrySet()) {
+        ObjectId target = ObjectId.fromString(entry.getKey());
+        StringBuilder text = new StringBuilder();
+        ObjectId existing = map.get(target);
+        if (existing != null) {
+          text.append(new String(reader.open(existing).getCachedBytes(),
+              Constants.CHARSET));
+        }
+        for (String note : entry.getValue()) {
+          append(text, NotesUrlBase.relativize(note, urlBase));
+        }
+        map.set(target, inserter.insert(Constants.OBJ_BLOB,
+            text.toString().getBytes(Constants.CHARSET)));
+      }
+
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(map.writeTree(inserter));
+      if (parent != null) {
+        commit.setParentId(parent);
+      }
+      PersonIdent ident = new PersonIdent(repo);
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("Notes added by "
+          + GitNotesJobLogger.class.getSimpleName() + "\n");
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+
+      RefUpdate update = repo.updateRef(notesRef);
+      update.setExpectedOldObjectId(
+          parent == null ? ObjectId.zeroId() : parent);
+      update.setNewObjectId(commitId);
+      update.setRefLogMessage("notes: append", false);
+      RefUpdate.Result result = update.update(walk);
+      if (result != RefUpdate.Result.NEW
+          && result != RefUpdate.Result.FAST_FORWARD) {
+        throw new IOException(
+            String.format("Failed to update %s: %s", notesRef, result));
+      }
+      return commitId;
+    } finally {
+      walk.release();
+      reader.release();
+      inserter.release();
+    }
+  }
+
+  /**
+   * Appends a note the way {@code git notes append} does: paragraphs are
+   * separated by a blank line and the note ends with a newline.
+   */
+  static void append(StringBuilder text, String note) {
+    if (text.length() > 0) {
+      if (text.charAt(text.length() - 1) != '\n') {
+        text.append('\n');
+      }
+      text.append('\n');
+    }
+    text.append(note).append('\n');
+  }
+
+  /**
+   * Runs {@link #appendNotes} wherever the client's repository lives.
+   */
+  static final class AppendCallback implements RepositoryCallback<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String notesRef;
+    private final LinkedHashMap<String, List<String>> notes;
+
+    AppendCallback(String notesRef, Map<String, List<String>> notes) {
+      this.notesRef = notesRef;
+      this.notes = new LinkedHashMap<String, List<String>>(notes);
+    }
+
+    @VisibleForTesting
+    Map<String, List<String>> getNotes() {
+      return notes;
+    }
+
+    @Override
+    public String invoke(Repository repo, VirtualChannel channel)
+        throws IOException, InterruptedException {
+      return appendNotes(repo, notesRef, notes).name();
+    }
+  }
+}
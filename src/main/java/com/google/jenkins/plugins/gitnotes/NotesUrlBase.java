@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+import hudson.remoting.VirtualChannel;
+
+/**
+ * The base URL of a notes ref, against which the URLs of compact
+ * {@link GitNotesCiMessage}s are written relative.
+ *
+ * <p>The base is kept in the notes ref itself, as the note of
+ * {@link #BASE_NOTE}, so that it travels with every fetch and push of the
+ * ref and readers need nothing else to resolve the URLs, git itself
+ * included: {@code git notes show} of the empty tree prints it. It is set
+ * by the first compact message that {@link NotesUpdate} appends to the
+ * ref, to the Jenkins root URL of its build, and never changes afterwards:
+ * messages of other Jenkins instances keep their absolute URLs. Every
+ * writer relativizes against it: {@link NotesUpdate} for the JGit, mirror
+ * and bulk writers, and {@link RelativizeCallback} for the git-client
+ * writer, which only writes absolute URLs until another writer has set
+ * the base.
+ *
+ * <p>Two writers may still set different bases concurrently. When their
+ * notes are merged, {@link NotesMerge} keeps the base of the remote, which
+ * was published first, and writes the URLs of the other side absolute.
+ */
+final class NotesUrlBase {
+  /**
+   * The object annotated with the base URL: the well-known empty tree,
+   * which no build annotates.
+   */
+  static final ObjectId BASE_NOTE =
+      ObjectId.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+
+  private static final Logger LOGGER = Logger.getLogger(
+      NotesUrlBase.class.getName());
+
+  private static final String JOB_PATH = "/job/";
+
+  private NotesUrlBase() {
+  }
+
+  /** Whether the given URL is absolute rather than relative to a base. */
+  static boolean isAbsolute(String url) {
+    return url.contains("://");
+  }
+
+  /**
+   * Returns the base of the given build URL: everything up to its first
+   * {@code /job/} path segment, or null if it has none.
+   */
+  static String baseOf(String url) {
+    if (url == null || !isAbsolute(url)) {
+      return null;
+    }
+    int job = url.indexOf(JOB_PATH);
+    return job < 0 ? null : url.substring(0, job + 1);
+  }
+
+  /**
+   * Reads the base URL of the given notes. Older merges may have joined
+   * bases set concurrently into one note; its first line is the base then,
+   * for readers and writers alike.
+   *
+   * @return the base, or null if the notes have none.
+   */
+  static String read(ObjectReader reader, NoteMap map) throws IOException {
+    ObjectId blob = map.get(BASE_NOTE);
+    if (blob == null) {
+      return null;
+    }
+    String text = new String(reader.open(blob).getCachedBytes(),
+        Constants.CHARSET).trim();
+    int end = text.indexOf('\n');
+    if (end < 0) {
+      return text.isEmpty() ? null : text;
+    }
+    LOGGER.warning("Git notes hold more than one URL base, using the first"
+        + " of: " + text.replace('\n', ' '));
+    return text.substring(0, end).trim();
+  }
+
+  /**
+   * Returns the base of the first compact message with an absolute URL
+   * among the given notes, or null if there is none.
+   */
+  static String derive(Map<String, List<String>> notes) {
+    for (List<String> lines : notes.values()) {
+      for (String line : lines) {
+        if (line.startsWith(GitNotesCiMessage.COMPACT_PREFIX)) {
+          GitNotesCiMessage message = GitNotesCiMessage.parse(line);
+          String base = message == null ? null : baseOf(message.getUrl());
+          if (base != null) {
+            return base;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes the URL of a compact message relative to the given base, if it
+   * starts with it. Other lines are returned as they are.
+   */
+  static String relativize(String line, String base) {
+    if (base == null || !line.startsWith(GitNotesCiMessage.COMPACT_PREFIX)) {
+      return line;
+    }
+    StringBuilder prefix =
+        new StringBuilder(GitNotesCiMessage.COMPACT_URL_PREFIX);
+    GitNotesCiMessage.appendString(prefix, base);
+    // Drop the closing quote: the URL goes on after the base.
+    prefix.setLength(prefix.length() - 1);
+    int start = line.indexOf(prefix.toString());
+    if (start < 0) {
+      return line;
+    }
+    return line.substring(0, start)
+        + GitNotesCiMessage.COMPACT_URL_PREFIX + '"'
+        + line.substring(start + prefix.length());
+  }
+
+  /**
+   * Writes the relative URL of a compact message absolute again, against
+   * the given base. Other lines are returned as they are.
+   */
+  static String absolutize(String line, String base) {
+    if (base == null || !line.startsWith(GitNotesCiMessage.COMPACT_PREFIX)) {
+      return line;
+    }
+    GitNotesCiMessage message = GitNotesCiMessage.parse(line);
+    if (message == null || message.getUrl() == null
+        || isAbsolute(message.getUrl())) {
+      return line;
+    }
+    String relative = GitNotesCiMessage.COMPACT_URL_PREFIX + '"';
+    int start = line.indexOf(relative);
+    if (start < 0) {
+      return line;
+    }
+    StringBuilder prefix =
+        new StringBuilder(GitNotesCiMessage.COMPACT_URL_PREFIX);
+    GitNotesCiMessage.appendString(prefix, base);
+    prefix.setLength(prefix.length() - 1);
+    return line.substring(0, start) + prefix
+        + line.substring(start + relative.length());
+  }
+
+  /**
+   * Relativizes a note against the base of the notes ref in the client's
+   * repository, wherever it lives, for writers that append the note with
+   * the git CLI. Returns the note as it is if the ref has no base yet.
+   */
+  static final class RelativizeCallback
+      implements RepositoryCallback<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String notesRef;
+    final String note;
+
+    RelativizeCallback(String notesRef, String note) {
+      this.notesRef = notesRef;
+      this.note = note;
+    }
+
+    @Override
+    public String invoke(Repository repo, VirtualChannel channel)
+        throws IOException, InterruptedException {
+      Ref ref = repo.getRef(notesRef);
+      if (ref == null || ref.getObjectId() == null) {
+        return note;
+      }
+      ObjectReader reader = repo.newObjectReader();
+      RevWalk walk = new RevWalk(reader);
+      try {
+        String base = read(reader, NoteMap.read(reader,
+            walk.parseCommit(ref.getObjectId())));
+        return relativize(note, base);
+      } finally {
+        walk.release();
+        reader.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+
+import hudson.FilePath;
+
+/**
+ * Striped locks serializing notes writes to the same local repository and
+ * remote, while writes to different repositories proceed in parallel.
+ */
+public final class NotesWriteLocks {
+
+  static final long DEFAULT_TIMEOUT_MILLIS = 60000L;
+  private static final int STRIPES = 256;
+  // Wait statistics are kept for this many of the most recently locked
+  // keys, as workspaces of ephemeral agents come and go.
+  @VisibleForTesting
+  static final int MAX_STATS_KEYS = 1000;
+
+  private static final NotesWriteLocks INSTANCE = new NotesWriteLocks(STRIPES);
+
+  private final ReentrantLock[] locks;
+  private final Map<String, WaitStats> waitStats =
+      new LinkedHashMap<String, WaitStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, WaitStats> eldest) {
+          return size() > MAX_STATS_KEYS;
+        }
+      };
+
+  @VisibleForTesting
+  NotesWriteLocks(int stripes) {
+    locks = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new ReentrantLock(true);
+    }
+  }
+
+  /**
+   * Returns the controller-wide locks.
+   */
+  public static NotesWriteLocks get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the lock key of a local repository, identified by the node it
+   * lives on and its path there, and the remote it is published to.
+   */
+  static String key(String node, FilePath workspace, URIish remoteURI) {
+    return String.format("%s:%s -> %s",
+        Strings.isNullOrEmpty(node) ? "master" : node,
+        workspace == null ? "" : workspace.getRemote(), remoteURI);
+  }
+
+  /**
+   * Waits up to {@code timeoutMillis} for the lock of the given key.
+   *
+   * @return the held lock, which the caller must unlock, or null if the
+   *     wait timed out.
+   */
+  public Lock tryLock(String key, long timeoutMillis)
+      throws InterruptedException {
+    ReentrantLock lock = stripe(key);
+    long start = System.nanoTime();
+    boolean acquired = lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+    statsFor(key).record(System.nanoTime() - start, acquired);
+    return acquired ? lock : null;
+  }
+
+  /**
+   * Returns lock wait statistics by key, for the
+   * {@value #MAX_STATS_KEYS} most recently locked keys.
+   */
+  public Map<String, WaitStats> getWaitStats() {
+    synchronized (waitStats) {
+      return Collections.unmodifiableMap(
+          new TreeMap<String, WaitStats>(waitStats));
+    }
+  }
+
+  private ReentrantLock stripe(String key) {
+    return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+  }
+
+  private WaitStats statsFor(String key) {
+    synchronized (waitStats) {
+      WaitStats stats = waitStats.get(key);
+      if (stats == null) {
+        stats = new WaitStats();
+        waitStats.put(key, stats);
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * How long writers waited for one lock key.
+   */
+  public static final class WaitStats {
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    void record(long waitNanos, boolean acquired) {
+      (acquired ? acquisitions : timeouts).incrementAndGet();
+      totalWaitNanos.addAndGet(waitNanos);
+      long max = maxWaitNanos.get();
+      while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+        max = maxWaitNanos.get();
+      }
+    }
+
+    public long getAcquisitions() {
+      return acquisitions.get();
+    }
+
+    public long getTimeouts() {
+      return timeouts.get();
+    }
+
+    public long getTotalWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.JsonObject;
+
+/**
+ * Controller-wide admission control for publishes: a token bucket limits
+ * how many publishes start per second, and a cap how many run at once.
+ * Publishes over either limit wait in a queue per remote, and the queues
+ * are served round-robin, so that a burst of builds publishing to one
+ * remote doesn't hold up the others. Both limits are off by default.
+ * Every publish path is admitted: build notes, fan-out, queued pipeline
+ * notes, batches, outbox replays and backfills.
+ *
+ * <p>The queue depth and wait times of every remote are served by
+ * {@link PublishMetricsAction}.
+ */
+final class PublishAdmission {
+
+  static final int DEFAULT_BURST = 10;
+  // Upper bounds of the wait time buckets, in milliseconds.
+  private static final long[] WAIT_BOUNDS_MILLIS = {
+    1, 10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000
+  };
+
+  private static PublishAdmission instance;
+
+  /**
+   * A publish let through, which must be released once it is done.
+   */
+  final class Permit {
+    private final boolean counted;
+    private boolean released;
+
+    private Permit(boolean counted) {
+      this.counted = counted;
+    }
+
+    void release() {
+      synchronized (PublishAdmission.this) {
+        if (!counted || released) {
+          return;
+        }
+        released = true;
+        running--;
+        dispatch();
+      }
+    }
+  }
+
+  /**
+   * A publish waiting in the queue of its remote.
+   */
+  private static final class Waiter {
+    private boolean admitted;
+  }
+
+  private final Permit unlimited = new Permit(false);
+  // The remotes with waiting publishes, in the order they are served.
+  private final Map<String, Deque<Waiter>> queues =
+      new LinkedHashMap<String, Deque<Waiter>>();
+  private final Map<String, Stats> stats = new HashMap<String, Stats>();
+  private double ratePerSecond;
+  private int burst = DEFAULT_BURST;
+  private int maxConcurrent;
+  private double tokens;
+  private long refilledNanos = System.nanoTime();
+  private int running;
+
+  @VisibleForTesting
+  PublishAdmission() {
+  }
+
+  /**
+   * Returns the controller-wide instance, set up from the plugin's global
+   * configuration on first use.
+   */
+  static synchronized PublishAdmission get() {
+    if (instance == null) {
+      instance = new PublishAdmission();
+      GitNotesJobLogger.DescriptorImpl descriptor =
+          GitNotesJobLogger.DescriptorImpl.get();
+      if (descriptor != null) {
+        instance.setLimits(descriptor.getPublishRatePerSecond(),
+            descriptor.getPublishBurst(),
+            descriptor.getMaxConcurrentPublishes());
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Changes the limits. Publishes already waiting are let through as the
+   * new limits allow.
+   *
+   * @param ratePerSecond how many publishes may start per second, on
+   *     average, or 0 for no limit.
+   * @param burst how many publishes may start at once after a quiet
+   *     period, when there is a rate limit.
+   * @param maxConcurrent how many publishes may run at once, or 0 for no
+   *     limit.
+   */
+  synchronized void setLimits(double ratePerSecond, int burst,
+      int maxConcurrent) {
+    refill();
+    if (this.ratePerSecond <= 0) {
+      // The bucket starts out full.
+      tokens = burst;
+    }
+    this.ratePerSecond = Math.max(0, ratePerSecond);
+    this.burst = Math.max(1, burst);
+    this.maxConcurrent = Math.max(0, maxConcurrent);
+    tokens = Math.min(tokens, this.burst);
+    dispatch();
+  }
+
+  /**
+   * Waits until a publish to the given remote may start, adding the wait
+   * to the {@link PublishTimings.Phase#ADMISSION} phase.
+   *
+   * @return the permit of the publish, or null if the wait timed out.
+   */
+  Permit acquire(URIish uri, long timeoutMillis, PublishTimings timings)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    Permit permit = acquire(PublishMetrics.key(uri), timeoutMillis);
+    if (permit != unlimited) {
+      timings.add(PublishTimings.Phase.ADMISSION, start);
+    }
+    return permit;
+  }
+
+  /**
+   * Like {@link #acquire(URIish, long, PublishTimings)}, for background
+   * publishes and those that hold on to the permit past their caller's
+   * wait, which fail when the wait times out.
+   *
+   * @throws RemoteHealth.NotAttemptedException if the wait timed out.
+   */
+  Permit admit(URIish uri, long timeoutMillis, PublishTimings timings)
+      throws IOException, InterruptedException {
+    Permit permit = acquire(uri, timeoutMillis, timings);
+    if (permit == null) {
+      throw new RemoteHealth.NotAttemptedException(
+          "Timed out waiting to publish to "
+          + PublishMetrics.key(uri));
+    }
+    return permit;
+  }
+
+  @VisibleForTesting
+  synchronized Permit acquire(String key, long timeoutMillis)
+      throws InterruptedException {
+    if (ratePerSecond <= 0 && maxConcurrent <= 0) {
+      return unlimited;
+    }
+    Stats remote = stats(key);
+    Waiter waiter = new Waiter();
+    Deque<Waiter> queue = queues.get(key);
+    if (queue == null) {
+      queue = new ArrayDeque<Waiter>();
+      queues.put(key, queue);
+    }
+    queue.addLast(waiter);
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      while (true) {
+        dispatch();
+        long now = System.nanoTime();
+        if (waiter.admitted) {
+          remote.admitted++;
+          remote.waitMillis.update(
+              TimeUnit.NANOSECONDS.toMillis(now - start));
+          return new Permit(true);
+        }
+        if (now >= deadline) {
+          remove(key, waiter);
+          remote.timedOut++;
+          return null;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this,
+            Math.min(deadline - now, nanosUntilToken()));
+      }
+    } catch (InterruptedException e) {
+      if (waiter.admitted) {
+        running--;
+        dispatch();
+      } else {
+        remove(key, waiter);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Lets waiting publishes through, one remote after the other, for as
+   * long as the limits allow.
+   */
+  private void dispatch() {
+    refill();
+    boolean admitted = false;
+    while (!queues.isEmpty()
+        && (maxConcurrent <= 0 || running < maxConcurrent)
+        && (ratePerSecond <= 0 || tokens >= 1)) {
+      Iterator<Map.Entry<String, Deque<Waiter>>> first =
+          queues.entrySet().iterator();
+      Map.Entry<String, Deque<Waiter>> remote = first.next();
+      first.remove();
+      remote.getValue().pollFirst().admitted = true;
+      if (!remote.getValue().isEmpty()) {
+        // To the back of the line.
+        queues.put(remote.getKey(), remote.getValue());
+      }
+      running++;
+      if (ratePerSecond > 0) {
+        tokens -= 1;
+      }
+      admitted = true;
+    }
+    if (admitted) {
+      notifyAll();
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    if (ratePerSecond > 0) {
+      tokens = Math.min(burst,
+          tokens + (now - refilledNanos) * ratePerSecond / 1e9);
+    }
+    refilledNanos = now;
+  }
+
+  /**
+   * Returns how long until the bucket has a token again, or
+   * {@link Long#MAX_VALUE} if tokens aren't what publishes wait for.
+   */
+  private long nanosUntilToken() {
+    if (ratePerSecond <= 0 || tokens >= 1) {
+      return Long.MAX_VALUE;
+    }
+    return (long) Math.ceil((1 - tokens) * 1e9 / ratePerSecond);
+  }
+
+  private void remove(String key, Waiter waiter) {
+    Deque<Waiter> queue = queues.get(key);
+    if (queue != null) {
+      queue.remove(waiter);
+      if (queue.isEmpty()) {
+        queues.remove(key);
+      }
+    }
+  }
+
+  private Stats stats(String key) {
+    Stats remote = stats.get(key);
+    if (remote == null) {
+      remote = new Stats();
+      stats.put(key, remote);
+    }
+    return remote;
+  }
+
+  /**
+   * Returns the number of publishes to the remote waiting to start.
+   */
+  @VisibleForTesting
+  synchronized int waiting(String key) {
+    Deque<Waiter> queue = queues.get(key);
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Returns the limits, the publishes running and, for every remote, the
+   * publishes waiting, let through and timed out, and the wait times.
+   */
+  synchronized JsonObject toJson() {
+    refill();
+    JsonObject json = new JsonObject();
+    json.addProperty("ratePerSecond", ratePerSecond);
+    json.addProperty("burst", burst);
+    json.addProperty("maxConcurrent", maxConcurrent);
+    json.addProperty("running", running);
+    json.addProperty("tokens", ratePerSecond > 0 ? tokens : burst);
+    JsonObject remotes = new JsonObject();
+    int waitingTotal = 0;
+    for (Map.Entry<String, Stats> entry
+        : new TreeMap<String, Stats>(stats).entrySet()) {
+      Stats remote = entry.getValue();
+      int waitingRemote = waiting(entry.getKey());
+      waitingTotal += waitingRemote;
+      JsonObject stat = new JsonObject();
+      stat.addProperty("waiting", waitingRemote);
+      stat.addProperty("admitted", remote.admitted);
+      stat.addProperty("timedOut", remote.timedOut);
+      stat.add("waitMillis", remote.waitMillis.toJson());
+      remotes.add(entry.getKey(), stat);
+    }
+    json.addProperty("waiting", waitingTotal);
+    json.add("remotes", remotes);
+    return json;
+  }
+
+  /**
+   * The admission statistics of one remote. Guarded by the
+   * {@link PublishAdmission}.
+   */
+  private static final class Stats {
+    private final PublishMetrics.Histogram waitMillis =
+        new PublishMetrics.Histogram(WAIT_BOUNDS_MILLIS);
+    private long admitted;
+    private long timedOut;
+  }
+}
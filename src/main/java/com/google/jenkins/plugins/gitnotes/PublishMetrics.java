@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.JsonObject;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide latency histograms and counters of note publishing, kept
+ * per remote: how long each {@link PublishTimings.Phase} and each whole
+ * publish took, how many publishes succeeded, failed and were retried, and
+ * how large the published notes were. They are served as JSON by
+ * {@link PublishMetricsAction}, and also reported to the Metrics plugin
+ * when it is installed.
+ */
+public final class PublishMetrics {
+
+  // Upper bounds of the latency buckets, in milliseconds.
+  private static final long[] LATENCY_BOUNDS_MILLIS = {
+    1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000,
+    60000, 300000
+  };
+  // Upper bounds of the payload size buckets, in bytes.
+  private static final long[] SIZE_BOUNDS_BYTES = {
+    64, 128, 256, 512, 1024, 4096, 16384, 65536, 262144, 1048576
+  };
+
+  private static final PublishMetrics INSTANCE = new PublishMetrics();
+
+  private final ConcurrentMap<String, RemoteMetrics> remotes =
+      new ConcurrentHashMap<String, RemoteMetrics>();
+
+  PublishMetrics() {
+  }
+
+  /**
+   * Returns the controller-wide metrics.
+   */
+  public static PublishMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records one publish to the given remote.
+   *
+   * @param notes the number of notes published at once, more than one
+   *     for a batch.
+   * @param payloadBytes the total size of the published notes.
+   */
+  void record(URIish remoteURI, PublishTimings timings, long totalNanos,
+      int notes, long payloadBytes, int retries, boolean success) {
+    String remote = key(remoteURI);
+    RemoteMetrics metrics = remotes.get(remote);
+    if (metrics == null) {
+      RemoteMetrics created = new RemoteMetrics();
+      metrics = remotes.putIfAbsent(remote, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    metrics.record(timings, totalNanos, notes, payloadBytes, retries,
+        success);
+    if (metricsPluginInstalled()) {
+      MetricsPluginReporter.record(remote, timings, totalNanos, notes,
+          payloadBytes, retries, success);
+    }
+  }
+
+  /**
+   * Returns the metrics of every remote published to since startup, keyed
+   * by remote.
+   */
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, RemoteMetrics> entry
+        : new TreeMap<String, RemoteMetrics>(remotes).entrySet()) {
+      json.add(entry.getKey(), entry.getValue().toJson());
+    }
+    return json;
+  }
+
+  /**
+   * Forgets everything about all remotes.
+   */
+  public void clear() {
+    remotes.clear();
+  }
+
+  /**
+   * The remote with any password left out, which must not show up in the
+   * metrics.
+   */
+  @VisibleForTesting
+  static String key(URIish remoteURI) {
+    return remoteURI.setPass(null).toString();
+  }
+
+  private static boolean metricsPluginInstalled() {
+    Jenkins jenkins = Jenkins.getInstance();
+    return jenkins != null && jenkins.getPlugin("metrics") != null;
+  }
+
+  /**
+   * The histograms and counters of one remote.
+   */
+  private static final class RemoteMetrics {
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong notes = new AtomicLong();
+    private final Histogram total = new Histogram(LATENCY_BOUNDS_MILLIS);
+    private final Histogram payload = new Histogram(SIZE_BOUNDS_BYTES);
+    private final Histogram[] phases =
+        new Histogram[PublishTimings.Phase.values().length];
+
+    RemoteMetrics() {
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new Histogram(LATENCY_BOUNDS_MILLIS);
+      }
+    }
+
+    void record(PublishTimings timings, long totalNanos, int noteCount,
+        long payloadBytes, int retryCount, boolean success) {
+      (success ? successes : failures).incrementAndGet();
+      retries.addAndGet(retryCount);
+      notes.addAndGet(noteCount);
+      total.update(TimeUnit.NANOSECONDS.toMillis(totalNanos));
+      payload.update(payloadBytes);
+      for (PublishTimings.Phase phase : PublishTimings.Phase.values()) {
+        if (timings.ran(phase)) {
+          phases[phase.ordinal()].update(
+              TimeUnit.NANOSECONDS.toMillis(timings.getNanos(phase)));
+        }
+      }
+    }
+
+    JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("successes", successes.get());
+      json.addProperty("failures", failures.get());
+      json.addProperty("retries", retries.get());
+      json.addProperty("notes", notes.get());
+      json.add("totalMillis", total.toJson());
+      JsonObject phaseJson = new JsonObject();
+      for (PublishTimings.Phase phase : PublishTimings.Phase.values()) {
+        phaseJson.add(phase.getLabel(), phases[phase.ordinal()].toJson());
+      }
+      json.add("phaseMillis", phaseJson);
+      json.add("payloadBytes", payload.toJson());
+      return json;
+    }
+  }
+
+  /**
+   * A histogram over fixed buckets, with an overflow bucket for the values
+   * above the last bound. Percentiles are estimated as the upper bound of
+   * the bucket they fall in.
+   */
+  @VisibleForTesting
+  static final class Histogram {
+    private final long[] bounds;
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+
+    Histogram(long[] bounds) {
+      this.bounds = bounds;
+      this.counts = new long[bounds.length + 1];
+    }
+
+    synchronized void update(long value) {
+      int bucket = 0;
+      while (bucket < bounds.length && value > bounds[bucket]) {
+        bucket++;
+      }
+      counts[bucket]++;
+      count++;
+      sum += value;
+      max = Math.max(max, value);
+    }
+
+    synchronized long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the estimated value below which the given fraction of the
+     * recorded values fall, or 0 if none were recorded.
+     */
+    synchronized long percentile(double fraction) {
+      long rank = (long) Math.ceil(fraction * count);
+      long seen = 0;
+      for (int bucket = 0; bucket < bounds.length; bucket++) {
+        seen += counts[bucket];
+        if (seen >= rank) {
+          return Math.min(bounds[bucket], max);
+        }
+      }
+      return max;
+    }
+
+    synchronized JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("count", count);
+      json.addProperty("sum", sum);
+      json.addProperty("max", max);
+      json.addProperty("p50", percentile(0.5));
+      json.addProperty("p95", percentile(0.95));
+      json.addProperty("p99", percentile(0.99));
+      JsonObject buckets = new JsonObject();
+      for (int bucket = 0; bucket < counts.length; bucket++) {
+        buckets.addProperty(bucket < bounds.length
+            ? Long.toString(bounds[bucket]) : "+Inf", counts[bucket]);
+      }
+      json.add("buckets", buckets);
+      return json;
+    }
+  }
+}
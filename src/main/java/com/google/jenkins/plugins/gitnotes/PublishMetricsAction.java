@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import com.google.gson.GsonBuilder;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+/**
+ * Serves the {@link PublishMetrics} as JSON at
+ * {@code JENKINS_URL/git-notes-metrics/}, and the controller's
+ * {@link SshSessionPool} statistics at
+ * {@code JENKINS_URL/git-notes-metrics/connections} and the
+ * {@link RemoteHealth} of every remote at
+ * {@code JENKINS_URL/git-notes-metrics/health}, and the
+ * {@link PublishAdmission} queues at
+ * {@code JENKINS_URL/git-notes-metrics/admission}. Like any root action,
+ * it needs the overall read permission.
+ */
+@Extension
+public final class PublishMetricsAction implements RootAction {
+
+  /** {@inheritDoc} */
+  @Override
+  public String getIconFileName() {
+    // Not shown in the side panel.
+    return null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDisplayName() {
+    return "Git Notes Publish Metrics";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUrlName() {
+    return "git-notes-metrics";
+  }
+
+  /**
+   * Writes the metrics of every remote.
+   */
+  public void doIndex(StaplerRequest req, StaplerResponse rsp)
+      throws IOException {
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = rsp.getWriter();
+    new GsonBuilder().setPrettyPrinting().create()
+        .toJson(PublishMetrics.get().toJson(), writer);
+    writer.flush();
+  }
+
+  /**
+   * Writes the SSH session counts and handshake times of every user and
+   * host.
+   */
+  public void doConnections(StaplerRequest req, StaplerResponse rsp)
+      throws IOException {
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = rsp.getWriter();
+    new GsonBuilder().setPrettyPrinting().create()
+        .toJson(SshSessionPool.get().toJson(), writer);
+    writer.flush();
+  }
+
+  /**
+   * Writes the circuit state, failure rate and latency of every remote.
+   */
+  public void doHealth(StaplerRequest req, StaplerResponse rsp)
+      throws IOException {
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = rsp.getWriter();
+    new GsonBuilder().setPrettyPrinting().create()
+        .toJson(RemoteHealth.get().toJson(), writer);
+    writer.flush();
+  }
+
+  /**
+   * Writes the publish limits, and the publishes waiting and the wait times
+   * of every remote.
+   */
+  public void doAdmission(StaplerRequest req, StaplerResponse rsp)
+      throws IOException {
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = rsp.getWriter();
+    new GsonBuilder().setPrettyPrinting().create()
+        .toJson(PublishAdmission.get().toJson(), writer);
+    writer.flush();
+  }
+}
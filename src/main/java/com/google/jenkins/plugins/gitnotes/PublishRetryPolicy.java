@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.Serializable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.Transport;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * How often, and how patiently, a rejected notes push is merged and
+ * retried, and how long each fetch or push may take.
+ */
+final class PublishRetryPolicy implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final int DEFAULT_MAX_RETRIES = 5;
+  static final long DEFAULT_BACKOFF_MILLIS = 200L;
+  private static final long MAX_BACKOFF_MILLIS = 10000L;
+
+  private final int maxRetries;
+  private final long backoffMillis;
+  private final long timeoutMillis;
+
+  PublishRetryPolicy(int maxRetries, long backoffMillis) {
+    this(maxRetries, backoffMillis, 0L);
+  }
+
+  private PublishRetryPolicy(int maxRetries, long backoffMillis,
+      long timeoutMillis) {
+    this.maxRetries = maxRetries;
+    this.backoffMillis = backoffMillis;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns the policy from the plugin's global configuration.
+   */
+  static PublishRetryPolicy fromConfiguration() {
+    GitNotesJobLogger.DescriptorImpl descriptor =
+        GitNotesJobLogger.DescriptorImpl.get();
+    return descriptor == null
+        ? new PublishRetryPolicy(DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MILLIS)
+        : new PublishRetryPolicy(descriptor.getPublishRetries(),
+            descriptor.getRetryBackoffMillis());
+  }
+
+  /**
+   * Returns this policy with a timeout on each fetch and push, e.g. the
+   * timeout of the target published to.
+   */
+  PublishRetryPolicy withTimeout(long timeoutMillis) {
+    return new PublishRetryPolicy(maxRetries, backoffMillis, timeoutMillis);
+  }
+
+  int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Returns the timeout of each fetch and push, or 0 if there is none.
+   */
+  long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Returns the timeout in whole minutes, rounded up, as the git client
+   * commands take it, or null if there is none.
+   */
+  Integer getTimeoutMinutes() {
+    return timeoutMillis <= 0 ? null
+        : (int) ((timeoutMillis + TimeUnit.MINUTES.toMillis(1) - 1)
+            / TimeUnit.MINUTES.toMillis(1));
+  }
+
+  /**
+   * Makes the transport give up on a remote that doesn't respond within
+   * the timeout, if there is one.
+   */
+  void applyTo(Transport transport) {
+    if (timeoutMillis > 0) {
+      transport.setTimeout((int) Math.max(1,
+          TimeUnit.MILLISECONDS.toSeconds(timeoutMillis)));
+    }
+  }
+
+  /**
+   * Sleeps before the given (1-based) retry, for a random time of up to
+   * the base backoff doubled per attempt, so that builds that collided once
+   * don't collide again in lockstep.
+   */
+  void backoff(int retry) throws InterruptedException {
+    long delay = delayBound(retry);
+    if (delay > 0) {
+      Thread.sleep((long) (new Random().nextDouble() * delay));
+    }
+  }
+
+  @VisibleForTesting
+  long delayBound(int retry) {
+    long bound = backoffMillis;
+    for (int i = 1; i < retry && bound < MAX_BACKOFF_MILLIS; i++) {
+      bound *= 2;
+    }
+    return Math.min(bound, MAX_BACKOFF_MILLIS);
+  }
+}
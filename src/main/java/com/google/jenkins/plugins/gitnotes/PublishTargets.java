@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+import hudson.plugins.git.GitSCM;
+
+/**
+ * The remotes a job's notes are published to. Each line of the job's
+ * target list names a remote of its {@link GitSCM}, whose URIs all become
+ * targets, or is a URL, optionally followed by a timeout in seconds:
+ *
+ * <pre>
+ * origin
+ * mirror 30
+ * https://git.example.com/backup.git 10
+ * </pre>
+ *
+ * <p>The first target is the primary one, which the build publishes to
+ * itself; the others are fanned out by {@link NotesFanOut}.
+ */
+final class PublishTargets {
+
+  static final String DEFAULT_REMOTE = "origin";
+  static final long DEFAULT_TIMEOUT_SECONDS = 60;
+
+  private PublishTargets() {
+  }
+
+  /**
+   * A remote URI and how long a publish to it may take.
+   */
+  static final class Target {
+    final URIish uri;
+    final long timeoutMillis;
+
+    Target(URIish uri, long timeoutMillis) {
+      this.uri = uri;
+      this.timeoutMillis = timeoutMillis;
+    }
+  }
+
+  /**
+   * Resolves the given target list against the job's SCM. A blank list
+   * means the first URI of {@code origin}, as before targets were
+   * configurable. Unknown remotes and malformed lines are skipped.
+   */
+  static List<Target> resolve(String spec, GitSCM gitScm) {
+    Map<String, Target> targets = new LinkedHashMap<String, Target>();
+    if (spec == null || spec.trim().isEmpty()) {
+      RemoteConfig origin = gitScm.getRepositoryByName(DEFAULT_REMOTE);
+      if (origin != null && !origin.getURIs().isEmpty()) {
+        URIish uri = origin.getURIs().get(0);
+        targets.put(uri.toString(), new Target(uri,
+            TimeUnit.SECONDS.toMillis(DEFAULT_TIMEOUT_SECONDS)));
+      }
+      return new ArrayList<Target>(targets.values());
+    }
+    for (String line : spec.split("\n")) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields[0].isEmpty()) {
+        continue;
+      }
+      long timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+      if (fields.length > 1) {
+        try {
+          timeoutSeconds = Math.max(1L, Long.parseLong(fields[1]));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+      long timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+      for (URIish uri : uris(fields[0], gitScm)) {
+        if (!targets.containsKey(uri.toString())) {
+          targets.put(uri.toString(), new Target(uri, timeoutMillis));
+        }
+      }
+    }
+    return new ArrayList<Target>(targets.values());
+  }
+
+  private static List<URIish> uris(String remote, GitSCM gitScm) {
+    RemoteConfig config = gitScm.getRepositoryByName(remote);
+    if (config != null) {
+      return config.getURIs();
+    }
+    List<URIish> uris = new ArrayList<URIish>();
+    if (remote.contains(":")) {
+      try {
+        uris.add(new URIish(remote));
+      } catch (URISyntaxException e) {
+        // Neither a remote name nor a URL.
+      }
+    }
+    return uris;
+  }
+}
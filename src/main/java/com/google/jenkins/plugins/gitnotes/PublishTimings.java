@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each phase of one publish. Phases that run more than once,
+ * e.g. pushes retried after a merge, accumulate. Serializable so that
+ * callbacks running on an agent can report their phases back.
+ */
+final class PublishTimings implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The phases of a publish, in the order they run.
+   */
+  enum Phase {
+    CREATE_CLIENT("createClient"),
+    ADMISSION("admission"),
+    FETCH("fetch"),
+    REF_BOOTSTRAP("refBootstrap"),
+    APPEND("append"),
+    MERGE("merge"),
+    PUSH("push");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+
+    String getLabel() {
+      return label;
+    }
+  }
+
+  private final long[] nanos = new long[Phase.values().length];
+  private final boolean[] ran = new boolean[Phase.values().length];
+
+  /**
+   * Adds the time elapsed since {@code startNanos}, a
+   * {@link System#nanoTime} reading, to the given phase.
+   */
+  void add(Phase phase, long startNanos) {
+    addNanos(phase, System.nanoTime() - startNanos);
+  }
+
+  void addNanos(Phase phase, long elapsedNanos) {
+    nanos[phase.ordinal()] += elapsedNanos;
+    ran[phase.ordinal()] = true;
+  }
+
+  /**
+   * Adds the phases of another publish, e.g. one that ran on an agent.
+   */
+  void addAll(PublishTimings other) {
+    for (Phase phase : Phase.values()) {
+      if (other.ran(phase)) {
+        addNanos(phase, other.getNanos(phase));
+      }
+    }
+  }
+
+  boolean ran(Phase phase) {
+    return ran[phase.ordinal()];
+  }
+
+  long getNanos(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  /**
+   * Returns the phases that ran and their durations, e.g.
+   * {@code "createClient 12 ms, fetch 80 ms, push 120 ms"}.
+   */
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      if (!ran(phase)) {
+        continue;
+      }
+      if (text.length() > 0) {
+        text.append(", ");
+      }
+      text.append(phase.getLabel()).append(' ')
+          .append(TimeUnit.NANOSECONDS.toMillis(getNanos(phase)))
+          .append(" ms");
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.transport.URIish;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Tracks the health of every git remote notes are published to, from the
+ * outcome and latency of its last publishes, and keeps builds from
+ * waiting on a remote that is failing.
+ *
+ * <p>Each remote has a circuit. While it is closed, publishes go ahead,
+ * with a timeout adapted to the remote's recent latency: a few times its
+ * 95th percentile, but never more than the configured timeout. When at
+ * least half of the recent publishes failed, the circuit opens and
+ * publishes are short-circuited for a while. Then a single probe publish
+ * is let through: if it succeeds, the circuit closes again, otherwise it
+ * stays open for twice as long, up to ten minutes.
+ *
+ * <p>Publishes run on a few worker threads per remote, so that the caller
+ * can give up on one that times out. The publish must hold whatever locks
+ * and permits it needs itself, since it may outlive the caller's wait. A
+ * remote that hangs ties up no more than its own workers; its next
+ * publishes queue behind them until they time out. Without the circuit
+ * breaker, publishes run on the calling thread, bounded only by the
+ * timeouts of their fetches and pushes.
+ *
+ * <p>The health of the remotes is served by {@link PublishMetricsAction}.
+ */
+public final class RemoteHealth {
+
+  /**
+   * What to do with a note for a remote whose circuit is open.
+   */
+  public enum OpenPolicy {
+    /**
+     * Journal the note in the {@link NotesOutbox}, which publishes it once
+     * the circuit closes.
+     */
+    QUEUE,
+    /** Drop the note. */
+    DROP
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      RemoteHealth.class.getName());
+
+  /**
+   * The state of a remote's circuit.
+   */
+  enum State {
+    /** Publishes go ahead. */
+    CLOSED,
+    /** Publishes are short-circuited. */
+    OPEN,
+    /** A probe publish is allowed, or already running. */
+    HALF_OPEN
+  }
+
+  /**
+   * Thrown instead of publishing to a remote whose circuit is open.
+   */
+  static final class CircuitOpenException extends IOException {
+    CircuitOpenException(String remote) {
+      super("Circuit open for " + remote);
+    }
+  }
+
+  /**
+   * Thrown by a publish that gave up before it reached the remote, e.g.
+   * waiting for a lock or for {@link PublishAdmission}. It isn't held
+   * against the remote.
+   */
+  static final class NotAttemptedException extends IOException {
+    NotAttemptedException(String message) {
+      super(message);
+    }
+  }
+
+  static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  static final long MIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  // Number of recent publishes the failure rate and latency are taken from.
+  @VisibleForTesting
+  static final int WINDOW = 20;
+  @VisibleForTesting
+  static final int MIN_SAMPLES = 10;
+  private static final double FAILURE_THRESHOLD = 0.5;
+  private static final int TIMEOUT_FACTOR = 4;
+  @VisibleForTesting
+  static final int WORKERS_PER_REMOTE = 4;
+
+  private static final RemoteHealth INSTANCE = new RemoteHealth();
+
+  private final Map<String, Remote> remotes = new HashMap<String, Remote>();
+  // The workers of each remote, guarded by the RemoteHealth.
+  private final Map<String, ExecutorService> workers =
+      new HashMap<String, ExecutorService>();
+
+  @VisibleForTesting
+  RemoteHealth() {
+  }
+
+  static RemoteHealth get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns whether publishes to the remote are currently short-circuited.
+   * Always false unless the circuit breaker is enabled.
+   */
+  boolean isOpen(URIish uri) {
+    return GitNotesJobLogger.DescriptorImpl.circuitBreaker()
+        && isOpen(PublishMetrics.key(uri), System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  synchronized boolean isOpen(String key, long nowMillis) {
+    Remote remote = remotes.get(key);
+    if (remote == null) {
+      return false;
+    }
+    switch (remote.state) {
+      case OPEN:
+        return nowMillis < remote.openUntil;
+      case HALF_OPEN:
+        return remote.probing;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Runs a publish to the remote on one of its workers, giving up on it
+   * once the remote's adaptive timeout expires, and records its outcome.
+   * Unless the circuit breaker is enabled, the publish just runs on the
+   * calling thread.
+   *
+   * @param timeoutMillis the configured timeout of the remote.
+   * @throws CircuitOpenException if the remote's circuit is open.
+   * @throws IOException if the publish failed or timed out.
+   */
+  <T> T call(URIish uri, long timeoutMillis, Callable<T> publish)
+      throws IOException, InterruptedException {
+    if (!GitNotesJobLogger.DescriptorImpl.circuitBreaker()) {
+      return unwrap(publish);
+    }
+    return call(PublishMetrics.key(uri), timeoutMillis,
+        GitNotesJobLogger.DescriptorImpl.circuitOpenMillis(), publish);
+  }
+
+  @VisibleForTesting
+  <T> T call(String key, long timeoutMillis, long openMillis,
+      Callable<T> publish) throws IOException, InterruptedException {
+    if (!tryAcquire(key, System.currentTimeMillis())) {
+      throw new CircuitOpenException(key);
+    }
+    long start = System.nanoTime();
+    boolean success = false;
+    boolean attempted = true;
+    try {
+      T result = await(key, timeoutMillis(key, timeoutMillis), publish);
+      success = true;
+      return result;
+    } catch (NotAttemptedException e) {
+      attempted = false;
+      throw e;
+    } finally {
+      if (attempted) {
+        record(key, success, TimeUnit.NANOSECONDS.toMillis(
+            System.nanoTime() - start), System.currentTimeMillis(),
+            openMillis);
+      } else {
+        release(key);
+      }
+    }
+  }
+
+  /**
+   * Runs a publish on a worker of the remote and waits up to the timeout
+   * for it. Only the worker is interrupted when the publish times out,
+   * never the calling thread, which may well be a build's.
+   */
+  private <T> T await(String key, long timeoutMillis, Callable<T> publish)
+      throws IOException, InterruptedException {
+    Future<T> future = workers(key).submit(publish);
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException(String.format(
+          "Publish to %s timed out after %d ms", key, timeoutMillis), e);
+    } catch (ExecutionException e) {
+      throw failure(e.getCause());
+    } finally {
+      // Stops a publish that timed out, or whose caller was interrupted.
+      future.cancel(true);
+    }
+  }
+
+  private synchronized ExecutorService workers(String key) {
+    ExecutorService executor = workers.get(key);
+    if (executor == null) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKERS_PER_REMOTE,
+          WORKERS_PER_REMOTE, 1, TimeUnit.MINUTES,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+              .setNameFormat("Git notes publish %d").setDaemon(true)
+              .build());
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+      workers.put(key, executor);
+    }
+    return executor;
+  }
+
+  private static <T> T unwrap(Callable<T> publish)
+      throws IOException, InterruptedException {
+    try {
+      return publish.call();
+    } catch (IOException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      throw failure(e);
+    }
+  }
+
+  private static IOException failure(Throwable cause) {
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    }
+    return new IOException(cause);
+  }
+
+  /**
+   * Returns whether a publish to the remote may go ahead, letting through
+   * the probe of a circuit whose open period is over.
+   */
+  @VisibleForTesting
+  synchronized boolean tryAcquire(String key, long nowMillis) {
+    Remote remote = remote(key);
+    switch (remote.state) {
+      case OPEN:
+        if (nowMillis < remote.openUntil) {
+          return false;
+        }
+        remote.state = State.HALF_OPEN;
+        remote.probing = true;
+        return true;
+      case HALF_OPEN:
+        if (remote.probing) {
+          return false;
+        }
+        remote.probing = true;
+        return true;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Lets another probe through a half-open circuit whose probe never
+   * reached the remote.
+   */
+  private synchronized void release(String key) {
+    Remote remote = remote(key);
+    if (remote.state == State.HALF_OPEN) {
+      remote.probing = false;
+    }
+  }
+
+  /**
+   * Records the outcome of a publish to the remote, opening or closing its
+   * circuit as needed.
+   *
+   * @param openMillis how long a circuit opened for the first time stays
+   *     open.
+   */
+  @VisibleForTesting
+  synchronized void record(String key, boolean success, long latencyMillis,
+      long nowMillis, long openMillis) {
+    Remote remote = remote(key);
+    if (remote.state == State.HALF_OPEN) {
+      remote.probing = false;
+      if (success) {
+        LOGGER.log(Level.INFO, "Git notes circuit for {0} closed", key);
+        remote.state = State.CLOSED;
+        remote.openMillis = 0;
+        remote.clear();
+        remote.add(true, latencyMillis);
+      } else {
+        open(remote, key, Math.min(MAX_OPEN_MILLIS,
+            Math.max(openMillis, remote.openMillis * 2)), nowMillis);
+      }
+      return;
+    }
+    remote.add(success, latencyMillis);
+    if (remote.state == State.CLOSED && remote.samples >= MIN_SAMPLES
+        && remote.failureRate() >= FAILURE_THRESHOLD) {
+      open(remote, key, openMillis, nowMillis);
+    }
+  }
+
+  private static void open(Remote remote, String key, long openMillis,
+      long nowMillis) {
+    LOGGER.log(Level.WARNING, "Git notes circuit for {0} opened for {1} ms",
+        new Object[] {key, openMillis});
+    remote.state = State.OPEN;
+    remote.openMillis = openMillis;
+    remote.openUntil = nowMillis + openMillis;
+  }
+
+  /**
+   * Returns the timeout of the next publish to the remote: a few times the
+   * 95th percentile latency of its recent successful publishes, between
+   * {@link #MIN_TIMEOUT_MILLIS} and {@code timeoutMillis}. Until enough
+   * publishes succeeded, it is {@code timeoutMillis}.
+   */
+  @VisibleForTesting
+  synchronized long timeoutMillis(String key, long timeoutMillis) {
+    Remote remote = remotes.get(key);
+    long p95 = remote == null ? -1 : remote.successPercentile(0.95);
+    if (p95 < 0) {
+      return timeoutMillis;
+    }
+    return Math.min(timeoutMillis,
+        Math.max(MIN_TIMEOUT_MILLIS, p95 * TIMEOUT_FACTOR));
+  }
+
+  /**
+   * Returns the health of every remote.
+   */
+  synchronized JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Remote> entry
+        : new TreeMap<String, Remote>(remotes).entrySet()) {
+      Remote remote = entry.getValue();
+      JsonObject health = new JsonObject();
+      health.addProperty("state", remote.state.name());
+      health.addProperty("samples", remote.samples);
+      health.addProperty("failureRate", remote.failureRate());
+      health.addProperty("p50", remote.successPercentile(0.5));
+      health.addProperty("p95", remote.successPercentile(0.95));
+      health.addProperty("timeoutMillis", timeoutMillis(entry.getKey(),
+          TimeUnit.SECONDS.toMillis(PublishTargets.DEFAULT_TIMEOUT_SECONDS)));
+      if (remote.state != State.CLOSED) {
+        health.addProperty("openUntil", remote.openUntil);
+      }
+      json.add(entry.getKey(), health);
+    }
+    return json;
+  }
+
+  private Remote remote(String key) {
+    Remote remote = remotes.get(key);
+    if (remote == null) {
+      remote = new Remote();
+      remotes.put(key, remote);
+    }
+    return remote;
+  }
+
+  /**
+   * The circuit of one remote and the outcomes of its last publishes.
+   * Guarded by the {@link RemoteHealth}.
+   */
+  private static final class Remote {
+    private final boolean[] successes = new boolean[WINDOW];
+    private final long[] latencies = new long[WINDOW];
+    private int next;
+    private int samples;
+    private State state = State.CLOSED;
+    private boolean probing;
+    private long openMillis;
+    private long openUntil;
+
+    void add(boolean success, long latencyMillis) {
+      successes[next] = success;
+      latencies[next] = latencyMillis;
+      next = (next + 1) % WINDOW;
+      samples = Math.min(WINDOW, samples + 1);
+    }
+
+    void clear() {
+      next = 0;
+      samples = 0;
+    }
+
+    double failureRate() {
+      if (samples == 0) {
+        return 0;
+      }
+      int failures = 0;
+      for (int i = 0; i < samples; i++) {
+        if (!successes[i]) {
+          failures++;
+        }
+      }
+      return (double) failures / samples;
+    }
+
+    /**
+     * Returns the given percentile of the latency of the successful
+     * publishes, or -1 if fewer than {@link #MIN_SAMPLES} succeeded.
+     */
+    long successPercentile(double fraction) {
+      long[] sorted = new long[samples];
+      int count = 0;
+      for (int i = 0; i < samples; i++) {
+        if (successes[i]) {
+          sorted[count++] = latencies[i];
+        }
+      }
+      if (count < MIN_SAMPLES) {
+        return -1;
+      }
+      Arrays.sort(sorted, 0, count);
+      return sorted[(int) Math.ceil(fraction * count) - 1];
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Controller-wide record of what we last knew about each notes ref of each
+ * remote: whether it exists, and which commit it pointed at after our last
+ * successful fetch or push.
+ */
+public final class RemoteNotesRefCache {
+
+  private static final RemoteNotesRefCache INSTANCE =
+      new RemoteNotesRefCache();
+
+  private final ConcurrentMap<String, Entry> entries =
+      new ConcurrentHashMap<String, Entry>();
+
+  RemoteNotesRefCache() {
+  }
+
+  /**
+   * Returns the controller-wide cache.
+   */
+  public static RemoteNotesRefCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the last known tip of the remote notes ref, or null if unknown.
+   */
+  public ObjectId getTip(URIish remoteURI, String notesRef) {
+    Entry entry = entries.get(key(remoteURI, notesRef));
+    return entry == null ? null : entry.tip;
+  }
+
+  /**
+   * Whether the remote notes ref is known to exist, so that the bootstrap
+   * path creating it can be skipped.
+   */
+  public boolean isKnownToExist(URIish remoteURI, String notesRef) {
+    return entries.containsKey(key(remoteURI, notesRef));
+  }
+
+  /**
+   * Records that the remote notes ref exists and points at the given tip,
+   * which may be null when only the existence is known.
+   */
+  public void recordTip(URIish remoteURI, String notesRef, ObjectId tip) {
+    entries.put(key(remoteURI, notesRef), new Entry(tip));
+  }
+
+  /**
+   * Forgets everything about the given notes ref, e.g. after a rejected
+   * push.
+   */
+  public void invalidate(URIish remoteURI, String notesRef) {
+    entries.remove(key(remoteURI, notesRef));
+  }
+
+  /**
+   * Forgets everything about all remotes.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  private static String key(URIish remoteURI, String notesRef) {
+    return remoteURI + " " + notesRef;
+  }
+
+  /**
+   * Immutable state of one remote notes ref.
+   */
+  private static final class Entry {
+    private final ObjectId tip;
+
+    Entry(ObjectId tip) {
+      this.tip = tip == null ? null : tip.copy();
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.SCM;
+import jenkins.triggers.SCMTriggerItem;
+
+/**
+ * Publishes the notes of any {@link Run} the git plugin checked out,
+ * including Pipeline runs, which {@link GitNotesJobLogger} can't wrap. The
+ * commit and remote come from the run's {@link BuildData}, and the note is
+ * written to the remote's {@link NotesMirror} by the
+ * {@link GitNotesPublishQueue} workers, so neither an agent executor nor
+ * the workspace is held while pushing.
+ */
+final class RunNotesPublisher {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      RunNotesPublisher.class.getName());
+
+  private RunNotesPublisher() {
+  }
+
+  /**
+   * Queues the given message for the commit the run built.
+   *
+   * @return false if the run has no git checkout or the queue dropped the
+   *     note.
+   */
+  static boolean publish(Run<?, ?> run, NotesShards.Scheme sharding,
+      GitNotesCiMessage message, TaskListener listener) {
+    final Target target = Target.of(run);
+    if (target == null) {
+      listener.getLogger().println(
+          "Git notes recorder: no git checkout found, skipping note.");
+      return false;
+    }
+    final String notesRef = NotesShards.refFor(
+        GitNotesJobLogger.GIT_NOTES_REFS, sharding, run);
+    final String note = message.toString();
+    final String name = run.getFullDisplayName();
+    final String outboxId = journal(run, target, notesRef, note, listener);
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        write(target, notesRef, note, name, outboxId);
+      }
+    };
+    if (!GitNotesPublishQueue.get().submit(run.getExternalizableId(),
+        task)) {
+      listener.error("Git notes publish queue is full, dropping note.");
+      return false;
+    }
+    listener.getLogger().printf("Git notes recorder: queued note for %s"
+        + " on %s%n", target.commit, PublishMetrics.key(target.remoteURI));
+    return true;
+  }
+
+  /**
+   * Journals the note in the {@link NotesOutbox}, if enabled.
+   *
+   * @return the outbox id of the note, or null.
+   */
+  private static String journal(Run<?, ?> run, Target target,
+      String notesRef, String note, TaskListener listener) {
+    if (!NotesOutbox.enabled()) {
+      return null;
+    }
+    try {
+      return NotesOutbox.get().record(target.remoteURI, notesRef,
+          target.commit, note, run.getParent().getFullName());
+    } catch (IOException e) {
+      e.printStackTrace(listener.error(
+          "Failed to journal git note: " + e.getMessage()));
+      return null;
+    }
+  }
+
+  private static void write(Target target, String notesRef, String note,
+      String name, String outboxId) {
+    PublishTimings timings = new PublishTimings();
+    long start = System.nanoTime();
+    int retries = 0;
+    boolean published = false;
+    try {
+      long lockTimeoutMillis =
+          GitNotesJobLogger.DescriptorImpl.lockTimeoutMillis();
+      PublishAdmission.Permit permit = PublishAdmission.get().admit(
+          target.remoteURI, lockTimeoutMillis, timings);
+      try {
+        retries = NotesMirror.get().write(target.remoteURI, notesRef,
+            target.commit, note, PublishRetryPolicy.fromConfiguration(),
+            timings, target.credentials, lockTimeoutMillis);
+      } finally {
+        permit.release();
+      }
+      published = true;
+      if (outboxId != null) {
+        NotesOutbox.get().confirm(outboxId);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to publish git note of " + name, e);
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Interrupted publishing git note of "
+          + name, e);
+    } finally {
+      long totalNanos = System.nanoTime() - start;
+      PublishMetrics.get().record(target.remoteURI, timings, totalNanos, 1,
+          note.getBytes(Charsets.UTF_8).length, retries, published);
+      LOGGER.log(Level.FINE, "{0} publish of {1} to {2} took {3} ms ({4})",
+          new Object[] {published ? "Successful" : "Failed", name,
+              PublishMetrics.key(target.remoteURI),
+              TimeUnit.NANOSECONDS.toMillis(totalNanos), timings});
+    }
+  }
+
+  /**
+   * Where the notes of a run go: the commit it built, the remote it came
+   * from and the credentials the job uses for that remote.
+   */
+  @VisibleForTesting
+  static final class Target {
+    final URIish remoteURI;
+    final String commit;
+    final StandardUsernameCredentials credentials;
+
+    Target(URIish remoteURI, String commit,
+        StandardUsernameCredentials credentials) {
+      this.remoteURI = remoteURI;
+      this.commit = commit;
+      this.credentials = credentials;
+    }
+
+    /**
+     * Returns the target of the given run, or null if the git plugin
+     * hasn't recorded a built revision and remote for it.
+     */
+    static Target of(Run<?, ?> run) {
+      BuildData buildData = run.getAction(BuildData.class);
+      if (buildData == null || buildData.getLastBuiltRevision() == null) {
+        return null;
+      }
+      String commit = buildData.getLastBuiltRevision().getSha1String();
+      GitSCM gitScm = gitScm(run.getParent());
+      URIish remoteURI = null;
+      if (gitScm != null) {
+        RemoteConfig origin = gitScm.getRepositoryByName("origin");
+        if (origin != null && !origin.getURIs().isEmpty()) {
+          remoteURI = origin.getURIs().get(0);
+        }
+      }
+      if (remoteURI == null) {
+        for (String url : buildData.getRemoteUrls()) {
+          try {
+            remoteURI = new URIish(url);
+            break;
+          } catch (URISyntaxException e) {
+            LOGGER.log(Level.FINE, "Skipping remote URL " + url, e);
+          }
+        }
+      }
+      if (remoteURI == null) {
+        return null;
+      }
+      return new Target(remoteURI, commit, gitScm == null ? null
+          : JGitNotesWriter.lookupCredentials(run.getParent(), gitScm,
+              remoteURI));
+    }
+
+    /**
+     * Returns the job's git SCM, which for Pipeline jobs is the one its
+     * last run checked out.
+     */
+    static GitSCM gitScm(Job<?, ?> job) {
+      SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems
+          .asSCMTriggerItem(job);
+      if (item == null) {
+        return null;
+      }
+      for (SCM scm : item.getSCMs()) {
+        if (scm instanceof GitSCM) {
+          return (GitSCM) scm;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.JschSession;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+
+import hudson.Util;
+
+/**
+ * Keeps the SSH sessions of JGit transports open between publishes, per
+ * user, host and credentials, so that the fetch and pushes of a publish,
+ * and the publishes of following builds, share one SSH handshake instead
+ * of making their own. Each fetch or push still runs in its own channel
+ * of the session.
+ *
+ * <p>A session is lent to one transport at a time and returned to the
+ * pool when the transport is closed. Sessions idle for longer than their
+ * idle timeout, or found disconnected, are closed. There is one pool per
+ * JVM: the controller's serves the {@link NotesMirror}s, and each agent
+ * has its own for the JGit writer running there. Only the controller's
+ * statistics are served, by {@link PublishMetricsAction}.
+ *
+ * <p>Transports other than SSH are left alone; JGit's HTTP transport
+ * already reuses connections through the JDK's keep-alive cache.
+ */
+final class SshSessionPool {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      SshSessionPool.class.getName());
+
+  static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  // More idle sessions than this per key are closed rather than pooled;
+  // it bounds the sessions left open after a burst of parallel publishes.
+  @VisibleForTesting
+  static final int MAX_IDLE_PER_KEY = 4;
+  // Upper bounds of the handshake time buckets, in milliseconds.
+  private static final long[] HANDSHAKE_BOUNDS_MILLIS = {
+    10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+  };
+
+  private static final SshSessionPool INSTANCE = new SshSessionPool();
+
+  private final Map<String, Deque<Pooled>> idle =
+      new HashMap<String, Deque<Pooled>>();
+  private final Map<String, Stats> stats = new HashMap<String, Stats>();
+  private ScheduledExecutorService evictor;
+
+  @VisibleForTesting
+  SshSessionPool() {
+  }
+
+  static SshSessionPool get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Makes the given transport take its SSH session from the pool, and
+   * give it back when it is closed, if it is an SSH transport and
+   * {@code idleMillis} is positive.
+   *
+   * @param username the username the transport authenticates with, or
+   *     null if it relies on the node's own ssh configuration.
+   * @param password the password or private key, if any; sessions are
+   *     only shared by transports with the same one.
+   */
+  void attach(Transport transport, String username, String password,
+      long idleMillis) {
+    if (!(transport instanceof SshTransport) || idleMillis <= 0) {
+      return;
+    }
+    SshTransport ssh = (SshTransport) transport;
+    URIish uri = transport.getURI();
+    String statsKey = statsKey(uri, username);
+    String key = statsKey + "#" + (password == null
+        ? "" : Util.getDigestOf(password));
+    ssh.setSshSessionFactory(new Factory(ssh.getSshSessionFactory(), key,
+        statsKey, idleMillis));
+  }
+
+  @VisibleForTesting
+  static String statsKey(URIish uri, String username) {
+    String user = username != null ? username : uri.getUser();
+    return (user == null ? "" : user + "@") + uri.getHost()
+        + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+  }
+
+  /**
+   * Lends an idle session for the key, or returns null if there is none.
+   * Disconnected sessions found on the way are closed.
+   */
+  @VisibleForTesting
+  synchronized Pooled borrow(String key, String statsKey) {
+    Deque<Pooled> sessions = idle.get(key);
+    while (sessions != null && !sessions.isEmpty()) {
+      Pooled session = sessions.pollFirst();
+      if (isConnected(session.delegate)) {
+        session.lent.set(true);
+        stats(statsKey).reused++;
+        return session;
+      }
+      close(session, statsKey);
+    }
+    return null;
+  }
+
+  /**
+   * Counts a session that was just opened for the key, and how long its
+   * handshake took.
+   */
+  @VisibleForTesting
+  synchronized void opened(String statsKey, long handshakeNanos) {
+    Stats keyStats = stats(statsKey);
+    keyStats.opened++;
+    keyStats.open++;
+    keyStats.handshake.update(
+        TimeUnit.NANOSECONDS.toMillis(handshakeNanos));
+  }
+
+  /**
+   * Takes back a session once its transport is done with it.
+   */
+  @VisibleForTesting
+  synchronized void release(Pooled session) {
+    if (!session.lent.compareAndSet(true, false)) {
+      return;
+    }
+    Deque<Pooled> sessions = idle.get(session.key);
+    if (sessions == null) {
+      sessions = new ArrayDeque<Pooled>();
+      idle.put(session.key, sessions);
+    }
+    if (sessions.size() >= MAX_IDLE_PER_KEY) {
+      close(session, session.statsKey);
+      return;
+    }
+    session.idleSince = System.nanoTime();
+    // Most recently used first, so that the oldest ones expire.
+    sessions.addFirst(session);
+    scheduleEviction(session.idleMillis);
+  }
+
+  /**
+   * Closes the sessions that have been idle for longer than their idle
+   * timeout.
+   *
+   * @return the number of sessions closed.
+   */
+  @VisibleForTesting
+  synchronized int evictIdle(long nowNanos) {
+    int evicted = 0;
+    for (Iterator<Deque<Pooled>> keys = idle.values().iterator();
+        keys.hasNext();) {
+      Deque<Pooled> sessions = keys.next();
+      for (Iterator<Pooled> it = sessions.iterator(); it.hasNext();) {
+        Pooled session = it.next();
+        if (nowNanos - session.idleSince
+            >= TimeUnit.MILLISECONDS.toNanos(session.idleMillis)) {
+          it.remove();
+          close(session, session.statsKey);
+          stats(session.statsKey).evicted++;
+          evicted++;
+        }
+      }
+      if (sessions.isEmpty()) {
+        keys.remove();
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Closes every idle session, e.g. when pooling is turned off.
+   */
+  synchronized void clear() {
+    for (Deque<Pooled> sessions : idle.values()) {
+      for (Pooled session : sessions) {
+        close(session, session.statsKey);
+      }
+    }
+    idle.clear();
+  }
+
+  /**
+   * Returns the connection counts and handshake times of every user and
+   * host the pool has connected to since startup.
+   */
+  synchronized JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    Map<String, Integer> idleCounts = new HashMap<String, Integer>();
+    for (Deque<Pooled> sessions : idle.values()) {
+      for (Pooled session : sessions) {
+        Integer count = idleCounts.get(session.statsKey);
+        idleCounts.put(session.statsKey, count == null ? 1 : count + 1);
+      }
+    }
+    for (Map.Entry<String, Stats> entry
+        : new TreeMap<String, Stats>(stats).entrySet()) {
+      Stats keyStats = entry.getValue();
+      Integer idleCount = idleCounts.get(entry.getKey());
+      JsonObject keyJson = new JsonObject();
+      keyJson.addProperty("opened", keyStats.opened);
+      keyJson.addProperty("reused", keyStats.reused);
+      keyJson.addProperty("evicted", keyStats.evicted);
+      keyJson.addProperty("open", keyStats.open);
+      keyJson.addProperty("idle", idleCount == null ? 0 : idleCount);
+      keyJson.add("handshakeMillis", keyStats.handshake.toJson());
+      json.add(entry.getKey(), keyJson);
+    }
+    return json;
+  }
+
+  private void close(Pooled session, String statsKey) {
+    stats(statsKey).open--;
+    try {
+      session.delegate.disconnect();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.FINE, "Failed to close SSH session to " + statsKey,
+          e);
+    }
+  }
+
+  private Stats stats(String statsKey) {
+    Stats keyStats = stats.get(statsKey);
+    if (keyStats == null) {
+      keyStats = new Stats();
+      stats.put(statsKey, keyStats);
+    }
+    return keyStats;
+  }
+
+  private void scheduleEviction(long idleMillis) {
+    if (evictor == null) {
+      evictor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("Git notes SSH evictor")
+              .setDaemon(true).build());
+    }
+    evictor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        evictIdle(System.nanoTime());
+      }
+    }, idleMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static boolean isConnected(RemoteSession session) {
+    if (session instanceof JschSession) {
+      return ((JschSession) session).getSession().isConnected();
+    }
+    return true;
+  }
+
+  /**
+   * Hands out pooled sessions to one transport, opening new ones through
+   * the transport's own factory when none is idle.
+   */
+  private final class Factory extends SshSessionFactory {
+    private final SshSessionFactory delegate;
+    private final String key;
+    private final String statsKey;
+    private final long idleMillis;
+
+    Factory(SshSessionFactory delegate, String key, String statsKey,
+        long idleMillis) {
+      this.delegate = delegate;
+      this.key = key;
+      this.statsKey = statsKey;
+      this.idleMillis = idleMillis;
+    }
+
+    @Override
+    public RemoteSession getSession(URIish uri,
+        CredentialsProvider credentialsProvider, FS fs, int tms)
+        throws TransportException {
+      Pooled session = borrow(key, statsKey);
+      if (session != null) {
+        return session;
+      }
+      long start = System.nanoTime();
+      RemoteSession opened =
+          delegate.getSession(uri, credentialsProvider, fs, tms);
+      opened(statsKey, System.nanoTime() - start);
+      return new Pooled(opened, key, statsKey, idleMillis);
+    }
+
+    @Override
+    public void releaseSession(RemoteSession session) {
+      session.disconnect();
+    }
+  }
+
+  /**
+   * A session lent to a transport. Disconnecting it gives it back to the
+   * pool.
+   */
+  @VisibleForTesting
+  final class Pooled implements RemoteSession {
+    final RemoteSession delegate;
+    final String key;
+    final String statsKey;
+    final long idleMillis;
+    final AtomicBoolean lent = new AtomicBoolean(true);
+    long idleSince;
+
+    Pooled(RemoteSession delegate, String key, String statsKey,
+        long idleMillis) {
+      this.delegate = delegate;
+      this.key = key;
+      this.statsKey = statsKey;
+      this.idleMillis = idleMillis;
+    }
+
+    @Override
+    public Process exec(String commandName, int timeout)
+        throws IOException {
+      return delegate.exec(commandName, timeout);
+    }
+
+    @Override
+    public void disconnect() {
+      release(this);
+    }
+  }
+
+  /**
+   * The counters of one user and host.
+   */
+  private static final class Stats {
+    long opened;
+    long reused;
+    long evicted;
+    long open;
+    final PublishMetrics.Histogram handshake =
+        new PublishMetrics.Histogram(HANDSHAKE_BOUNDS_MILLIS);
+  }
+}
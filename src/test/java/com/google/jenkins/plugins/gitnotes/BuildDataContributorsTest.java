@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.TaskListener;
+import hudson.tasks.test.AbstractTestResultAction;
+
+/**
+ * Tests for {@link BuildDataContributors}.
+ */
+public class BuildDataContributorsTest {
+  private FreeStyleBuild build;
+
+  @Before
+  public void setUp() {
+    build = mock(FreeStyleBuild.class);
+  }
+
+  @Test
+  public void testDurationOfCompletedBuild() {
+    when(build.getDuration()).thenReturn(1234L);
+    assertEquals(1234L, new BuildDataContributors.Duration()
+        .contribute(build, TaskListener.NULL)
+        .get(BuildDataContributors.DURATION));
+  }
+
+  @Test
+  public void testDurationOfRunningBuild() {
+    when(build.getStartTimeInMillis())
+        .thenReturn(System.currentTimeMillis() - 5000L);
+    long duration = (Long) new BuildDataContributors.Duration()
+        .contribute(build, TaskListener.NULL)
+        .get(BuildDataContributors.DURATION);
+    assertTrue(duration >= 5000L);
+  }
+
+  @Test
+  public void testNodeOfControllerBuild() {
+    when(build.getBuiltOnStr()).thenReturn("");
+    assertEquals("master", new BuildDataContributors.Node()
+        .contribute(build, TaskListener.NULL)
+        .get(BuildDataContributors.NODE));
+  }
+
+  @Test
+  public void testTests() {
+    AbstractTestResultAction<?> tests = mock(AbstractTestResultAction.class);
+    when(tests.getTotalCount()).thenReturn(10);
+    when(tests.getFailCount()).thenReturn(2);
+    when(tests.getSkipCount()).thenReturn(1);
+    when(build.getAction(AbstractTestResultAction.class)).thenReturn(tests);
+
+    Map<String, ?> counts = new BuildDataContributors.Tests()
+        .contribute(build, TaskListener.NULL);
+    assertEquals(10, counts.get(BuildDataContributors.TESTS));
+    assertEquals(2, counts.get(BuildDataContributors.TEST_FAILURES));
+    assertEquals(1, counts.get(BuildDataContributors.TESTS_SKIPPED));
+  }
+
+  @Test
+  public void testNoTests() {
+    assertNull(new BuildDataContributors.Tests()
+        .contribute(build, TaskListener.NULL));
+  }
+}
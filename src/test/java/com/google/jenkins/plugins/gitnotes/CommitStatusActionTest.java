@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CommitStatusAction}.
+ */
+public class CommitStatusActionTest {
+  private static final String ROOT_URL = "http://ci/jenkins/";
+
+  @Test
+  public void testJobFullName() {
+    assertEquals("a", CommitStatusAction.jobFullName(
+        ROOT_URL + "job/a/1/", ROOT_URL));
+    assertEquals("folder/my job", CommitStatusAction.jobFullName(
+        ROOT_URL + "job/folder/job/my%20job/12/", ROOT_URL));
+    assertEquals("a", CommitStatusAction.jobFullName("job/a/1/", ROOT_URL));
+    assertEquals("m", CommitStatusAction.jobFullName(
+        "job/m/axis=x/3/", null));
+  }
+
+  @Test
+  public void testJobFullNameOfOtherUrls() {
+    assertNull(CommitStatusAction.jobFullName(
+        "http://other/job/a/1/", ROOT_URL));
+    assertNull(CommitStatusAction.jobFullName(
+        GitNotesCiMessage.BUILD_URL_NOT_AVAILABLE, ROOT_URL));
+    assertNull(CommitStatusAction.jobFullName(null, ROOT_URL));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link CommitStatusIndex}.
+ */
+public class CommitStatusIndexTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String COMMIT_A =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_B =
+      "2222222222222222222222222222222222222222";
+  private static final String COMMIT_C =
+      "3333333333333333333333333333333333333333";
+  private static final String START =
+      "{\"timestamp\":\"0000000001\",\"v\":0,\"url\":\"http://ci/job/a/1/\"}";
+  private static final String FINISH =
+      "{\"timestamp\":\"0000000002\",\"v\":0,\"url\":\"http://ci/job/a/1/\","
+      + "\"status\":\"success\"}";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+  private CommitStatusIndex.RemoteIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = NotesFixtures.newBareRepository(tmp.newFolder("mirror.git"));
+    index = new CommitStatusIndex.RemoteIndex(NOTES_REF, 2);
+  }
+
+  @After
+  public void tearDown() {
+    repo.close();
+  }
+
+  @Test
+  public void testQueryParsesRecords() throws Exception {
+    append(NOTES_REF, COMMIT_A, START);
+    append(NOTES_REF, COMMIT_A, FINISH);
+
+    Map<String, List<GitNotesCiMessage>> result =
+        index.query(repo, Arrays.asList(COMMIT_A, COMMIT_B));
+
+    List<GitNotesCiMessage> records = result.get(COMMIT_A);
+    assertEquals(2, records.size());
+    assertNull(records.get(0).getStatus());
+    assertEquals(GitNotesCiMessage.STATUS_SUCCESS,
+        records.get(1).getStatus());
+    assertEquals("http://ci/job/a/1/", records.get(1).getUrl());
+    assertEquals(2L, records.get(1).getTimestampSeconds());
+    assertTrue(result.get(COMMIT_B).isEmpty());
+  }
+
+  @Test
+  public void testOnlyChangedNotesAreEvicted() throws Exception {
+    append(NOTES_REF, COMMIT_A, START);
+    append(NOTES_REF, COMMIT_B, START);
+    List<GitNotesCiMessage> cachedA =
+        index.query(repo, Arrays.asList(COMMIT_A)).get(COMMIT_A);
+    List<GitNotesCiMessage> cachedB =
+        index.query(repo, Arrays.asList(COMMIT_B)).get(COMMIT_B);
+
+    append(NOTES_REF, COMMIT_A, FINISH);
+    Map<String, List<GitNotesCiMessage>> result =
+        index.query(repo, Arrays.asList(COMMIT_A, COMMIT_B));
+
+    assertEquals(1, cachedA.size());
+    assertEquals(2, result.get(COMMIT_A).size());
+    assertSame(cachedB, result.get(COMMIT_B));
+  }
+
+  @Test
+  public void testQueryReadsShards() throws Exception {
+    append(NOTES_REF, COMMIT_A, START);
+    append(NotesShards.monthRef(NOTES_REF, 0L), COMMIT_A, FINISH);
+
+    List<GitNotesCiMessage> records =
+        index.query(repo, Arrays.asList(COMMIT_A)).get(COMMIT_A);
+
+    assertEquals(2, records.size());
+    assertEquals(GitNotesCiMessage.STATUS_SUCCESS,
+        records.get(1).getStatus());
+  }
+
+  @Test
+  public void testCacheIsBounded() throws Exception {
+    index.query(repo, Arrays.asList(COMMIT_A, COMMIT_B, COMMIT_C));
+    assertEquals(2, index.cachedCommits());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testQueryRejectsAbbreviatedIds() throws Exception {
+    index.query(repo, Arrays.asList("1111111"));
+  }
+
+  private void append(String notesRef, String commitId, String note)
+      throws Exception {
+    NotesUpdate.appendNotes(repo, notesRef,
+        NotesFixtures.notes(commitId, note));
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Tests for {@link GitNotesBatcher}.
+ */
+public class GitNotesBatcherTest {
+  private static final String COMMIT_A =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_B =
+      "2222222222222222222222222222222222222222";
+  private static final long LONG_WINDOW = 60000L;
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository remote;
+  private PublishTargets.Target target;
+  private GitNotesBatcher batcher;
+
+  @Before
+  public void setUp() throws Exception {
+    File remoteDir = tmp.newFolder("remote.git");
+    remote = NotesFixtures.newBareRepository(remoteDir);
+    target = new PublishTargets.Target(
+        new URIish(remoteDir.toURI().toURL()), LONG_WINDOW);
+    batcher = new GitNotesBatcher(new NotesMirror(tmp.newFolder("mirrors")),
+        MoreExecutors.sameThreadExecutor());
+  }
+
+  @After
+  public void tearDown() {
+    batcher.shutdown();
+    remote.close();
+  }
+
+  @Test
+  public void testNotesForSameRemoteShareOneCommit() throws Exception {
+    batcher.add(target, NOTES_REF, null, COMMIT_A, "a1", null, LONG_WINDOW);
+    batcher.add(target, NOTES_REF, null, COMMIT_A, "a2", null, LONG_WINDOW);
+    batcher.add(target, NOTES_REF, null, COMMIT_B, "b1", null, LONG_WINDOW);
+    assertEquals(3, batcher.getPendingCount(target.uri, NOTES_REF));
+
+    batcher.flush(GitNotesBatcher.key(target.uri, NOTES_REF, null));
+
+    assertEquals(0, batcher.getPendingCount(target.uri, NOTES_REF));
+    ObjectReader reader = remote.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      RevCommit tip = walk.parseCommit(
+          remote.getRef(NOTES_REF).getObjectId());
+      assertEquals(0, tip.getParentCount());
+      NoteMap notes = NoteMap.read(reader, tip);
+      assertTrue(notes.contains(ObjectId.fromString(COMMIT_A)));
+      assertTrue(notes.contains(ObjectId.fromString(COMMIT_B)));
+    } finally {
+      walk.release();
+      reader.release();
+    }
+  }
+
+  @Test
+  public void testNotesForOtherShardAreBatchedSeparately() throws Exception {
+    String shard = NOTES_REF + "-shards/2015-06";
+    batcher.add(target, NOTES_REF, null, COMMIT_A, "a1", null, LONG_WINDOW);
+    batcher.add(target, shard, null, COMMIT_A, "a2", null, LONG_WINDOW);
+    assertEquals(1, batcher.getPendingCount(target.uri, NOTES_REF));
+    assertEquals(1, batcher.getPendingCount(target.uri, shard));
+  }
+
+  @Test
+  public void testNotesWithOtherCredentialsAreBatchedSeparately()
+      throws Exception {
+    StandardUsernameCredentials credentials =
+        mock(StandardUsernameCredentials.class);
+    when(credentials.getId()).thenReturn("other");
+    batcher.add(target, NOTES_REF, null, COMMIT_A, "a1", null, LONG_WINDOW);
+    batcher.add(target, NOTES_REF, credentials, COMMIT_B, "b1", null,
+        LONG_WINDOW);
+    assertEquals(2, batcher.getPendingCount(target.uri, NOTES_REF));
+
+    batcher.flush(GitNotesBatcher.key(target.uri, NOTES_REF, null));
+
+    assertEquals(1, batcher.getPendingCount(target.uri, NOTES_REF));
+    ObjectReader reader = remote.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      NoteMap notes = NoteMap.read(reader,
+          walk.parseCommit(remote.getRef(NOTES_REF).getObjectId()));
+      assertTrue(notes.contains(ObjectId.fromString(COMMIT_A)));
+      assertFalse(notes.contains(ObjectId.fromString(COMMIT_B)));
+    } finally {
+      walk.release();
+      reader.release();
+    }
+  }
+
+  @Test
+  public void testNotesForEveryTargetAreBatchedPerTarget() throws Exception {
+    File otherDir = tmp.newFolder("other.git");
+    Repository other = NotesFixtures.newBareRepository(otherDir);
+    try {
+      PublishTargets.Target secondary = new PublishTargets.Target(
+          new URIish(otherDir.toURI().toURL()), LONG_WINDOW);
+      batcher.add(target, NOTES_REF, null, COMMIT_A, "a1", null,
+          LONG_WINDOW);
+      batcher.addAll(Arrays.asList(secondary),
+          Collections.<URIish, StandardUsernameCredentials>emptyMap(),
+          NOTES_REF, COMMIT_A, "a1", LONG_WINDOW);
+      batcher.addAll(Arrays.asList(target, secondary),
+          Collections.<URIish, StandardUsernameCredentials>emptyMap(),
+          NOTES_REF, COMMIT_B, "b1", LONG_WINDOW);
+      assertEquals(2, batcher.getPendingCount(target.uri, NOTES_REF));
+      assertEquals(2, batcher.getPendingCount(secondary.uri, NOTES_REF));
+
+      batcher.flush(GitNotesBatcher.key(secondary.uri, NOTES_REF, null));
+
+      // The secondary's batch is published on its own.
+      assertEquals(2, batcher.getPendingCount(target.uri, NOTES_REF));
+      assertNull(remote.getRef(NOTES_REF));
+      ObjectReader reader = other.newObjectReader();
+      RevWalk walk = new RevWalk(reader);
+      try {
+        NoteMap notes = NoteMap.read(reader,
+            walk.parseCommit(other.getRef(NOTES_REF).getObjectId()));
+        assertTrue(notes.contains(ObjectId.fromString(COMMIT_A)));
+        assertTrue(notes.contains(ObjectId.fromString(COMMIT_B)));
+      } finally {
+        walk.release();
+        reader.release();
+      }
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  public void testFailedBatchIsRetried() throws Exception {
+    PublishTargets.Target missing = new PublishTargets.Target(
+        new URIish(new File(tmp.getRoot(), "missing.git").toURI().toURL()),
+        LONG_WINDOW);
+    batcher.add(missing, NOTES_REF, null, COMMIT_A, "a1", null, LONG_WINDOW);
+
+    batcher.flush(GitNotesBatcher.key(missing.uri, NOTES_REF, null));
+
+    assertEquals(1, batcher.getPendingCount(missing.uri, NOTES_REF));
+  }
+
+  @Test
+  public void testFlushWithoutPendingNotes() throws Exception {
+    batcher.flush(GitNotesBatcher.key(target.uri, NOTES_REF, null));
+    assertNull(remote.getRef(NOTES_REF));
+  }
+}
@@ -19,6 +19,9 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -29,6 +32,9 @@ import org.mockito.MockitoAnnotations;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
@@ -63,10 +69,11 @@ public class GitNotesCiMessageTest {
   @Test
   public void testDefaultMessage() {
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    assertTrue(notes.message.has(GitNotesCiMessage.METADATA_TIMESTAMP));
-    assertEquals(GitNotesCiMessage.DEFAULT_VERSION, notes.message.get(
+    JsonObject message = notes.toJsonObject();
+    assertTrue(message.has(GitNotesCiMessage.METADATA_TIMESTAMP));
+    assertEquals(GitNotesCiMessage.DEFAULT_VERSION, message.get(
         GitNotesCiMessage.METADATA_VERSION).getAsInt());
-    assertEquals(GitNotesCiMessage.AGENT, notes.message.get(
+    assertEquals(GitNotesCiMessage.AGENT, message.get(
         GitNotesCiMessage.METADATA_AGENT).getAsString());
   }
 
@@ -76,8 +83,9 @@ public class GitNotesCiMessageTest {
 
     GitNotesCiMessage notes = new GitNotesCiMessage();
     notes.addStatus(build, listener);
-    assertEquals(GitNotesCiMessage.STATUS_SUCCESS, notes.message.get(
-        GitNotesCiMessage.METADATA_STATUS).getAsString());
+    assertEquals(GitNotesCiMessage.STATUS_SUCCESS,
+        notes.toJsonObject().get(GitNotesCiMessage.METADATA_STATUS)
+            .getAsString());
   }
 
   @Test
@@ -86,8 +94,9 @@ public class GitNotesCiMessageTest {
 
     GitNotesCiMessage notes = new GitNotesCiMessage();
     notes.addStatus(build, listener);
-    assertEquals(GitNotesCiMessage.STATUS_FAILURE, notes.message.get(
-        GitNotesCiMessage.METADATA_STATUS).getAsString());
+    assertEquals(GitNotesCiMessage.STATUS_FAILURE,
+        notes.toJsonObject().get(GitNotesCiMessage.METADATA_STATUS)
+            .getAsString());
   }
 
   @Test
@@ -96,7 +105,7 @@ public class GitNotesCiMessageTest {
     when(build.getUrl()).thenReturn(JOB_URL);
     GitNotesCiMessage notes = new GitNotesCiMessage();
     notes.addBuildLogUrl(build, listener);
-    assertEquals(JOB_URL, notes.message.get(
+    assertEquals(JOB_URL, notes.toJsonObject().get(
         GitNotesCiMessage.METADATA_URL).getAsString());
   }
 
@@ -106,7 +115,7 @@ public class GitNotesCiMessageTest {
     when(build.getUrl()).thenReturn(JOB_URL);
     GitNotesCiMessage notes = new GitNotesCiMessage();
     notes.addBuildLogUrl(build, listener);
-    assertEquals(JOB_URL, notes.message.get(
+    assertEquals(JOB_URL, notes.toJsonObject().get(
         GitNotesCiMessage.METADATA_URL).getAsString());
   }
 
@@ -114,8 +123,111 @@ public class GitNotesCiMessageTest {
   public void testAddVersion() {
     GitNotesCiMessage notes = new GitNotesCiMessage();
     notes.addVersion(5);
-    assertEquals(5, notes.message.get(
+    assertEquals(5, notes.toJsonObject().get(
         GitNotesCiMessage.METADATA_VERSION).getAsInt());
   }
-}
 
+  @Test
+  public void testToStringMatchesGson() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(42L)
+        .addUrl("http://host/job/a \"b\"\\c\u00e9\u2028\t\u0001/1/")
+        .addStatus(GitNotesCiMessage.STATUS_SUCCESS);
+    assertEquals(notes.toJsonObject().toString(), notes.toString());
+    assertTrue(notes.toString().startsWith("{\"timestamp\":\"0000000042\","));
+  }
+
+  @Test
+  public void testToStringMatchesGson_otherVersion() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addVersion(5);
+    assertEquals(notes.toJsonObject().toString(), notes.toString());
+  }
+
+  @Test
+  public void testAppendTo() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addUrl(JOB_URL);
+    StringBuilder out = new StringBuilder("prefix ");
+    notes.appendTo(out);
+    assertEquals("prefix " + notes.toJsonObject(), out.toString());
+  }
+
+  @Test
+  public void testEquals() {
+    assertEquals(new GitNotesCiMessage(1L).addUrl(JOB_URL),
+        new GitNotesCiMessage(1L).addUrl(JOB_URL));
+    assertFalse(new GitNotesCiMessage(1L).addUrl(JOB_URL).equals(
+        new GitNotesCiMessage(1L).addUrl(JOB_URL).addStatus("failure")));
+  }
+
+  @Test
+  public void testParse() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addVersion(0).addUrl(JOB_URL)
+        .addStatus(GitNotesCiMessage.STATUS_FAILURE);
+    assertEquals(notes, GitNotesCiMessage.parse(notes.toString()));
+  }
+
+  @Test
+  public void testParseNoteSkipsOtherLines() {
+    GitNotesCiMessage start = new GitNotesCiMessage(1L).addUrl(JOB_URL);
+    GitNotesCiMessage finish = new GitNotesCiMessage(2L).addUrl(JOB_URL)
+        .addStatus(GitNotesCiMessage.STATUS_SUCCESS);
+    assertEquals(Arrays.asList(start, finish),
+        GitNotesCiMessage.parseNote(start + "\n\nnot json\n[1]\n{}\n"
+            + finish + "\n"));
+  }
+
+  @Test
+  public void testCompactToStringMatchesGson() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addVersion(GitNotesCiMessage.COMPACT_VERSION)
+        .addUrl("http://host/job/a/1/")
+        .addStatus(GitNotesCiMessage.STATUS_SUCCESS);
+    assertEquals(notes.toJsonObject().toString(), notes.toString());
+    assertEquals("{\"t\":1430000000,\"v\":1,\"u\":\"http://host/job/a/1/\","
+        + "\"s\":\"success\"}", notes.toString());
+  }
+
+  @Test
+  public void testParseCompact() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addVersion(GitNotesCiMessage.COMPACT_VERSION).addUrl(JOB_URL)
+        .addStatus(GitNotesCiMessage.STATUS_FAILURE);
+    assertEquals(notes, GitNotesCiMessage.parse(notes.toString()));
+  }
+
+  @Test
+  public void testParseNoteResolvesRelativeUrls() {
+    GitNotesCiMessage compact = new GitNotesCiMessage(1L)
+        .addVersion(GitNotesCiMessage.COMPACT_VERSION).addUrl(JOB_URL);
+    GitNotesCiMessage absolute = new GitNotesCiMessage(2L)
+        .addUrl("http://other/" + JOB_URL);
+    List<GitNotesCiMessage> messages = GitNotesCiMessage.parseNote(
+        compact + "\n\n" + absolute + "\n", "http://host/");
+    assertEquals("http://host/" + JOB_URL, messages.get(0).getUrl());
+    assertEquals("http://other/" + JOB_URL, messages.get(1).getUrl());
+  }
+
+  @Test
+  public void testDataMatchesGsonAndParses() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addUrl(JOB_URL).addStatus(GitNotesCiMessage.STATUS_SUCCESS);
+    assertTrue(notes.addData("duration", new JsonPrimitive(1234L)));
+    assertTrue(notes.addData("node", new JsonPrimitive("a \"b\"")));
+    assertFalse(notes.addData(GitNotesCiMessage.METADATA_URL,
+        new JsonPrimitive("other")));
+    assertEquals(notes.toJsonObject().toString(), notes.toString());
+    assertEquals(notes, GitNotesCiMessage.parse(notes.toString()));
+  }
+
+  @Test
+  public void testCompactDataParses() {
+    GitNotesCiMessage notes = new GitNotesCiMessage(1430000000L)
+        .addVersion(GitNotesCiMessage.COMPACT_VERSION).addUrl(JOB_URL);
+    notes.addData("passed", new JsonPrimitive(true));
+    notes.addData("ratio", new JsonPrimitive(0.5d));
+    assertEquals(notes.toJsonObject().toString(), notes.toString());
+    assertEquals(notes, GitNotesCiMessage.parse(notes.toString()));
+  }
+}
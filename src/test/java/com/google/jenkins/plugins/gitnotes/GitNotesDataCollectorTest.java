@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonPrimitive;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Tests for {@link GitNotesDataCollector}.
+ */
+public class GitNotesDataCollectorTest {
+  private static final long BUDGET_MILLIS = 200L;
+
+  private FreeStyleBuild build;
+  private TaskListener listener;
+  private ByteArrayOutputStream log;
+
+  @Before
+  public void setUp() {
+    build = mock(FreeStyleBuild.class);
+    listener = mock(TaskListener.class);
+    log = new ByteArrayOutputStream();
+    when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+  }
+
+  @Test
+  public void testCollectKeepsContributorOrder() {
+    Map<String, Object> first = new LinkedHashMap<String, Object>();
+    first.put("a", 1);
+    first.put("b", "x");
+    Map<String, Object> second = new LinkedHashMap<String, Object>();
+    second.put("b", "ignored");
+    second.put("c", true);
+
+    Map<String, JsonPrimitive> fields = GitNotesDataCollector.get().collect(
+        build, listener, Arrays.asList(new Fixed(first), new Fixed(second)));
+
+    assertEquals(Arrays.asList("a", "b", "c"),
+        Arrays.asList(fields.keySet().toArray()));
+    assertEquals(new JsonPrimitive(1L), fields.get("a"));
+    assertEquals(new JsonPrimitive("x"), fields.get("b"));
+    assertEquals(new JsonPrimitive(true), fields.get("c"));
+  }
+
+  @Test
+  public void testCollectDropsSlowContributor() throws Exception {
+    Slow slow = new Slow();
+    Map<String, JsonPrimitive> fields = GitNotesDataCollector.get().collect(
+        build, listener, Arrays.asList(slow,
+            new Fixed(Collections.singletonMap("fast", 1))));
+
+    assertEquals(Collections.singleton("fast"), fields.keySet());
+    assertTrue(log.toString().contains(Slow.class.getName()));
+    assertTrue(slow.interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCollectDropsFailingContributor() {
+    GitNotesDataContributor failing = new Fixed(null) {
+      @Override
+      public Map<String, ?> contribute(Run<?, ?> run, TaskListener l) {
+        throw new IllegalStateException("broken");
+      }
+    };
+    Map<String, JsonPrimitive> fields = GitNotesDataCollector.get().collect(
+        build, listener, Arrays.asList(failing,
+            new Fixed(Collections.singletonMap("ok", 1))));
+
+    assertEquals(Collections.singleton("ok"), fields.keySet());
+  }
+
+  @Test
+  public void testToPrimitiveNormalizesNumbers() {
+    assertEquals(new JsonPrimitive(3L),
+        GitNotesDataCollector.toPrimitive(Integer.valueOf(3)));
+    assertEquals(new JsonPrimitive(1.5d),
+        GitNotesDataCollector.toPrimitive(Float.valueOf(1.5f)));
+    assertEquals(new JsonPrimitive("NaN"),
+        GitNotesDataCollector.toPrimitive(Double.NaN));
+    assertNull(GitNotesDataCollector.toPrimitive(null));
+  }
+
+  private static class Fixed extends GitNotesDataContributor {
+    private final Map<String, ?> fields;
+
+    Fixed(Map<String, ?> fields) {
+      this.fields = fields;
+    }
+
+    @Override
+    public Map<String, ?> contribute(Run<?, ?> run, TaskListener l) {
+      return fields;
+    }
+
+    @Override
+    public long getBudgetMillis() {
+      return BUDGET_MILLIS;
+    }
+  }
+
+  /**
+   * Blocks until it is interrupted.
+   */
+  private static class Slow extends Fixed {
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+
+    Slow() {
+      super(Collections.singletonMap("slow", 1));
+    }
+
+    @Override
+    public Map<String, ?> contribute(Run<?, ?> run, TaskListener l)
+        throws InterruptedException {
+      try {
+        new CountDownLatch(1).await();
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw e;
+      }
+      return super.contribute(run, l);
+    }
+  }
+}
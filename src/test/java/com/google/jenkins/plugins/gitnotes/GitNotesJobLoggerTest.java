@@ -20,12 +20,18 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
@@ -41,6 +47,8 @@ import org.jvnet.hudson.test.JenkinsRule;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -56,6 +64,7 @@ import hudson.model.FreeStyleProject;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitSCM;
 import hudson.scm.SCM;
 import jenkins.model.JenkinsLocationConfiguration;
@@ -71,6 +80,8 @@ public class GitNotesJobLoggerTest {
   private static final String FULL_URL = BASE_URL + JOB_URL;
   private static final String REMOTE_URI = "http://git.host/remote/";
   private static final long CURRENT_TIME_MILLIS = 1234567;
+  private static final ObjectId NOTES_TIP =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
 
   @Rule public JenkinsRule jenkins = new JenkinsRule();
 
@@ -89,6 +100,7 @@ public class GitNotesJobLoggerTest {
   private List<URIish> remoteURIs;
   private List<RefSpec> refs;
   private GitNotesJobLogger recorder;
+  private static int builds;
 
   @Before
   public void setUp() throws Exception {
@@ -99,6 +111,7 @@ public class GitNotesJobLoggerTest {
     when(System.currentTimeMillis()).thenReturn(CURRENT_TIME_MILLIS);
     when(build.getProject()).thenReturn(project);
     when(build.getUrl()).thenReturn("");
+    when(build.getExternalizableId()).thenReturn("somejob#" + ++builds);
     when(gitSCM.createClient(
         Matchers.<TaskListener>anyObject(),
         Matchers.<EnvVars>anyObject(),
@@ -118,12 +131,27 @@ public class GitNotesJobLoggerTest {
     when(gitClient.push()).thenReturn(pushCommand);
     when(fetchCommand.from(Matchers.<URIish>anyObject(),
             Matchers.<List<RefSpec>>anyObject())).thenReturn(fetchCommand);
+    when(fetchCommand.timeout(Matchers.<Integer>anyObject()))
+        .thenReturn(fetchCommand);
     when(pushCommand.to(Matchers.<URIish>anyObject())).thenReturn(pushCommand);
     when(pushCommand.ref(Matchers.anyString())).thenReturn(pushCommand);
     when(pushCommand.force()).thenReturn(pushCommand);
     when(pushCommand.tags(Matchers.anyBoolean())).thenReturn(pushCommand);
     when(pushCommand.timeout(Matchers.<Integer>anyObject()))
         .thenReturn(pushCommand);
+    // The mocked repository has no URL base: notes are appended as is.
+    when(gitClient.withRepository(
+        Matchers.isA(NotesUrlBase.RelativizeCallback.class)))
+        .thenAnswer(new Answer<String>() {
+          @Override
+          public String answer(InvocationOnMock invocation) {
+            return ((NotesUrlBase.RelativizeCallback)
+                invocation.getArguments()[0]).note;
+          }
+        });
+
+    RemoteNotesRefCache.get().clear();
+    PublishMetrics.get().clear();
 
     // Object under test
     recorder = new GitNotesJobLogger();
@@ -166,7 +194,7 @@ public class GitNotesJobLoggerTest {
     recorder.setUp((AbstractBuild<?, ?>) build, launcher,
         listener);
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    JsonObject obj = notes.message;
+    JsonObject obj = notes.toJsonObject();
     obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
     obj.addProperty(GitNotesCiMessage.METADATA_URL,
         GitNotesCiMessage.BUILD_URL_NOT_AVAILABLE);
@@ -185,7 +213,7 @@ public class GitNotesJobLoggerTest {
     recorder.setUp((AbstractBuild<?, ?>) build, launcher,
         listener);
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    JsonObject obj = notes.message;
+    JsonObject obj = notes.toJsonObject();
     obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
     obj.addProperty(GitNotesCiMessage.METADATA_URL, JOB_URL);
     verifyStatusWritten(obj.toString());
@@ -204,12 +232,47 @@ public class GitNotesJobLoggerTest {
     recorder.setUp((AbstractBuild<?, ?>) build, launcher,
         listener);
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    JsonObject obj = notes.message;
+    JsonObject obj = notes.toJsonObject();
     obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
     obj.addProperty(GitNotesCiMessage.METADATA_URL, FULL_URL);
     verifyStatusWritten(obj.toString());
   }
 
+  @Test
+  public void testPublishIsRecordedInMetrics() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    when(build.getUrl()).thenReturn(JOB_URL);
+
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+
+    JsonObject metrics =
+        PublishMetrics.get().toJson().getAsJsonObject(REMOTE_URI);
+    assertEquals(1, metrics.get("successes").getAsInt());
+    assertEquals(0, metrics.get("failures").getAsInt());
+    assertEquals(1, metrics.getAsJsonObject("phaseMillis")
+        .getAsJsonObject("push").get("count").getAsInt());
+  }
+
+  @Test
+  public void testFailedPublishIsRecordedInMetrics() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    doThrow(new GitException("append failed")).when(gitClient).appendNote(
+        Matchers.anyString(), Matchers.anyString());
+
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+
+    JsonObject metrics =
+        PublishMetrics.get().toJson().getAsJsonObject(REMOTE_URI);
+    assertEquals(0, metrics.get("successes").getAsInt());
+    assertEquals(1, metrics.get("failures").getAsInt());
+  }
+
   @Test
   public void testSetupNotesRefNotExist() throws Exception {
     when(gitClient.refExists(GitNotesJobLogger.GIT_NOTES_REFS))
@@ -224,7 +287,7 @@ public class GitNotesJobLoggerTest {
     recorder.setUp((AbstractBuild<?, ?>) build, launcher,
         listener);
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    JsonObject obj = notes.message;
+    JsonObject obj = notes.toJsonObject();
     obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
     obj.addProperty(GitNotesCiMessage.METADATA_URL, FULL_URL);
 
@@ -252,7 +315,7 @@ public class GitNotesJobLoggerTest {
     OutputStream decoratedLogger = recorder.decorateLogger(build, logger);
     decoratedLogger.close();
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    JsonObject obj = notes.message;
+    JsonObject obj = notes.toJsonObject();
     obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
     obj.addProperty(GitNotesCiMessage.METADATA_URL, FULL_URL);
     obj.addProperty(GitNotesCiMessage.METADATA_STATUS,
@@ -273,11 +336,150 @@ public class GitNotesJobLoggerTest {
     OutputStream decoratedLogger = recorder.decorateLogger(build, logger);
     decoratedLogger.close();
     GitNotesCiMessage notes = new GitNotesCiMessage();
-    JsonObject obj = notes.message;
+    JsonObject obj = notes.toJsonObject();
+    obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
+    obj.addProperty(GitNotesCiMessage.METADATA_URL, JOB_URL);
+    obj.addProperty(GitNotesCiMessage.METADATA_STATUS,
+        GitNotesCiMessage.STATUS_SUCCESS);
+  }
+
+  @Test
+  public void testDeferredStartNoteSkippedForShortBuild() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    when(build.getResult()).thenReturn(Result.SUCCESS);
+    when(locationConfig.getUrl()).thenReturn(null);
+    when(build.getUrl()).thenReturn(JOB_URL);
+    when(build.getExternalizableId()).thenReturn("somejob#12");
+    recorder.setStartNoteDelaySeconds(3600);
+
+    OutputStream decoratedLogger = recorder.decorateLogger(build, logger);
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+    verify(gitClient, never()).appendNote(Matchers.anyString(),
+        Matchers.anyString());
+    decoratedLogger.close();
+
+    GitNotesCiMessage notes = new GitNotesCiMessage();
+    JsonObject obj = notes.toJsonObject();
     obj.addProperty(GitNotesCiMessage.METADATA_VERSION, 0);
     obj.addProperty(GitNotesCiMessage.METADATA_URL, JOB_URL);
     obj.addProperty(GitNotesCiMessage.METADATA_STATUS,
         GitNotesCiMessage.STATUS_SUCCESS);
+    verify(gitClient).appendNote(obj.toString(),
+        GitNotesJobLogger.GIT_NOTES_REFS);
+    verify(gitClient, times(1)).appendNote(Matchers.anyString(),
+        Matchers.anyString());
+  }
+
+  @Test
+  public void testCachedRemoteTipSkipsFetchAndBootstrap() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    when(gitClient.revParse(GitNotesJobLogger.GIT_NOTES_REFS))
+        .thenReturn(NOTES_TIP);
+
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+    assertEquals(NOTES_TIP,
+        RemoteNotesRefCache.get().getTip(new URIish(REMOTE_URI),
+            GitNotesJobLogger.GIT_NOTES_REFS));
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+
+    verify(fetchCommand, times(1)).execute();
+    verify(gitClient, never()).ref(GitNotesJobLogger.GIT_NOTES_REFS);
+    verify(gitClient, times(2)).appendNote(Matchers.anyString(),
+        Matchers.eq(GitNotesJobLogger.GIT_NOTES_REFS));
+    verify(pushCommand, times(2)).execute();
+  }
+
+  @Test
+  public void testDeferredStartNoteDroppedWithDeletedBuild()
+      throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    when(build.getExternalizableId()).thenReturn("somejob#13");
+    recorder.setStartNoteDelaySeconds(3600);
+
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+    assertTrue(GitNotesJobLogger.isStartDeferred(build));
+    new GitNotesJobLogger.CleanupListener().onDeleted(build);
+
+    assertFalse(GitNotesJobLogger.isStartDeferred(build));
+    verify(gitClient, never()).appendNote(Matchers.anyString(),
+        Matchers.anyString());
+  }
+
+  @Test
+  public void testRejectedPushMergesAndRetries() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    when(gitClient.revParse(GitNotesJobLogger.GIT_NOTES_REFS))
+        .thenReturn(NOTES_TIP);
+    RemoteNotesRefCache.get().recordTip(new URIish(REMOTE_URI),
+        GitNotesJobLogger.GIT_NOTES_REFS, NOTES_TIP);
+    doThrow(new GitException(" ! [rejected] refs/notes/ci -> refs/notes/ci"
+        + " (fetch first)")).doNothing().when(pushCommand).execute();
+
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+
+    verify(fetchCommand, times(1)).execute();
+    verify(gitClient, times(1)).appendNote(Matchers.anyString(),
+        Matchers.eq(GitNotesJobLogger.GIT_NOTES_REFS));
+    verify(gitClient).withRepository(
+        Matchers.isA(NotesMerge.MergeCallback.class));
+    verify(pushCommand, times(2)).execute();
+  }
+
+  @Test
+  public void testFailedPushIsNotRetried() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    doThrow(new GitException("Authentication failed"))
+        .when(pushCommand).execute();
+
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+
+    verify(gitClient, never()).withRepository(
+        Matchers.isA(NotesMerge.MergeCallback.class));
+    verify(pushCommand, times(1)).execute();
+  }
+
+  @Test
+  public void testFinishNoteReusesSession() throws Exception {
+    when(project.getScm()).thenReturn(gitSCM);
+    when(gitSCM.getRepositoryByName(Matchers.anyString()))
+        .thenReturn(gitRepoConfig);
+    when(gitRepoConfig.getURIs()).thenReturn(remoteURIs);
+    when(build.getResult()).thenReturn(Result.SUCCESS);
+    when(gitClient.revParse(GitNotesJobLogger.GIT_NOTES_REFS))
+        .thenReturn(NOTES_TIP);
+
+    OutputStream decoratedLogger = recorder.decorateLogger(build, logger);
+    recorder.setUp((AbstractBuild<?, ?>) build, launcher, listener);
+    // The build's environments are torn down before its log is closed.
+    when(build.getEnvironments()).thenReturn(null);
+    // Another build publishing meanwhile leaves the shared cache unsure.
+    RemoteNotesRefCache.get().clear();
+    decoratedLogger.close();
+
+    verify(gitSCM, times(1)).createClient(
+        Matchers.<TaskListener>anyObject(),
+        Matchers.<EnvVars>anyObject(),
+        Matchers.<Run<?, ?>>anyObject(),
+        Matchers.<FilePath>anyObject());
+    verify(fetchCommand, times(1)).execute();
+    verify(gitClient, times(2)).appendNote(Matchers.anyString(),
+        Matchers.eq(GitNotesJobLogger.GIT_NOTES_REFS));
+    verify(pushCommand, times(2)).execute();
   }
 
   private void verifyStatusWritten(String expectedMessage) throws Exception {
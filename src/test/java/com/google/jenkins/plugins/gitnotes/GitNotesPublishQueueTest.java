@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link GitNotesPublishQueue}.
+ */
+public class GitNotesPublishQueueTest {
+  private static final String BUILD = "job#1";
+  private static final String OTHER_BUILD = "job#2";
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private GitNotesPublishQueue queue;
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (queue != null) {
+      queue.shutdown();
+    }
+  }
+
+  @Test
+  public void testSubmitRunsOnWorker() throws Exception {
+    queue = new GitNotesPublishQueue(1, 1,
+        GitNotesPublishQueue.OverflowPolicy.DISCARD, 0L);
+    final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+    final CountDownLatch done = new CountDownLatch(1);
+    assertTrue(queue.submit(BUILD, new Runnable() {
+      @Override
+      public void run() {
+        ranOn.set(Thread.currentThread());
+        done.countDown();
+      }
+    }));
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), ranOn.get());
+  }
+
+  @Test
+  public void testDiscardWhenFull() throws Exception {
+    queue = new GitNotesPublishQueue(1, 1,
+        GitNotesPublishQueue.OverflowPolicy.DISCARD, 0L);
+    fill();
+    assertFalse(queue.submit(OTHER_BUILD, noop()));
+  }
+
+  @Test
+  public void testWaitTimesOutWhenFull() throws Exception {
+    queue = new GitNotesPublishQueue(1, 1,
+        GitNotesPublishQueue.OverflowPolicy.WAIT, 50L);
+    fill();
+    assertFalse(queue.submit(OTHER_BUILD, noop()));
+  }
+
+  @Test
+  public void testCallerRunsWhenFull() throws Exception {
+    queue = new GitNotesPublishQueue(1, 1,
+        GitNotesPublishQueue.OverflowPolicy.CALLER_RUNS, 0L);
+    fill();
+    final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+    assertTrue(queue.submit("job#3", new Runnable() {
+      @Override
+      public void run() {
+        ranOn.set(Thread.currentThread());
+      }
+    }));
+    assertSame(Thread.currentThread(), ranOn.get());
+  }
+
+  @Test
+  public void testWaitQueuesOnceSpaceFrees() throws Exception {
+    queue = new GitNotesPublishQueue(1, 1,
+        GitNotesPublishQueue.OverflowPolicy.WAIT, 10000L);
+    fill();
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread() {
+      @Override
+      public void run() {
+        release.countDown();
+      }
+    }.start();
+    assertTrue(queue.submit("job#3", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    }));
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testPublishesOfSameBuildRunInOrder() throws Exception {
+    queue = new GitNotesPublishQueue(2, 10,
+        GitNotesPublishQueue.OverflowPolicy.DISCARD, 0L);
+    final List<String> ran =
+        Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(1);
+    assertTrue(queue.submit(BUILD, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        ran.add("start");
+      }
+    }));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue(queue.submit(BUILD, new Runnable() {
+      @Override
+      public void run() {
+        ran.add("finish");
+        done.countDown();
+      }
+    }));
+    // The idle worker doesn't pick up the build's finish note.
+    Thread.sleep(100L);
+    assertEquals(1, queue.getQueueDepth());
+    assertTrue(ran.isEmpty());
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("start", "finish"), ran);
+  }
+
+  @Test
+  public void testNothingQueuedOnceReset() throws Exception {
+    queue = new GitNotesPublishQueue(1, 1,
+        GitNotesPublishQueue.OverflowPolicy.WAIT, 10000L);
+    queue.shutdown();
+    assertFalse(queue.submit(BUILD, noop()));
+    assertEquals(0, queue.getQueueDepth());
+  }
+
+  /**
+   * Occupies the single worker and the single queue slot.
+   */
+  private void fill() throws InterruptedException {
+    assertTrue(queue.submit(BUILD, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue(queue.submit(OTHER_BUILD, noop()));
+    assertEquals(1, queue.getQueueDepth());
+  }
+
+  private static Runnable noop() {
+    return new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.junit.Test;
+
+import hudson.plugins.git.GitException;
+
+/**
+ * Tests for {@link GitNotesRemote}.
+ */
+public class GitNotesRemoteTest {
+
+  @Test
+  public void testCliRejections() {
+    assertTrue(GitNotesRemote.isRejection(new GitException(
+        "! [rejected] refs/notes/jenkins (fetch first)")));
+    assertTrue(GitNotesRemote.isRejection(new GitException("push failed",
+        new GitException("error: cannot lock ref 'refs/notes/jenkins'"))));
+    assertFalse(GitNotesRemote.isRejection(new GitException(
+        "fatal: Authentication failed")));
+  }
+
+  @Test
+  public void testJGitRejections() {
+    assertTrue(GitNotesRemote.isRejection(update(
+        RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD, null)));
+    assertTrue(GitNotesRemote.isRejection(update(
+        RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED, null)));
+    assertTrue(GitNotesRemote.isRejection(update(
+        RemoteRefUpdate.Status.REJECTED_OTHER_REASON, "lock_failure")));
+    assertFalse(GitNotesRemote.isRejection(update(
+        RemoteRefUpdate.Status.REJECTED_OTHER_REASON, "hook declined")));
+    assertFalse(GitNotesRemote.isRejection(update(
+        RemoteRefUpdate.Status.REJECTED_NODELETE, null)));
+  }
+
+  private static RemoteRefUpdate update(RemoteRefUpdate.Status status,
+      String message) {
+    RemoteRefUpdate update = mock(RemoteRefUpdate.class);
+    when(update.getStatus()).thenReturn(status);
+    when(update.getMessage()).thenReturn(message);
+    return update;
+  }
+}
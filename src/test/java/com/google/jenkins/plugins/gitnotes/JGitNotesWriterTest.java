@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link JGitNotesWriter}.
+ */
+public class JGitNotesWriterTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository remote;
+  private Repository workspace;
+  private URIish remoteURI;
+
+  @Before
+  public void setUp() throws Exception {
+    File remoteDir = tmp.newFolder("remote.git");
+    remote = new FileRepositoryBuilder().setGitDir(remoteDir).build();
+    remote.create(true);
+    remoteURI = new URIish(remoteDir.toURI().toURL());
+    workspace = newWorkspace("workspace");
+  }
+
+  @After
+  public void tearDown() {
+    workspace.close();
+    remote.close();
+  }
+
+  @Test
+  public void testPublishCreatesAndAppendsRemoteNotes() throws Exception {
+    publish(workspace, "first", null);
+    assertEquals(0, publish(workspace, "second", null).retries);
+    assertEquals("first\n\nsecond\n", readRemoteNote(workspace));
+  }
+
+  @Test
+  public void testRejectedPushMergesAndRetries() throws Exception {
+    String tip = publish(workspace, "first", null).tip;
+    Repository other = newWorkspace("other");
+    try {
+      publish(other, "other", null);
+      // The remote moved, but we claim to know its tip: the push is
+      // rejected and the writer must merge the remote notes and retry.
+      JGitNotesWriter.PublishResult result =
+          publish(workspace, "second", tip);
+      assertEquals(1, result.retries);
+      assertEquals("first\n\nsecond\n", readRemoteNote(workspace));
+      assertEquals("other\n", readRemoteNote(other));
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentNotesOnSameCommitAreMerged() throws Exception {
+    String tip = publish(workspace, "a", null).tip;
+    publish(workspace, "b", null);
+    // Roll our local notes back to simulate a concurrent writer that
+    // published "b" from another workspace of the same commit.
+    RefUpdate rollback = workspace.updateRef(NOTES_REF);
+    rollback.setNewObjectId(ObjectId.fromString(tip));
+    rollback.forceUpdate();
+
+    assertEquals(1, publish(workspace, "c", tip).retries);
+    assertEquals("a\nb\nc\n", readRemoteNote(workspace));
+  }
+
+  private JGitNotesWriter.PublishResult publish(Repository repo,
+      String note, String knownTip) throws Exception {
+    return new JGitNotesWriter.PublishCallback(remoteURI, NOTES_REF, note,
+        knownTip, new PublishRetryPolicy(3, 0L)).invoke(repo, null);
+  }
+
+  private Repository newWorkspace(String name) throws Exception {
+    Git git = Git.init().setDirectory(tmp.newFolder(name)).call();
+    git.commit().setMessage(name).call();
+    return git.getRepository();
+  }
+
+  private String readRemoteNote(Repository annotated) throws IOException {
+    ObjectId head = annotated.resolve(Constants.HEAD);
+    ObjectReader reader = remote.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      ObjectId blob = NoteMap.read(reader,
+          walk.parseCommit(remote.getRef(NOTES_REF).getObjectId()))
+          .get(head);
+      return new String(reader.open(blob).getCachedBytes(),
+          Constants.CHARSET);
+    } finally {
+      walk.release();
+      reader.release();
+    }
+  }
+}
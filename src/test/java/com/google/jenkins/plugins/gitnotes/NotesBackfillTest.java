@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.BuildData;
+
+/**
+ * Tests for {@link NotesBackfill}.
+ */
+public class NotesBackfillTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String COMMIT_1 =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_2 =
+      "2222222222222222222222222222222222222222";
+
+  @Test
+  public void testCollectGroupsFinishRecordsByCommit() {
+    NotesBackfill backfill = new NotesBackfill(mock(FreeStyleProject.class),
+        NotesShards.Scheme.NONE, GitNotesCiMessage.DEFAULT_VERSION, null, 1,
+        0);
+
+    backfill.collect(build(2, COMMIT_1, Result.FAILURE, 4000L));
+    backfill.collect(build(1, COMMIT_1, Result.SUCCESS, 2000L));
+    backfill.collect(build(3, COMMIT_2, Result.SUCCESS, 6000L));
+    FreeStyleBuild running = build(4, COMMIT_2, null, 8000L);
+    backfill.collect(running);
+    backfill.collect(null);
+
+    assertEquals(3, backfill.getRecords());
+    Map<String, List<String>> notes = backfill.sortedNotes().get(NOTES_REF);
+    assertEquals(Arrays.asList(
+        finish(2, 1, GitNotesCiMessage.STATUS_SUCCESS),
+        finish(4, 2, GitNotesCiMessage.STATUS_FAILURE)),
+        notes.get(COMMIT_1));
+    assertEquals(Arrays.asList(
+        finish(6, 3, GitNotesCiMessage.STATUS_SUCCESS)),
+        notes.get(COMMIT_2));
+  }
+
+  @Test
+  public void testCollectWritesTheJobsEncoding() {
+    NotesBackfill backfill = new NotesBackfill(mock(FreeStyleProject.class),
+        NotesShards.Scheme.NONE, GitNotesCiMessage.COMPACT_VERSION, null, 1,
+        0);
+
+    backfill.collect(build(1, COMMIT_1, Result.SUCCESS, 2000L));
+
+    String record = backfill.sortedNotes().get(NOTES_REF).get(COMMIT_1)
+        .get(0);
+    assertTrue(record.startsWith(GitNotesCiMessage.COMPACT_PREFIX));
+    assertEquals(GitNotesCiMessage.COMPACT_VERSION,
+        GitNotesCiMessage.parse(record).getVersion());
+  }
+
+  private static String finish(long timestampSeconds, int number,
+      String status) {
+    return new GitNotesCiMessage(timestampSeconds).addVersion(0)
+        .addUrl("job/a/" + number + "/").addStatus(status).toString();
+  }
+
+  private static FreeStyleBuild build(int number, String commit,
+      Result result, long finishMillis) {
+    FreeStyleBuild build = mock(FreeStyleBuild.class);
+    when(build.getNumber()).thenReturn(number);
+    when(build.getUrl()).thenReturn("job/a/" + number + "/");
+    when(build.getResult()).thenReturn(result);
+    when(build.isBuilding()).thenReturn(result == null);
+    when(build.getStartTimeInMillis()).thenReturn(finishMillis - 1000L);
+    when(build.getDuration()).thenReturn(1000L);
+    Revision revision = mock(Revision.class);
+    when(revision.getSha1String()).thenReturn(commit);
+    BuildData buildData = mock(BuildData.class);
+    when(buildData.getLastBuiltRevision()).thenReturn(revision);
+    when(build.getAction(BuildData.class)).thenReturn(buildData);
+    return build;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link NotesBulkPublish}.
+ */
+public class NotesBulkPublishTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String COMMIT_1 =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_2 =
+      "2222222222222222222222222222222222222222";
+  private static final String START_1 =
+      "{\"timestamp\":\"0000000001\",\"v\":0,\"url\":\"job/a/1/\"}";
+  private static final String FINISH_1 =
+      "{\"timestamp\":\"0000000002\",\"v\":0,\"url\":\"job/a/1/\","
+      + "\"status\":\"success\"}";
+  private static final String FINISH_2 =
+      "{\"timestamp\":\"0000000004\",\"v\":0,\"url\":\"job/a/2/\","
+      + "\"status\":\"failure\"}";
+  private static final String FINISH_3 =
+      "{\"timestamp\":\"0000000006\",\"v\":0,\"url\":\"job/a/3/\","
+      + "\"status\":\"success\"}";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+  private File remoteDir;
+  private Repository remote;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = NotesFixtures.newBareRepository(tmp.newFolder("mirror.git"));
+    remoteDir = tmp.newFolder("remote.git");
+    remote = NotesFixtures.newBareRepository(remoteDir);
+    RemoteNotesRefCache.get().clear();
+  }
+
+  @After
+  public void tearDown() {
+    remote.close();
+    repo.close();
+  }
+
+  @Test
+  public void testPublishSkipsPublishedBuilds() throws Exception {
+    NotesFixtures.append(remote, COMMIT_1, FINISH_1);
+    ObjectId before = remote.getRef(NOTES_REF).getObjectId();
+
+    int published = publish(NotesFixtures.notes(COMMIT_1, FINISH_1, FINISH_2),
+        NotesFixtures.notes(COMMIT_2, FINISH_3));
+
+    assertEquals(2, published);
+    ObjectId tip = remote.getRef(NOTES_REF).getObjectId();
+    assertFalse(before.equals(tip));
+    assertEquals(FINISH_1 + "\n\n" + FINISH_2 + "\n",
+        NotesFixtures.readNote(remote, COMMIT_1));
+    assertEquals(FINISH_3 + "\n", NotesFixtures.readNote(remote, COMMIT_2));
+    assertEquals(tip, RemoteNotesRefCache.get().getTip(
+        new URIish(remoteDir.toURI().toURL()), NOTES_REF));
+  }
+
+  @Test
+  public void testPublishSkipsRecordsAlreadyInNotes() throws Exception {
+    NotesFixtures.append(remote, COMMIT_1, START_1);
+
+    assertEquals(1, publish(NotesFixtures.notes(COMMIT_1, START_1, FINISH_1)));
+    assertEquals(START_1 + "\n\n" + FINISH_1 + "\n",
+        NotesFixtures.readNote(remote, COMMIT_1));
+  }
+
+  @Test
+  public void testPublishCreatesNotesRef() throws Exception {
+    assertEquals(1, publish(NotesFixtures.notes(COMMIT_1, FINISH_1)));
+    assertEquals(FINISH_1 + "\n", NotesFixtures.readNote(remote, COMMIT_1));
+  }
+
+  @Test
+  public void testPublishWithoutNewBuilds() throws Exception {
+    NotesFixtures.append(remote, COMMIT_1, FINISH_1);
+    ObjectId before = remote.getRef(NOTES_REF).getObjectId();
+
+    assertEquals(0, publish(NotesFixtures.notes(COMMIT_1, FINISH_1)));
+    assertEquals(before, remote.getRef(NOTES_REF).getObjectId());
+  }
+
+  private int publish(Map<String, List<String>>... commits)
+      throws Exception {
+    Map<String, List<String>> forRef = new HashMap<String, List<String>>();
+    for (Map<String, List<String>> commit : commits) {
+      forRef.putAll(commit);
+    }
+    Map<String, Map<String, List<String>>> notes =
+        new HashMap<String, Map<String, List<String>>>();
+    notes.put(NOTES_REF, forRef);
+    URIish remoteURI = new URIish(remoteDir.toURI().toURL());
+    Transport transport = Transport.open(repo, remoteURI);
+    try {
+      return new NotesBulkPublish(remoteURI, notes,
+          new PublishRetryPolicy(0, 0L)).run(repo, transport);
+    } finally {
+      transport.close();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link NotesCompactor}.
+ */
+public class NotesCompactorTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String COMMIT =
+      "1111111111111111111111111111111111111111";
+  private static final String START_1 =
+      "{\"timestamp\":\"0000000001\",\"v\":0,\"url\":\"http://ci/job/a/1/\"}";
+  private static final String FINISH_1 =
+      "{\"timestamp\":\"0000000002\",\"v\":0,\"url\":\"http://ci/job/a/1/\","
+      + "\"status\":\"success\"}";
+  private static final String START_2 =
+      "{\"timestamp\":\"0000000003\",\"v\":0,\"url\":\"http://ci/job/a/2/\"}";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = NotesFixtures.newBareRepository(tmp.newFolder("local.git"));
+  }
+
+  @After
+  public void tearDown() {
+    repo.close();
+  }
+
+  @Test
+  public void testFoldKeepsFinishRecordPerBuild() {
+    assertEquals(FINISH_1 + "\n" + START_2 + "\n",
+        NotesCompactor.fold(START_1 + "\n\n" + FINISH_1 + "\n\n" + START_2
+            + "\n"));
+  }
+
+  @Test
+  public void testFoldKeepsFinishRecordAppendedOutOfOrder() {
+    assertEquals(FINISH_1 + "\n",
+        NotesCompactor.fold(FINISH_1 + "\n\n" + START_1 + "\n"));
+  }
+
+  @Test
+  public void testFoldCompactRecords() {
+    String start = "{\"t\":1,\"v\":1,\"u\":\"job/a/1/\"}";
+    String finish = "{\"t\":2,\"v\":1,\"u\":\"job/a/1/\",\"s\":\"success\"}";
+    assertEquals(finish + "\n", NotesCompactor.fold(start + "\n\n" + finish
+        + "\n"));
+  }
+
+  @Test
+  public void testFoldKeepsUnknownLines() {
+    assertEquals("not json\n" + START_1 + "\n",
+        NotesCompactor.fold(START_1 + "\nnot json\n"));
+  }
+
+  @Test
+  public void testCompactSquashesHistoryAndFolds() throws Exception {
+    NotesFixtures.append(repo, COMMIT, START_1);
+    NotesFixtures.append(repo, COMMIT, FINISH_1);
+    NotesFixtures.append(repo, COMMIT, START_2);
+
+    ObjectId tip = NotesCompactor.compact(repo, NOTES_REF, Long.MAX_VALUE);
+
+    assertEquals(tip, repo.getRef(NOTES_REF).getObjectId());
+    assertEquals(FINISH_1 + "\n" + START_2 + "\n",
+        NotesFixtures.readNote(repo, COMMIT));
+    RevWalk walk = new RevWalk(repo);
+    try {
+      RevCommit compacted = walk.parseCommit(tip);
+      assertEquals(1, compacted.getParentCount());
+      RevCommit squashed = walk.parseCommit(compacted.getParent(0));
+      assertEquals(0, squashed.getParentCount());
+      assertTrue(NotesCompactor.isCompaction(compacted));
+      assertTrue(NotesCompactor.isCompaction(squashed));
+    } finally {
+      walk.release();
+    }
+  }
+
+  @Test
+  public void testCompactKeepsHistoryWithinRetention() throws Exception {
+    NotesFixtures.append(repo, COMMIT, START_1);
+    ObjectId first = repo.getRef(NOTES_REF).getObjectId();
+    NotesFixtures.append(repo, COMMIT, FINISH_1);
+
+    ObjectId tip = NotesCompactor.compact(repo, NOTES_REF, 0L);
+
+    RevWalk walk = new RevWalk(repo);
+    try {
+      RevCommit compacted = walk.parseCommit(tip);
+      RevCommit appended = walk.parseCommit(compacted.getParent(0));
+      assertEquals(first, appended.getParent(0));
+      assertFalse(NotesCompactor.isCompaction(appended));
+    } finally {
+      walk.release();
+    }
+    assertEquals(FINISH_1 + "\n", NotesFixtures.readNote(repo, COMMIT));
+  }
+
+  @Test
+  public void testCompactionIsNotToldBySubject() throws Exception {
+    PersonIdent ident = new PersonIdent(repo);
+    ObjectInserter inserter = repo.newObjectInserter();
+    ObjectId id;
+    try {
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(new TreeFormatter()));
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("Notes compacted by someone else\n");
+      id = inserter.insert(commit);
+      inserter.flush();
+    } finally {
+      inserter.release();
+    }
+
+    RevWalk walk = new RevWalk(repo);
+    try {
+      assertFalse(NotesCompactor.isCompaction(walk.parseCommit(id)));
+    } finally {
+      walk.release();
+    }
+  }
+
+  @Test
+  public void testCompactWithoutChanges() throws Exception {
+    assertNull(NotesCompactor.compact(repo, NOTES_REF, 0L));
+    NotesFixtures.append(repo, COMMIT, START_1);
+    assertNull(NotesCompactor.compact(repo, NOTES_REF, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testCompactRemotePushesWithLease() throws Exception {
+    File remoteDir = tmp.newFolder("remote.git");
+    Repository remote = NotesFixtures.newBareRepository(remoteDir);
+    try {
+      NotesFixtures.append(remote, COMMIT, START_1);
+      NotesFixtures.append(remote, COMMIT, FINISH_1);
+      Transport transport = Transport.open(repo,
+          new URIish(remoteDir.toURI().toURL()));
+      try {
+        ObjectId tip = NotesCompactor.compactRemote(repo, transport,
+            NOTES_REF, Long.MAX_VALUE);
+        assertEquals(tip, remote.getRef(NOTES_REF).getObjectId());
+        assertEquals(FINISH_1 + "\n", NotesFixtures.readNote(remote, COMMIT));
+      } finally {
+        transport.close();
+      }
+    } finally {
+      remote.close();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Repositories and notes shared by the tests that write notes with JGit.
+ */
+final class NotesFixtures {
+  static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+
+  private NotesFixtures() {
+  }
+
+  /**
+   * Creates a bare repository in the given directory.
+   */
+  static Repository newBareRepository(File dir) throws IOException {
+    Repository bare = new FileRepositoryBuilder().setGitDir(dir).build();
+    bare.create(true);
+    return bare;
+  }
+
+  /**
+   * Returns the given records as the notes of one commit.
+   */
+  static Map<String, List<String>> notes(String commit, String... records) {
+    Map<String, List<String>> notes =
+        new LinkedHashMap<String, List<String>>();
+    notes.put(commit, new ArrayList<String>(Arrays.asList(records)));
+    return notes;
+  }
+
+  /**
+   * Appends a record to the commit's note under {@link #NOTES_REF}.
+   */
+  static void append(Repository target, String commit, String note)
+      throws IOException {
+    NotesUpdate.appendNotes(target, NOTES_REF, notes(commit, note));
+  }
+
+  /**
+   * Returns the commit's note under {@link #NOTES_REF}.
+   */
+  static String readNote(Repository source, String commit)
+      throws IOException {
+    return readNote(source, source.getRef(NOTES_REF).getObjectId(), commit);
+  }
+
+  /**
+   * Returns the commit's note in the given notes commit.
+   */
+  static String readNote(Repository source, ObjectId notesCommit,
+      String commit) throws IOException {
+    ObjectReader reader = source.newObjectReader();
+    RevWalk walk = new RevWalk(reader);
+    try {
+      ObjectId blob = NoteMap.read(reader, walk.parseCommit(notesCommit))
+          .get(ObjectId.fromString(commit));
+      return new String(reader.open(blob).getCachedBytes(),
+          Constants.CHARSET);
+    } finally {
+      walk.release();
+      reader.release();
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link NotesMerge}.
+ */
+public class NotesMergeTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String INCOMING_REF =
+      NotesMerge.incomingRef(NOTES_REF);
+  private static final String COMMIT_A =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_B =
+      "2222222222222222222222222222222222222222";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = NotesFixtures.newBareRepository(tmp.newFolder("notes.git"));
+  }
+
+  @After
+  public void tearDown() {
+    repo.close();
+  }
+
+  @Test
+  public void testIncomingRef() {
+    assertEquals("refs/notes-incoming/notes/devtools/ci", INCOMING_REF);
+  }
+
+  @Test
+  public void testMissingIncomingKeepsOurs() throws Exception {
+    ObjectId ours = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "ours"));
+    assertEquals(ours,
+        NotesMerge.mergeIncoming(repo, NOTES_REF, INCOMING_REF));
+  }
+
+  @Test
+  public void testFastForwardToIncoming() throws Exception {
+    ObjectId base = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "base"));
+    ObjectId theirs = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "theirs"));
+    moveRef(INCOMING_REF, theirs);
+    moveRef(NOTES_REF, base);
+
+    assertEquals(theirs,
+        NotesMerge.mergeIncoming(repo, NOTES_REF, INCOMING_REF));
+    assertEquals(theirs, repo.getRef(NOTES_REF).getObjectId());
+  }
+
+  @Test
+  public void testDivergedNotesAreUnionMerged() throws Exception {
+    ObjectId base = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "{\"timestamp\":\"0000000001\"}"));
+    Map<String, List<String>> theirNotes =
+        NotesFixtures.notes(COMMIT_A, "{\"timestamp\":\"0000000003\"}");
+    theirNotes.putAll(NotesFixtures.notes(COMMIT_B, "b"));
+    ObjectId theirs = NotesUpdate.appendNotes(repo, NOTES_REF, theirNotes);
+    moveRef(INCOMING_REF, theirs);
+    moveRef(NOTES_REF, base);
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "{\"timestamp\":\"0000000002\"}"));
+
+    ObjectId merged = NotesMerge.mergeIncoming(repo, NOTES_REF, INCOMING_REF);
+
+    assertEquals("{\"timestamp\":\"0000000001\"}\n"
+        + "{\"timestamp\":\"0000000002\"}\n"
+        + "{\"timestamp\":\"0000000003\"}\n",
+        NotesFixtures.readNote(repo, merged, COMMIT_A));
+    assertEquals("b\n", NotesFixtures.readNote(repo, merged, COMMIT_B));
+    RevWalk walk = new RevWalk(repo);
+    try {
+      assertEquals(2, walk.parseCommit(merged).getParentCount());
+    } finally {
+      walk.release();
+    }
+  }
+
+  @Test
+  public void testMixedEncodingsMergeInTimeOrder() throws Exception {
+    String first = "{\"timestamp\":\"0000000001\"}";
+    String second = "{\"timestamp\":\"0000000002\"}";
+    String third = "{\"t\":3,\"v\":1}";
+    ObjectId base = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, first));
+    moveRef(INCOMING_REF, NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, third)));
+    moveRef(NOTES_REF, base);
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, second));
+
+    ObjectId merged = NotesMerge.mergeIncoming(repo, NOTES_REF, INCOMING_REF);
+
+    assertEquals(first + "\n" + second + "\n" + third + "\n",
+        NotesFixtures.readNote(repo, merged, COMMIT_A));
+  }
+
+  @Test
+  public void testMergeOntoCompactedRemoteKeepsCompaction()
+      throws Exception {
+    String start1 = "{\"timestamp\":\"0000000001\",\"v\":0,"
+        + "\"url\":\"http://ci/job/a/1/\"}";
+    String finish1 = "{\"timestamp\":\"0000000002\",\"v\":0,"
+        + "\"url\":\"http://ci/job/a/1/\",\"status\":\"success\"}";
+    String start2 = "{\"timestamp\":\"0000000003\",\"v\":0,"
+        + "\"url\":\"http://ci/job/a/2/\"}";
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, start1));
+    ObjectId seen = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, finish1));
+    ObjectId theirs = NotesCompactor.compact(repo, NOTES_REF,
+        Long.MAX_VALUE);
+    moveRef(INCOMING_REF, theirs);
+    moveRef(NOTES_REF, seen);
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, start2));
+
+    ObjectId merged = NotesMerge.mergeIncoming(repo, NOTES_REF, INCOMING_REF);
+
+    assertEquals(finish1 + "\n" + start2 + "\n",
+        NotesFixtures.readNote(repo, merged, COMMIT_A));
+    RevWalk walk = new RevWalk(repo);
+    try {
+      RevCommit commit = walk.parseCommit(merged);
+      assertEquals(1, commit.getParentCount());
+      assertEquals(theirs, commit.getParent(0));
+    } finally {
+      walk.release();
+    }
+  }
+
+  @Test
+  public void testDifferentUrlBasesKeepTheirs() throws Exception {
+    String theirRecord = "{\"t\":1,\"v\":1,\"u\":\"http://one/job/a/1/\"}";
+    String ourRecord = "{\"t\":2,\"v\":1,\"u\":\"http://two/job/a/2/\"}";
+    ObjectId base = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_B, "b"));
+    moveRef(INCOMING_REF, NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, theirRecord)));
+    moveRef(NOTES_REF, base);
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, ourRecord));
+
+    ObjectId merged = NotesMerge.mergeIncoming(repo, NOTES_REF, INCOMING_REF);
+
+    assertEquals("http://one/\n", NotesFixtures.readNote(repo, merged,
+        NotesUrlBase.BASE_NOTE.name()));
+    List<GitNotesCiMessage> messages = GitNotesCiMessage.parseNote(
+        NotesFixtures.readNote(repo, merged, COMMIT_A), "http://one/");
+    assertEquals(2, messages.size());
+    assertEquals("http://one/job/a/1/", messages.get(0).getUrl());
+    assertEquals("http://two/job/a/2/", messages.get(1).getUrl());
+  }
+
+  @Test
+  public void testJoinedUrlBasesResolveAgainstTheFirst() throws Exception {
+    // Left by merges that joined bases set concurrently.
+    NotesUpdate.appendNotes(repo, NOTES_REF, NotesFixtures.notes(
+        NotesUrlBase.BASE_NOTE.name(), "http://one/\nhttp://two/"));
+    NotesUpdate.appendNotes(repo, NOTES_REF, NotesFixtures.notes(COMMIT_A,
+        "{\"t\":1,\"v\":1,\"u\":\"http://one/job/a/1/\"}",
+        "{\"t\":2,\"v\":1,\"u\":\"http://two/job/a/2/\"}"));
+
+    assertEquals("{\"t\":1,\"v\":1,\"u\":\"job/a/1/\"}\n\n"
+        + "{\"t\":2,\"v\":1,\"u\":\"http://two/job/a/2/\"}\n",
+        NotesFixtures.readNote(repo, COMMIT_A));
+  }
+
+  private void moveRef(String ref, ObjectId target) throws IOException {
+    RefUpdate update = repo.updateRef(ref);
+    update.setNewObjectId(target);
+    update.forceUpdate();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.model.TaskListener;
+
+/**
+ * Tests for {@link NotesMirror}.
+ */
+public class NotesMirrorTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final PublishRetryPolicy RETRY_POLICY =
+      new PublishRetryPolicy(3, 0L);
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository remote;
+  private Repository workspace;
+  private URIish remoteURI;
+  private String head;
+  private NotesMirror mirror;
+
+  @Before
+  public void setUp() throws Exception {
+    RemoteNotesRefCache.get().clear();
+    File remoteDir = tmp.newFolder("remote.git");
+    remote = NotesFixtures.newBareRepository(remoteDir);
+    remoteURI = new URIish(remoteDir.toURI().toURL());
+    Git git = Git.init().setDirectory(tmp.newFolder("workspace")).call();
+    git.commit().setMessage("workspace").call();
+    workspace = git.getRepository();
+    head = workspace.resolve(Constants.HEAD).name();
+    mirror = new NotesMirror(tmp.newFolder("mirrors"));
+  }
+
+  @After
+  public void tearDown() {
+    workspace.close();
+    remote.close();
+  }
+
+  @Test
+  public void testWriteCreatesNotesOnlyMirror() throws Exception {
+    assertEquals(0, write("first"));
+    assertEquals(0, write("second"));
+    assertEquals("first\n\nsecond\n", NotesFixtures.readNote(remote, head));
+
+    Repository mirrorRepo = new FileRepositoryBuilder()
+        .setGitDir(mirror.mirrorDir(remoteURI)).build();
+    try {
+      assertTrue(mirrorRepo.isBare());
+      assertEquals(remote.getRef(NOTES_REF).getObjectId(),
+          mirrorRepo.getRef(NOTES_REF).getObjectId());
+      // Only notes are mirrored, never the annotated commits.
+      assertFalse(mirrorRepo.hasObject(ObjectId.fromString(head)));
+    } finally {
+      mirrorRepo.close();
+    }
+  }
+
+  @Test
+  public void testWriteMergesNotesPushedElsewhere() throws Exception {
+    write("first");
+    new JGitNotesWriter.PublishCallback(remoteURI, NOTES_REF, "workspace",
+        null, RETRY_POLICY).invoke(workspace, null);
+
+    // The cached tip is stale now, so the mirror's push is rejected once.
+    assertEquals(1, write("second"));
+    assertEquals("first\nsecond\nworkspace\n",
+        NotesFixtures.readNote(remote, head));
+  }
+
+  @Test
+  public void testMirrorsAreKeptPerRemote() throws Exception {
+    assertFalse(mirror.mirrorDir(remoteURI).equals(
+        mirror.mirrorDir(new URIish("https://git.host/other.git"))));
+  }
+
+  @Test
+  public void testWriteForgetsRememberedCredentials() throws Exception {
+    write("first");
+    Repository mirrorRepo = mirror.open(remoteURI);
+    try {
+      StoredConfig config = mirrorRepo.getConfig();
+      config.setString("gitnotes", null, "credentialsId", "other-job");
+      config.save();
+    } finally {
+      mirrorRepo.close();
+    }
+
+    write("second");
+
+    mirrorRepo = mirror.open(remoteURI);
+    try {
+      assertNull(mirrorRepo.getConfig().getString("gitnotes", null,
+          "credentialsId"));
+      assertEquals(remoteURI.toString(), mirrorRepo.getConfig().getString(
+          "remote", "origin", "url"));
+    } finally {
+      mirrorRepo.close();
+    }
+  }
+
+  @Test
+  public void testGcAllPacksMirrors() throws Exception {
+    write("first");
+    write("second");
+
+    assertEquals(1, mirror.gcAll(1000L, TaskListener.NULL));
+
+    // Everything is repacked into a single pack.
+    assertEquals(1, packs(new File(mirror.mirrorDir(remoteURI), "objects")));
+    // The notes are all still there, and publishing goes on.
+    assertEquals(0, write("third"));
+    assertEquals("first\n\nsecond\n\nthird\n",
+        NotesFixtures.readNote(remote, head));
+  }
+
+  private static int packs(File objects) {
+    String[] packs = new File(objects, "pack").list();
+    int count = 0;
+    for (String pack : packs == null ? new String[0] : packs) {
+      if (pack.endsWith(".pack")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private int write(String note) throws Exception {
+    return mirror.write(remoteURI, NOTES_REF, head, note, RETRY_POLICY,
+        new PublishTimings(), null, 1000L);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Tests for {@link NotesOutboxReplay}.
+ */
+public class NotesOutboxReplayTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String COMMIT_A =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_B =
+      "2222222222222222222222222222222222222222";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File outboxDir;
+  private NotesOutbox outbox;
+  private Repository remote;
+  private URIish remoteURI;
+  private NotesOutboxReplay replay;
+
+  @Before
+  public void setUp() throws Exception {
+    outboxDir = tmp.newFolder("outbox");
+    outbox = new NotesOutbox(outboxDir);
+    File remoteDir = tmp.newFolder("remote.git");
+    remote = NotesFixtures.newBareRepository(remoteDir);
+    remoteURI = new URIish(remoteDir.toURI().toURL());
+    replay = new NotesOutboxReplay(outbox,
+        new NotesMirror(tmp.newFolder("mirrors")));
+  }
+
+  @After
+  public void tearDown() {
+    remote.close();
+  }
+
+  @Test
+  public void testReplayPublishesAndConfirmsPendingNotes() throws Exception {
+    outbox.record(remoteURI, NOTES_REF, COMMIT_A, "a1", null);
+    outbox.record(remoteURI, NOTES_REF, COMMIT_A, "a2", null);
+    outbox.record(remoteURI, NOTES_REF, COMMIT_B, "b1", null);
+
+    replay.replay(afterGrace(), TaskListener.NULL);
+
+    assertEquals("a1\n\na2\n", NotesFixtures.readNote(remote, COMMIT_A));
+    assertEquals("b1\n", NotesFixtures.readNote(remote, COMMIT_B));
+    assertEquals(0, outbox.size());
+    assertEquals(0, new NotesOutbox(outboxDir).size());
+  }
+
+  @Test
+  public void testReplayBatchesNotesByJob() throws Exception {
+    outbox.record(remoteURI, NOTES_REF, COMMIT_A, "a1", "one");
+    outbox.record(remoteURI, NOTES_REF, COMMIT_A, "a2", "two");
+    outbox.record(remoteURI, NOTES_REF, COMMIT_B, "b1", "one");
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    replay.replay(afterGrace(), new StreamTaskListener(log));
+
+    String output = log.toString();
+    assertTrue(output, output.contains("Replayed 2 of 2 outbox notes"));
+    assertTrue(output, output.contains("Replayed 1 of 1 outbox notes"));
+    assertEquals("a1\n\na2\n", NotesFixtures.readNote(remote, COMMIT_A));
+    assertEquals("b1\n", NotesFixtures.readNote(remote, COMMIT_B));
+    assertEquals(0, outbox.size());
+  }
+
+  @Test
+  public void testRecentNotesAreLeftToTheirPublish() throws Exception {
+    outbox.record(remoteURI, NOTES_REF, COMMIT_A, "a1", null);
+
+    replay.replay(System.currentTimeMillis(), TaskListener.NULL);
+
+    assertNull(remote.getRef(NOTES_REF));
+    assertEquals(1, outbox.size());
+  }
+
+  @Test
+  public void testFailedRemoteKeepsItsNotes() throws Exception {
+    URIish missing = new URIish(
+        new File(tmp.getRoot(), "missing.git").toURI().toURL());
+    outbox.record(missing, NOTES_REF, COMMIT_A, "a1", null);
+
+    replay.replay(afterGrace(), TaskListener.NULL);
+
+    assertEquals(1, outbox.size());
+  }
+
+  @Test
+  public void testMalformedRemoteIsDropped() throws Exception {
+    NotesOutbox.Entry entry = new NotesOutbox.Entry("id", "", NOTES_REF,
+        COMMIT_A, "a1", null, 0L);
+    Files.write(entry.toJson() + "\n", new File(outboxDir, "journal"),
+        Charsets.UTF_8);
+
+    replay.replay(afterGrace(), TaskListener.NULL);
+
+    assertEquals(0, outbox.size());
+  }
+
+  @Test
+  public void testBackoffDoublesUpToAnHour() {
+    assertEquals(NotesOutboxReplay.MIN_BACKOFF_MILLIS,
+        NotesOutboxReplay.backoffMillis(1));
+    assertEquals(2 * NotesOutboxReplay.MIN_BACKOFF_MILLIS,
+        NotesOutboxReplay.backoffMillis(2));
+    assertEquals(32 * NotesOutboxReplay.MIN_BACKOFF_MILLIS,
+        NotesOutboxReplay.backoffMillis(6));
+    assertEquals(NotesOutboxReplay.MAX_BACKOFF_MILLIS,
+        NotesOutboxReplay.backoffMillis(7));
+    assertEquals(NotesOutboxReplay.MAX_BACKOFF_MILLIS,
+        NotesOutboxReplay.backoffMillis(100));
+  }
+
+  private static long afterGrace() {
+    return System.currentTimeMillis() + NotesOutboxReplay.GRACE_MILLIS + 1;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link NotesShards}.
+ */
+public class NotesShardsTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  // 2015-06-30T23:59:59Z
+  private static final long END_OF_JUNE = 1435708799000L;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+  private ObjectId head;
+
+  @Before
+  public void setUp() throws Exception {
+    Git git = Git.init().setDirectory(tmp.newFolder("workspace")).call();
+    git.commit().setMessage("workspace").call();
+    repo = git.getRepository();
+    head = repo.resolve(Constants.HEAD);
+  }
+
+  @After
+  public void tearDown() {
+    repo.close();
+  }
+
+  @Test
+  public void testMonthRefUsesUtc() {
+    assertEquals(NOTES_REF + "-shards/2015-06",
+        NotesShards.monthRef(NOTES_REF, END_OF_JUNE));
+    assertEquals(NOTES_REF + "-shards/2015-07",
+        NotesShards.monthRef(NOTES_REF, END_OF_JUNE + 1000L));
+  }
+
+  @Test
+  public void testJobRefIsValidRefName() {
+    String ref = NotesShards.jobRef(NOTES_REF, "team/my job..lock");
+    assertEquals(NOTES_REF + "-shards/job/team_2fmy_20job_2e_2elock", ref);
+    assertTrue(Repository.isValidRefName(ref));
+  }
+
+  @Test
+  public void testJobRefsOfNestedJobsDontCollide() {
+    String parent = NotesShards.jobRef(NOTES_REF, "m");
+    String child = NotesShards.jobRef(NOTES_REF, "m/axis_x");
+
+    assertFalse(child.startsWith(parent + "/"));
+    assertFalse(NotesShards.jobRef(NOTES_REF, "a.b").equals(
+        NotesShards.jobRef(NOTES_REF, "a_b")));
+  }
+
+  @Test
+  public void testReadNotesAcrossShards() throws Exception {
+    String june = NotesShards.monthRef(NOTES_REF, END_OF_JUNE);
+    String july = NotesShards.monthRef(NOTES_REF, END_OF_JUNE + 1000L);
+    NotesUpdate.appendNotes(repo, july, notes("july"));
+    NotesUpdate.appendNotes(repo, NOTES_REF, notes("unsharded"));
+    NotesUpdate.appendNotes(repo, june, notes("june"));
+    Map<String, List<String>> otherCommit =
+        new HashMap<String, List<String>>();
+    otherCommit.put(ObjectId.zeroId().name(), notes("other").get(head.name()));
+    NotesUpdate.appendNotes(repo, NotesShards.jobRef(NOTES_REF, "other"),
+        otherCommit);
+
+    Map<String, String> read =
+        NotesShards.readNotes(repo, NOTES_REF, head);
+    assertEquals(3, read.size());
+    List<String> refs = new ArrayList<String>(read.keySet());
+    assertEquals(NOTES_REF, refs.get(0));
+    assertEquals(june, refs.get(1));
+    assertEquals(july, refs.get(2));
+    assertEquals("june\n", read.get(june));
+  }
+
+  @Test
+  public void testReadNotesWithoutNotes() throws Exception {
+    assertTrue(NotesShards.readNotes(repo, NOTES_REF, head).isEmpty());
+  }
+
+  private Map<String, List<String>> notes(String note) {
+    List<String> list = new ArrayList<String>();
+    list.add(note);
+    Map<String, List<String>> notes = new HashMap<String, List<String>>();
+    notes.put(head.name(), list);
+    return notes;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link NotesUpdate}.
+ */
+public class NotesUpdateTest {
+  private static final String NOTES_REF = GitNotesJobLogger.GIT_NOTES_REFS;
+  private static final String COMMIT_A =
+      "1111111111111111111111111111111111111111";
+  private static final String COMMIT_B =
+      "2222222222222222222222222222222222222222";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = NotesFixtures.newBareRepository(tmp.newFolder("notes.git"));
+  }
+
+  @After
+  public void tearDown() {
+    repo.close();
+  }
+
+  @Test
+  public void testAppendCreatesRef() throws Exception {
+    ObjectId tip = NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "{\"a\":1}"));
+    assertEquals(tip, repo.getRef(NOTES_REF).getObjectId());
+    assertEquals("{\"a\":1}\n", NotesFixtures.readNote(repo, COMMIT_A));
+  }
+
+  @Test
+  public void testAppendToExistingNotes() throws Exception {
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, "first"));
+    Map<String, List<String>> more = NotesFixtures.notes(COMMIT_A, "second");
+    more.putAll(NotesFixtures.notes(COMMIT_B, "other"));
+    ObjectId tip = NotesUpdate.appendNotes(repo, NOTES_REF, more);
+
+    assertEquals("first\n\nsecond\n", NotesFixtures.readNote(repo, COMMIT_A));
+    assertEquals("other\n", NotesFixtures.readNote(repo, COMMIT_B));
+    RevWalk walk = new RevWalk(repo);
+    try {
+      assertEquals(1, walk.parseCommit(tip).getParentCount());
+    } finally {
+      walk.release();
+    }
+  }
+
+  @Test
+  public void testAppendWritesCompactUrlsRelativeToBase() throws Exception {
+    String first = new GitNotesCiMessage(1L)
+        .addVersion(GitNotesCiMessage.COMPACT_VERSION)
+        .addUrl("http://ci/job/a/1/").toString();
+    String other = new GitNotesCiMessage(2L)
+        .addVersion(GitNotesCiMessage.COMPACT_VERSION)
+        .addUrl("http://elsewhere/job/a/2/").toString();
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_A, first));
+    NotesUpdate.appendNotes(repo, NOTES_REF,
+        NotesFixtures.notes(COMMIT_B, other));
+
+    assertEquals("http://ci/\n",
+        NotesFixtures.readNote(repo, NotesUrlBase.BASE_NOTE.name()));
+    assertEquals("{\"t\":1,\"v\":1,\"u\":\"job/a/1/\"}\n",
+        NotesFixtures.readNote(repo, COMMIT_A));
+    assertEquals(other + "\n", NotesFixtures.readNote(repo, COMMIT_B));
+  }
+
+  @Test
+  public void testAppendMatchesGitNotesAppend() {
+    StringBuilder text = new StringBuilder("no newline");
+    NotesUpdate.append(text, "next");
+    assertEquals("no newline\n\nnext\n", text.toString());
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link NotesUrlBase}.
+ */
+public class NotesUrlBaseTest {
+  private static final String COMPACT =
+      "{\"t\":1,\"v\":1,\"u\":\"http://ci/jenkins/job/a/1/\"}";
+  private static final String COMMIT =
+      "1111111111111111111111111111111111111111";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testBaseOf() {
+    assertEquals("http://ci/jenkins/",
+        NotesUrlBase.baseOf("http://ci/jenkins/job/a/job/b/1/"));
+    assertNull(NotesUrlBase.baseOf("http://ci/view/a/"));
+    assertNull(NotesUrlBase.baseOf("job/a/1/"));
+    assertNull(NotesUrlBase.baseOf(null));
+  }
+
+  @Test
+  public void testRelativize() {
+    assertEquals("{\"t\":1,\"v\":1,\"u\":\"job/a/1/\"}",
+        NotesUrlBase.relativize(COMPACT, "http://ci/jenkins/"));
+  }
+
+  @Test
+  public void testRelativizeKeepsOtherLines() {
+    assertEquals(COMPACT, NotesUrlBase.relativize(COMPACT, "http://other/"));
+    assertEquals(COMPACT, NotesUrlBase.relativize(COMPACT, null));
+    String full = "{\"timestamp\":\"0000000001\",\"v\":0,"
+        + "\"url\":\"http://ci/jenkins/job/a/1/\"}";
+    assertEquals(full, NotesUrlBase.relativize(full, "http://ci/jenkins/"));
+  }
+
+  @Test
+  public void testAbsolutize() {
+    String relative = NotesUrlBase.relativize(COMPACT, "http://ci/jenkins/");
+    assertEquals(COMPACT,
+        NotesUrlBase.absolutize(relative, "http://ci/jenkins/"));
+    assertEquals(COMPACT, NotesUrlBase.absolutize(COMPACT, "http://other/"));
+    assertEquals(relative, NotesUrlBase.absolutize(relative, null));
+  }
+
+  @Test
+  public void testDerive() {
+    Map<String, List<String>> notes =
+        new LinkedHashMap<String, List<String>>();
+    List<String> lines = new ArrayList<String>();
+    lines.add("{\"timestamp\":\"0000000001\",\"v\":0,"
+        + "\"url\":\"http://full/job/a/1/\"}");
+    lines.add(COMPACT);
+    notes.put("1111111111111111111111111111111111111111", lines);
+    assertEquals("http://ci/jenkins/", NotesUrlBase.derive(notes));
+  }
+
+  @Test
+  public void testRelativizeCallbackUsesBaseOfRef() throws Exception {
+    File dir = tmp.newFolder("repo.git");
+    Repository repo = NotesFixtures.newBareRepository(dir);
+    try {
+      NotesUrlBase.RelativizeCallback callback =
+          new NotesUrlBase.RelativizeCallback(NotesFixtures.NOTES_REF,
+              COMPACT);
+      // No notes ref, and so no base, yet.
+      assertEquals(COMPACT, callback.invoke(repo, null));
+
+      NotesFixtures.append(repo, COMMIT, COMPACT);
+
+      assertEquals(NotesUrlBase.relativize(COMPACT, "http://ci/jenkins/"),
+          callback.invoke(repo, null));
+    } finally {
+      repo.close();
+    }
+  }
+}
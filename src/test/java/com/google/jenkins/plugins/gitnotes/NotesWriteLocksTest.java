@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Test;
+
+import hudson.FilePath;
+
+/**
+ * Tests for {@link NotesWriteLocks}.
+ */
+public class NotesWriteLocksTest {
+  private static final String KEY = "master:/ws/a -> http://git.host/a";
+
+  private final NotesWriteLocks locks = new NotesWriteLocks(16);
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testKey() throws Exception {
+    URIish remote = new URIish("http://git.host/a");
+    assertEquals("master:/ws/a -> http://git.host/a",
+        NotesWriteLocks.key(null, new FilePath(new File("/ws/a")), remote));
+    assertEquals("agent1: -> http://git.host/a",
+        NotesWriteLocks.key("agent1", null, remote));
+  }
+
+  @Test
+  public void testSameKeyIsSerialized() throws Exception {
+    Lock held = locks.tryLock(KEY, 0L);
+    assertNotNull(held);
+    try {
+      assertNull(tryLockOnOtherThread(KEY, 10L));
+    } finally {
+      held.unlock();
+    }
+    assertEquals(Boolean.TRUE, tryLockOnOtherThread(KEY, 1000L));
+
+    NotesWriteLocks.WaitStats stats = locks.getWaitStats().get(KEY);
+    assertEquals(2, stats.getAcquisitions());
+    assertEquals(1, stats.getTimeouts());
+  }
+
+  @Test
+  public void testDifferentStripesProceedInParallel() throws Exception {
+    // Lands on a different one of the 16 stripes than KEY.
+    String other = "agent1:/ws/a -> http://git.host/a";
+    Lock held = locks.tryLock(KEY, 0L);
+    try {
+      assertEquals(Boolean.TRUE, tryLockOnOtherThread(other, 0L));
+    } finally {
+      held.unlock();
+    }
+  }
+
+  @Test
+  public void testWaitStatsKeepRecentKeys() throws Exception {
+    locks.tryLock(KEY, 0L).unlock();
+    for (int i = 0; i < NotesWriteLocks.MAX_STATS_KEYS; i++) {
+      locks.tryLock("agent" + i + ":/ws/a -> http://git.host/a", 0L)
+          .unlock();
+    }
+
+    assertEquals(NotesWriteLocks.MAX_STATS_KEYS,
+        locks.getWaitStats().size());
+    assertNull(locks.getWaitStats().get(KEY));
+  }
+
+  /**
+   * Returns whether another thread got the lock, releasing it right away.
+   */
+  private Boolean tryLockOnOtherThread(final String key,
+      final long timeoutMillis) throws Exception {
+    Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        Lock lock = locks.tryLock(key, timeoutMillis);
+        if (lock == null) {
+          return null;
+        }
+        lock.unlock();
+        return Boolean.TRUE;
+      }
+    });
+    return result.get();
+  }
+}
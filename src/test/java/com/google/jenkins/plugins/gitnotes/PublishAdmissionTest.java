@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonObject;
+
+/**
+ * Tests for {@link PublishAdmission}.
+ */
+public class PublishAdmissionTest {
+  private static final long TIMEOUT_MILLIS = 10000L;
+
+  private PublishAdmission admission;
+
+  @Before
+  public void setUp() {
+    admission = new PublishAdmission();
+  }
+
+  @Test
+  public void testUnlimitedByDefault() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      assertNotNull(admission.acquire("a", 0L));
+    }
+    assertEquals(0, admission.toJson().get("running").getAsInt());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    admission.setLimits(0.001, 2, 0);
+
+    assertNotNull(admission.acquire("a", 0L));
+    assertNotNull(admission.acquire("b", 0L));
+    assertNull(admission.acquire("a", 0L));
+
+    JsonObject stats = admission.toJson().getAsJsonObject("remotes")
+        .getAsJsonObject("a");
+    assertEquals(1, stats.get("admitted").getAsInt());
+    assertEquals(1, stats.get("timedOut").getAsInt());
+    assertEquals(0, stats.get("waiting").getAsInt());
+  }
+
+  @Test
+  public void testRateLimitWaitsForToken() throws Exception {
+    admission.setLimits(20.0, 1, 0);
+
+    assertNotNull(admission.acquire("a", 0L));
+    assertNotNull(admission.acquire("a", TIMEOUT_MILLIS));
+  }
+
+  @Test
+  public void testConcurrencyCap() throws Exception {
+    admission.setLimits(0.0, 1, 1);
+
+    PublishAdmission.Permit permit = admission.acquire("a", 0L);
+    assertNotNull(permit);
+    assertNull(admission.acquire("b", 0L));
+    permit.release();
+    // Released permits are only counted once.
+    permit.release();
+
+    assertNotNull(admission.acquire("b", 0L));
+    assertNull(admission.acquire("a", 0L));
+    assertEquals(1, admission.toJson().get("running").getAsInt());
+  }
+
+  @Test
+  public void testRemotesTakeTurns() throws Exception {
+    admission.setLimits(0.0, 1, 1);
+    PublishAdmission.Permit held = admission.acquire("a", 0L);
+    List<String> admitted =
+        Collections.synchronizedList(new ArrayList<String>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (String name : ImmutableList.of("a1", "a2", "a3", "b1")) {
+      String key = name.substring(0, 1);
+      int waiting = admission.waiting(key);
+      threads.add(start(key, name, admitted));
+      awaitWaiting(key, waiting + 1);
+    }
+
+    held.release();
+    for (Thread thread : threads) {
+      thread.join(TIMEOUT_MILLIS);
+    }
+
+    assertEquals(ImmutableList.of("a1", "b1", "a2", "a3"), admitted);
+  }
+
+  @Test
+  public void testRaisingLimitsAdmitsWaiting() throws Exception {
+    admission.setLimits(0.0, 1, 1);
+    admission.acquire("a", 0L);
+    List<String> admitted =
+        Collections.synchronizedList(new ArrayList<String>());
+    Thread thread = start("a", "a1", admitted);
+    awaitWaiting("a", 1);
+
+    admission.setLimits(0.0, 1, 2);
+    thread.join(TIMEOUT_MILLIS);
+
+    assertEquals(ImmutableList.of("a1"), admitted);
+  }
+
+  @Test
+  public void testInterruptedWaitLeavesQueue() throws Exception {
+    admission.setLimits(0.0, 1, 1);
+    admission.acquire("a", 0L);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          admission.acquire("a", TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      }
+    };
+    thread.start();
+    awaitWaiting("a", 1);
+
+    thread.interrupt();
+
+    assertTrue(interrupted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(0, admission.waiting("a"));
+  }
+
+  private Thread start(final String key, final String name,
+      final List<String> admitted) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          PublishAdmission.Permit permit =
+              admission.acquire(key, TIMEOUT_MILLIS);
+          admitted.add(name);
+          permit.release();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private void awaitWaiting(String key, int waiting) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (admission.waiting(key) < waiting) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10L);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.plugins.git.GitSCM;
+
+/**
+ * Tests for {@link PublishTargets}.
+ */
+public class PublishTargetsTest {
+  private static final String ORIGIN = "http://git.host/origin/";
+  private static final String ORIGIN_PUSH = "http://git.host/origin-push/";
+  private static final String MIRROR = "http://mirror.host/repo/";
+  private static final String BACKUP = "https://backup.host/repo.git";
+
+  private GitSCM gitScm;
+
+  @Before
+  public void setUp() throws Exception {
+    gitScm = mock(GitSCM.class);
+    RemoteConfig origin = mock(RemoteConfig.class);
+    when(origin.getURIs()).thenReturn(Arrays.asList(
+        new URIish(ORIGIN), new URIish(ORIGIN_PUSH)));
+    when(gitScm.getRepositoryByName("origin")).thenReturn(origin);
+    RemoteConfig mirror = mock(RemoteConfig.class);
+    when(mirror.getURIs()).thenReturn(Arrays.asList(new URIish(MIRROR)));
+    when(gitScm.getRepositoryByName("mirror")).thenReturn(mirror);
+  }
+
+  @Test
+  public void testBlankMeansFirstOriginUri() throws Exception {
+    List<PublishTargets.Target> targets = PublishTargets.resolve(" ", gitScm);
+
+    assertEquals(1, targets.size());
+    assertEquals(new URIish(ORIGIN), targets.get(0).uri);
+    assertEquals(60000L, targets.get(0).timeoutMillis);
+  }
+
+  @Test
+  public void testRemotesAndUrlsWithTimeouts() throws Exception {
+    List<PublishTargets.Target> targets = PublishTargets.resolve(
+        "origin\n\nmirror 30\n" + BACKUP + " 10\n", gitScm);
+
+    assertEquals(4, targets.size());
+    assertEquals(new URIish(ORIGIN), targets.get(0).uri);
+    assertEquals(new URIish(ORIGIN_PUSH), targets.get(1).uri);
+    assertEquals(new URIish(MIRROR), targets.get(2).uri);
+    assertEquals(30000L, targets.get(2).timeoutMillis);
+    assertEquals(new URIish(BACKUP), targets.get(3).uri);
+    assertEquals(10000L, targets.get(3).timeoutMillis);
+  }
+
+  @Test
+  public void testSkipsUnknownRemotesAndDuplicates() throws Exception {
+    List<PublishTargets.Target> targets = PublishTargets.resolve(
+        "unknown\nmirror\nmirror 5\norigin soon\n" + MIRROR, gitScm);
+
+    assertEquals(1, targets.size());
+    assertEquals(new URIish(MIRROR), targets.get(0).uri);
+    assertEquals(60000L, targets.get(0).timeoutMillis);
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PublishTimings}.
+ */
+public class PublishTimingsTest {
+  private static final long MILLI = 1000000L;
+
+  @Test
+  public void testSummaryListsPhasesThatRan() {
+    PublishTimings timings = new PublishTimings();
+    timings.addNanos(PublishTimings.Phase.PUSH, 120 * MILLI);
+    timings.addNanos(PublishTimings.Phase.CREATE_CLIENT, 12 * MILLI);
+    timings.addNanos(PublishTimings.Phase.PUSH, 30 * MILLI);
+
+    assertEquals("createClient 12 ms, push 150 ms", timings.toString());
+  }
+
+  @Test
+  public void testAddAll() {
+    PublishTimings remote = new PublishTimings();
+    remote.addNanos(PublishTimings.Phase.FETCH, 40 * MILLI);
+    PublishTimings timings = new PublishTimings();
+    timings.addNanos(PublishTimings.Phase.CREATE_CLIENT, 5 * MILLI);
+
+    timings.addAll(remote);
+
+    assertTrue(timings.ran(PublishTimings.Phase.FETCH));
+    assertFalse(timings.ran(PublishTimings.Phase.PUSH));
+    assertEquals("createClient 5 ms, fetch 40 ms", timings.toString());
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Tests for {@link RemoteHealth}.
+ */
+public class RemoteHealthTest {
+  private static final String KEY = "https://host/repo.git";
+  private static final long OPEN_MILLIS = 1000L;
+  private static final long TIMEOUT_MILLIS = 60000L;
+
+  private RemoteHealth health;
+
+  @Before
+  public void setUp() {
+    health = new RemoteHealth();
+  }
+
+  @Test
+  public void testOpensAfterFailures() {
+    for (int i = 0; i < RemoteHealth.MIN_SAMPLES - 1; i++) {
+      health.record(KEY, false, 10L, 0L, OPEN_MILLIS);
+    }
+    assertFalse(health.isOpen(KEY, 0L));
+
+    health.record(KEY, false, 10L, 0L, OPEN_MILLIS);
+
+    assertTrue(health.isOpen(KEY, 0L));
+    assertFalse(health.tryAcquire(KEY, OPEN_MILLIS - 1));
+    assertFalse(health.isOpen("other", 0L));
+  }
+
+  @Test
+  public void testFailureThreshold() {
+    for (int i = 0; i < RemoteHealth.WINDOW; i++) {
+      health.record(KEY, i % 3 == 0, 10L, 0L, OPEN_MILLIS);
+    }
+    assertTrue(health.isOpen(KEY, 0L));
+
+    setUp();
+    for (int i = 0; i < RemoteHealth.WINDOW; i++) {
+      health.record(KEY, i % 3 != 0, 10L, 0L, OPEN_MILLIS);
+    }
+    assertFalse(health.isOpen(KEY, 0L));
+  }
+
+  @Test
+  public void testProbeSuccessCloses() {
+    open();
+
+    assertFalse(health.isOpen(KEY, OPEN_MILLIS));
+    assertTrue(health.tryAcquire(KEY, OPEN_MILLIS));
+    // Only one probe at a time.
+    assertTrue(health.isOpen(KEY, OPEN_MILLIS));
+    assertFalse(health.tryAcquire(KEY, OPEN_MILLIS));
+
+    health.record(KEY, true, 10L, OPEN_MILLIS, OPEN_MILLIS);
+
+    assertFalse(health.isOpen(KEY, OPEN_MILLIS));
+    assertTrue(health.tryAcquire(KEY, OPEN_MILLIS));
+    assertEquals(0.0,
+        health.toJson().getAsJsonObject(KEY).get("failureRate").getAsDouble(),
+        0.0);
+  }
+
+  @Test
+  public void testProbeFailureDoublesOpenPeriod() {
+    open();
+    assertTrue(health.tryAcquire(KEY, OPEN_MILLIS));
+
+    health.record(KEY, false, 10L, OPEN_MILLIS, OPEN_MILLIS);
+
+    assertTrue(health.isOpen(KEY, 3 * OPEN_MILLIS - 1));
+    assertTrue(health.tryAcquire(KEY, 3 * OPEN_MILLIS));
+    health.record(KEY, false, 10L, 3 * OPEN_MILLIS, OPEN_MILLIS);
+    assertTrue(health.isOpen(KEY, 7 * OPEN_MILLIS - 1));
+    assertFalse(health.isOpen(KEY, 7 * OPEN_MILLIS));
+  }
+
+  @Test
+  public void testAdaptiveTimeout() {
+    assertEquals(TIMEOUT_MILLIS, health.timeoutMillis(KEY, TIMEOUT_MILLIS));
+    for (int i = 0; i < RemoteHealth.MIN_SAMPLES; i++) {
+      health.record(KEY, true, 2000L, 0L, OPEN_MILLIS);
+    }
+
+    assertEquals(8000L, health.timeoutMillis(KEY, TIMEOUT_MILLIS));
+    assertEquals(6000L, health.timeoutMillis(KEY, 6000L));
+
+    setUp();
+    for (int i = 0; i < RemoteHealth.MIN_SAMPLES; i++) {
+      health.record(KEY, true, 100L, 0L, OPEN_MILLIS);
+    }
+    assertEquals(RemoteHealth.MIN_TIMEOUT_MILLIS,
+        health.timeoutMillis(KEY, TIMEOUT_MILLIS));
+  }
+
+  @Test
+  public void testCallTimesOut() throws Exception {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    try {
+      health.call(KEY, 100L, OPEN_MILLIS, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            // Only the timeout's interrupt releases it.
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw e;
+          }
+          return null;
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+    }
+    // The worker running the publish is interrupted, not the caller.
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    assertFalse(Thread.currentThread().isInterrupted());
+    assertEquals(1.0,
+        health.toJson().getAsJsonObject(KEY).get("failureRate").getAsDouble(),
+        0.0);
+  }
+
+  @Test
+  public void testCallRunsOnCallerWithoutCircuitBreaker() throws Exception {
+    // Without Jenkins, the circuit breaker is disabled.
+    final Thread caller = Thread.currentThread();
+    assertSame(caller, health.call(new URIish("https://example.com/repo.git"),
+        100L, new Callable<Thread>() {
+          @Override
+          public Thread call() {
+            return Thread.currentThread();
+          }
+        }));
+    // Nor is the publish recorded.
+    assertEquals(0, health.toJson().entrySet().size());
+  }
+
+  @Test
+  public void testCallDoesNotRecordUnattemptedPublish() throws Exception {
+    open(0L, OPEN_MILLIS);
+    // Lets the probe through.
+    for (int i = 0; i < 2; i++) {
+      try {
+        health.call(KEY, TIMEOUT_MILLIS, OPEN_MILLIS, new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            throw new RemoteHealth.NotAttemptedException("busy");
+          }
+        });
+        fail();
+      } catch (RemoteHealth.NotAttemptedException e) {
+        // Expected, and the next probe goes ahead.
+      }
+    }
+    JsonObject json = health.toJson().getAsJsonObject(KEY);
+    assertEquals("HALF_OPEN", json.get("state").getAsString());
+    assertEquals(1.0, json.get("failureRate").getAsDouble(), 0.0);
+  }
+
+  @Test
+  public void testCallShortCircuitsOpenCircuit() throws Exception {
+    assertEquals("ok", health.call(KEY, TIMEOUT_MILLIS, OPEN_MILLIS,
+        new Callable<String>() {
+          @Override
+          public String call() {
+            return "ok";
+          }
+        }));
+    open(System.currentTimeMillis(), TIMEOUT_MILLIS);
+
+    try {
+      health.call(KEY, TIMEOUT_MILLIS, OPEN_MILLIS, new Callable<Void>() {
+        @Override
+        public Void call() {
+          throw new AssertionError();
+        }
+      });
+      fail();
+    } catch (RemoteHealth.CircuitOpenException e) {
+      // Expected.
+    }
+    JsonObject json = health.toJson().getAsJsonObject(KEY);
+    assertEquals("OPEN", json.get("state").getAsString());
+  }
+
+  private void open() {
+    open(0L, OPEN_MILLIS);
+  }
+
+  private void open(long nowMillis, long openMillis) {
+    for (int i = 0; i < RemoteHealth.MIN_SAMPLES; i++) {
+      health.record(KEY, false, 10L, nowMillis, openMillis);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintStream;
+import java.util.Collections;
+
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.util.BuildData;
+
+/**
+ * Tests for {@link RunNotesPublisher} and {@link GitNotesPublisher}.
+ */
+public class RunNotesPublisherTest {
+  private static final String COMMIT =
+      "1111111111111111111111111111111111111111";
+  private static final String REMOTE_URI = "http://git.host/remote/";
+  private static final String OTHER_URI = "http://git.host/other/";
+
+  private FreeStyleBuild run;
+  private FreeStyleProject project;
+  private BuildData buildData;
+  private TaskListener listener;
+
+  @Before
+  public void setUp() {
+    run = mock(FreeStyleBuild.class);
+    project = mock(FreeStyleProject.class);
+    doReturn(project).when(run).getParent();
+    buildData = mock(BuildData.class);
+    Revision revision = mock(Revision.class);
+    when(revision.getSha1String()).thenReturn(COMMIT);
+    when(buildData.getLastBuiltRevision()).thenReturn(revision);
+    when(buildData.getRemoteUrls()).thenReturn(
+        Collections.singleton(OTHER_URI));
+    listener = mock(TaskListener.class);
+    when(listener.getLogger()).thenReturn(mock(PrintStream.class));
+  }
+
+  @Test
+  public void testTargetWithoutCheckout() {
+    assertNull(RunNotesPublisher.Target.of(run));
+
+    when(run.getAction(BuildData.class)).thenReturn(
+        mock(BuildData.class));
+    assertNull(RunNotesPublisher.Target.of(run));
+  }
+
+  @Test
+  public void testTargetFromRecordedRemote() throws Exception {
+    when(run.getAction(BuildData.class)).thenReturn(buildData);
+
+    RunNotesPublisher.Target target = RunNotesPublisher.Target.of(run);
+
+    assertEquals(COMMIT, target.commit);
+    assertEquals(new URIish(OTHER_URI), target.remoteURI);
+    assertNull(target.credentials);
+  }
+
+  @Test
+  public void testTargetPrefersGitScmOrigin() throws Exception {
+    when(run.getAction(BuildData.class)).thenReturn(buildData);
+    GitSCM gitScm = mock(GitSCM.class);
+    RemoteConfig origin = mock(RemoteConfig.class);
+    when(origin.getURIs()).thenReturn(
+        Collections.singletonList(new URIish(REMOTE_URI)));
+    when(gitScm.getRepositoryByName("origin")).thenReturn(origin);
+    when(gitScm.getUserRemoteConfigs()).thenReturn(
+        Collections.<UserRemoteConfig>emptyList());
+    doReturn(Collections.singletonList(gitScm)).when(project).getSCMs();
+
+    RunNotesPublisher.Target target = RunNotesPublisher.Target.of(run);
+
+    assertEquals(COMMIT, target.commit);
+    assertEquals(new URIish(REMOTE_URI), target.remoteURI);
+  }
+
+  @Test
+  public void testPublisherSkipsRunWithoutCheckout() {
+    new GitNotesPublisher().perform(run, null, null, listener);
+
+    verify(run, never()).addAction(any(Action.class));
+  }
+
+  @Test
+  public void testPublisherRecordsRunOnce() {
+    when(run.getAction(GitNotesRunAction.class)).thenReturn(
+        new GitNotesRunAction(NotesShards.Scheme.NONE));
+
+    new GitNotesPublisher().perform(run, null, null, listener);
+
+    verify(run, never()).getAction(BuildData.class);
+    verify(run, never()).addAction(any(Action.class));
+  }
+}
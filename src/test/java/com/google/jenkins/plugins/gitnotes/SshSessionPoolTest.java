@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.gitnotes;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Tests for {@link SshSessionPool}.
+ */
+public class SshSessionPoolTest {
+  private static final String KEY = "git@host#";
+  private static final String STATS_KEY = "git@host";
+  private static final long IDLE_MILLIS = 1000L;
+
+  private SshSessionPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new SshSessionPool();
+  }
+
+  @Test
+  public void testStatsKey() throws Exception {
+    assertEquals("git@host:2222",
+        SshSessionPool.statsKey(new URIish("ssh://git@host:2222/r"), null));
+    assertEquals("me@host",
+        SshSessionPool.statsKey(new URIish("ssh://git@host/r"), "me"));
+    assertEquals("host",
+        SshSessionPool.statsKey(new URIish("ssh://host/r"), null));
+  }
+
+  @Test
+  public void testReleasedSessionIsReused() {
+    assertNull(pool.borrow(KEY, STATS_KEY));
+    RemoteSession delegate = mock(RemoteSession.class);
+    SshSessionPool.Pooled session = open(delegate);
+
+    session.disconnect();
+
+    assertSame(session, pool.borrow(KEY, STATS_KEY));
+    assertNull(pool.borrow(KEY, STATS_KEY));
+    assertNull(pool.borrow("other#", "other"));
+    verify(delegate, never()).disconnect();
+    JsonObject stats = pool.toJson().getAsJsonObject(STATS_KEY);
+    assertEquals(1, stats.get("opened").getAsInt());
+    assertEquals(1, stats.get("reused").getAsInt());
+    assertEquals(1, stats.get("open").getAsInt());
+  }
+
+  @Test
+  public void testReleaseTwiceIsIgnored() {
+    SshSessionPool.Pooled session = open(mock(RemoteSession.class));
+    session.disconnect();
+    session.disconnect();
+    assertEquals(1, pool.toJson().getAsJsonObject(STATS_KEY)
+        .get("idle").getAsInt());
+  }
+
+  @Test
+  public void testIdleSessionsAreEvicted() {
+    RemoteSession delegate = mock(RemoteSession.class);
+    open(delegate).disconnect();
+
+    assertEquals(0, pool.evictIdle(System.nanoTime()));
+    assertEquals(1, pool.evictIdle(System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS)));
+
+    verify(delegate).disconnect();
+    assertNull(pool.borrow(KEY, STATS_KEY));
+    JsonObject stats = pool.toJson().getAsJsonObject(STATS_KEY);
+    assertEquals(1, stats.get("evicted").getAsInt());
+    assertEquals(0, stats.get("open").getAsInt());
+  }
+
+  @Test
+  public void testExcessIdleSessionsAreClosed() {
+    SshSessionPool.Pooled[] sessions =
+        new SshSessionPool.Pooled[SshSessionPool.MAX_IDLE_PER_KEY + 1];
+    for (int i = 0; i < sessions.length; i++) {
+      sessions[i] = open(mock(RemoteSession.class));
+    }
+    for (SshSessionPool.Pooled session : sessions) {
+      session.disconnect();
+    }
+    verify(sessions[sessions.length - 1].delegate).disconnect();
+    assertEquals(SshSessionPool.MAX_IDLE_PER_KEY, pool.toJson()
+        .getAsJsonObject(STATS_KEY).get("idle").getAsInt());
+  }
+
+  @Test
+  public void testClearClosesIdleSessions() {
+    RemoteSession delegate = mock(RemoteSession.class);
+    open(delegate).disconnect();
+    pool.clear();
+    verify(delegate).disconnect();
+    assertNull(pool.borrow(KEY, STATS_KEY));
+  }
+
+  private SshSessionPool.Pooled open(RemoteSession delegate) {
+    pool.opened(STATS_KEY, TimeUnit.MILLISECONDS.toNanos(42));
+    return pool.new Pooled(delegate, KEY, STATS_KEY, IDLE_MILLIS);
+  }
+}